@@ -0,0 +1,264 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unimi.dsi.fastutil.longs.Long2LongLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.Tag;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.world.downloader.storage.SpillStore;
+
+/**
+ * Keeps the entities and tile entities that WDL retains for loaded chunks
+ * ({@link WDL#newEntities} and {@link WDL#newTileEntities}) within a memory
+ * budget.  Once the budget is exceeded, everything retained for the chunks
+ * that were captured into least recently is moved to a {@link SpillStore},
+ * and is put back just before the chunk is saved.
+ *
+ * The size of what is retained is estimated from the size of its NBT, and is
+ * only approximate: replaced tile entities, and entities that move to
+ * another chunk, are still counted against their chunk until it is saved or
+ * spilled.
+ */
+public class CaptureSpiller implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int TAG_COMPOUND = 10;
+
+	private final WDL wdl;
+	private final long budget;
+	private final SpillStore store;
+
+	// Guarded by this
+	/** Estimated bytes retained in memory for each chunk, least recent first. */
+	private final Long2LongLinkedOpenHashMap retained = new Long2LongLinkedOpenHashMap();
+	private long retainedBytes;
+
+	// Metrics; guarded by this
+	private long hits;
+	private long misses;
+	private long spills;
+	private long bytesSpilled;
+
+	/**
+	 * @param wdl    The WDL instance whose captures are spilled.
+	 * @param file   The file to spill to.
+	 * @param budget The number of bytes to retain in memory before spilling.
+	 */
+	public CaptureSpiller(WDL wdl, File file, long budget) throws IOException {
+		this.wdl = wdl;
+		this.budget = budget;
+		this.store = new SpillStore(file);
+	}
+
+	/**
+	 * Called after an entity or tile entity has been retained for the given
+	 * chunk; spills other chunks if this goes over the budget.
+	 */
+	public synchronized void captured(ChunkPos pos, CompoundTag tag) {
+		long key = pos.toLong();
+		long size = sizeOf(tag);
+		retained.putAndMoveToLast(key, retained.get(key) + size);
+		retainedBytes += size;
+
+		while (retainedBytes > budget && retained.size() > 1) {
+			long eldest = retained.firstLongKey();
+			if (eldest == key) {
+				// Never spill what was just captured
+				break;
+			}
+			spill(new ChunkPos(eldest));
+		}
+	}
+
+	/**
+	 * Moves everything retained for the given chunk to the spill file.
+	 */
+	private void spill(ChunkPos pos) {
+		long key = pos.toLong();
+		retainedBytes -= retained.remove(key);
+
+		CompoundTag tag = new CompoundTag();
+		ListTag tileEntities = new ListTag();
+		tileEntities.addAll(wdl.newTileEntities.getChunk(pos).values());
+		tag.put("TileEntities", tileEntities);
+		ListTag entities = new ListTag();
+		entities.addAll(wdl.newEntities.getChunk(pos));
+		tag.put("Entities", entities);
+
+		try {
+			bytesSpilled += store.append(key, tag);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to spill the captures for " + pos + "; keeping them in memory", ex);
+			return;
+		}
+		// The entities are only detached, so that ones that have moved (or been
+		// seen again) since aren't put back
+		wdl.newTileEntities.removeChunk(pos);
+		wdl.newEntities.detachChunk(pos);
+		spills++;
+	}
+
+	/**
+	 * Puts back anything spilled for the given chunk, so that it can be
+	 * saved.  Anything captured for the chunk since it was spilled takes
+	 * precedence.
+	 */
+	public synchronized void restore(ChunkPos pos) {
+		long key = pos.toLong();
+		if (!store.contains(key)) {
+			if (retained.containsKey(key)) {
+				hits++;
+			}
+			return;
+		}
+		misses++;
+
+		List<CompoundTag> spilled;
+		try {
+			spilled = store.take(key);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to read back the spilled captures for " + pos, ex);
+			return;
+		}
+		// Later spills of the same chunk are newer, so they replace earlier ones
+		Long2ObjectMap<CompoundTag> tileEntities = new Long2ObjectLinkedOpenHashMap<>();
+		Map<UUID, CompoundTag> entities = new LinkedHashMap<>();
+		for (CompoundTag tag : spilled) {
+			for (Tag t : tag.getList("TileEntities", TAG_COMPOUND)) {
+				CompoundTag tileEntity = (CompoundTag) t;
+				tileEntities.put(BlockPos.asLong(tileEntity.getInt("x"), tileEntity.getInt("y"),
+						tileEntity.getInt("z")), tileEntity);
+			}
+			for (Tag t : tag.getList("Entities", TAG_COMPOUND)) {
+				CompoundTag entity = (CompoundTag) t;
+				entities.put(entity.getUuid("UUID"), entity);
+			}
+		}
+
+		long size = 0;
+		Long2ObjectMap<CompoundTag> current = wdl.newTileEntities.getChunk(pos);
+		for (Long2ObjectMap.Entry<CompoundTag> e : Long2ObjectMaps.fastIterable(tileEntities)) {
+			if (!current.containsKey(e.getLongKey())) {
+				wdl.newTileEntities.put(BlockPos.fromLong(e.getLongKey()), e.getValue());
+				size += sizeOf(e.getValue());
+			}
+		}
+		for (Map.Entry<UUID, CompoundTag> e : entities.entrySet()) {
+			// Not if seen again since, either somewhere else or in this chunk
+			if (wdl.newEntities.reattach(pos, e.getKey(), e.getValue())) {
+				size += sizeOf(e.getValue());
+			}
+		}
+		retained.putAndMoveToLast(key, retained.get(key) + size);
+		retainedBytes += size;
+	}
+
+	/**
+	 * Forgets the given chunk, once everything retained for it has been saved
+	 * (or discarded).
+	 */
+	public synchronized void discard(ChunkPos pos) {
+		long key = pos.toLong();
+		retainedBytes -= retained.remove(key);
+		try {
+			store.discard(key);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to discard the spilled captures for " + pos, ex);
+		}
+	}
+
+	/**
+	 * Estimates the memory used by the given tag from the size of its NBT.
+	 */
+	private static long sizeOf(CompoundTag tag) {
+		DataOutputStream counter = new DataOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+
+			@Override
+			public void write(byte[] b, int off, int len) { }
+		});
+		try {
+			NbtIo.write(tag, counter);
+		} catch (IOException ex) {
+			// Can't happen
+			throw new RuntimeException(ex);
+		}
+		return counter.size();
+	}
+
+	/**
+	 * Gets the estimated number of bytes retained in memory.
+	 */
+	public synchronized long getRetainedBytes() {
+		return retainedBytes;
+	}
+
+	/**
+	 * Gets the number of chunks that have been spilled.
+	 */
+	public synchronized long getNumSpills() {
+		return spills;
+	}
+
+	/**
+	 * Gets the number of saved chunks whose captures were all still in
+	 * memory.
+	 */
+	public synchronized long getNumHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of saved chunks whose captures had to be read back from
+	 * the spill file.
+	 */
+	public synchronized long getNumMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		retained.clear();
+		retainedBytes = 0;
+		store.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CaptureSpiller [budget=" + budget + ", retainedBytes=" + retainedBytes
+				+ ", chunksInMemory=" + retained.size() + ", hits=" + hits + ", misses=" + misses
+				+ ", spills=" + spills + " (" + bytesSpilled + " bytes), " + store + "]";
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.block.AirBlock;
+import net.minecraft.block.BedBlock;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.EmptyChunk;
+import net.minecraft.world.chunk.WorldChunk;
+
+/**
+ * Classifies chunks by looking at the palettes of their sections, rather than
+ * at every block.
+ */
+public final class ChunkClassifier {
+	private ChunkClassifier() { throw new AssertionError(); }
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * How often the summary of skipped chunks is logged, at most.
+	 */
+	private static final long SKIP_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+	public static enum Category {
+		/** The chunk has no sections, or only sections containing air. */
+		ALL_AIR,
+		/**
+		 * The chunk only contains "airoid" blocks (air and beds); servers
+		 * sometimes send these for chunks that are really empty.
+		 */
+		AIROID_ONLY,
+		/** The chunk contains something worth saving. */
+		HAS_CONTENT;
+	}
+
+	/**
+	 * Classifies the given chunk.  This only looks at the palettes of the
+	 * sections, so it takes time proportional to the number of distinct block
+	 * states rather than the number of blocks.
+	 *
+	 * Palettes may contain states that are no longer used, so a chunk may be
+	 * classified as having content even though all of the content has been
+	 * removed; the reverse can't happen.
+	 */
+	public static Category classify(@Nullable Chunk c) {
+		if (c == null || c instanceof EmptyChunk) {
+			return Category.ALL_AIR;
+		}
+
+		boolean hasAiroid = false;
+		for (ChunkSection section : c.getSectionArray()) {
+			if (section == WorldChunk.EMPTY_SECTION) {
+				continue;
+			}
+			if (section.getContainer().hasAny(state -> !isAiroid(state))) {
+				return Category.HAS_CONTENT;
+			}
+			if (!hasAiroid && section.getContainer().hasAny(state -> !state.isAir())) {
+				hasAiroid = true;
+			}
+		}
+
+		return hasAiroid ? Category.AIROID_ONLY : Category.ALL_AIR;
+	}
+
+	private static boolean isAiroid(BlockState state) {
+		Block block = state.getBlock();
+		return block instanceof AirBlock || block instanceof BedBlock;
+	}
+
+	/**
+	 * Computes exact statistics for the blocks in the given chunk.  Unlike
+	 * {@link #classify}, this needs to count every block (although it does so
+	 * by palette index, which is still cheaper than getBlockState).
+	 */
+	public static ChunkStats computeStats(@Nullable Chunk c) {
+		if (c == null || c instanceof EmptyChunk) {
+			return ChunkStats.EMPTY;
+		}
+
+		int[] nonAir = new int[1];
+		Map<Block, Integer> counts = new IdentityHashMap<>();
+		for (ChunkSection section : c.getSectionArray()) {
+			if (section == WorldChunk.EMPTY_SECTION) {
+				continue;
+			}
+			section.getContainer().count((state, count) -> {
+				if (!state.isAir()) {
+					nonAir[0] += count;
+					counts.merge(state.getBlock(), count, Integer::sum);
+				}
+			});
+		}
+		return new ChunkStats(nonAir[0], counts);
+	}
+
+	/**
+	 * Block statistics for a single chunk.
+	 */
+	public static final class ChunkStats {
+		static final ChunkStats EMPTY = new ChunkStats(0, Collections.emptyMap());
+
+		private final int nonAirBlocks;
+		private final Map<Block, Integer> blockCounts;
+
+		private ChunkStats(int nonAirBlocks, Map<Block, Integer> blockCounts) {
+			this.nonAirBlocks = nonAirBlocks;
+			this.blockCounts = Collections.unmodifiableMap(blockCounts);
+		}
+
+		/**
+		 * The number of blocks that aren't air.
+		 */
+		public int getNonAirBlockCount() {
+			return nonAirBlocks;
+		}
+
+		/**
+		 * The number of distinct (non-air) block types.
+		 */
+		public int getDistinctBlockTypes() {
+			return blockCounts.size();
+		}
+
+		/**
+		 * The number of each (non-air) block.
+		 */
+		public Map<Block, Integer> getBlockCounts() {
+			return blockCounts;
+		}
+
+		@Override
+		public String toString() {
+			return "ChunkStats [nonAirBlocks=" + nonAirBlocks + ", distinctBlockTypes="
+					+ blockCounts.size() + "]";
+		}
+	}
+
+	// Skipped chunk summary
+	private static final Object skipLock = new Object();
+	private static int skippedAllAir, skippedAiroid;
+	private static long lastSkipLog = System.nanoTime();
+
+	/**
+	 * Records that a chunk was skipped because it was empty.  Rather than
+	 * logging each chunk, a summary is logged at most every 30 seconds.
+	 */
+	public static void recordSkipped(Category category) {
+		synchronized (skipLock) {
+			if (category == Category.AIROID_ONLY) {
+				skippedAiroid++;
+			} else {
+				skippedAllAir++;
+			}
+
+			long now = System.nanoTime();
+			if (now - lastSkipLog >= SKIP_LOG_INTERVAL) {
+				LOGGER.info("[WDL] Skipped " + (skippedAllAir + skippedAiroid)
+						+ " empty chunks in the last " + TimeUnit.NANOSECONDS.toSeconds(now - lastSkipLog)
+						+ " seconds (" + skippedAllAir + " with only air, "
+						+ skippedAiroid + " with only airoids)");
+				skippedAllAir = 0;
+				skippedAiroid = 0;
+				lastSkipLog = now;
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.ChunkNibbleArray;
+import net.minecraft.world.chunk.ChunkSection;
+
+/**
+ * Remembers a hash of the content of each chunk that was written in the
+ * current dimension, so that saving a chunk that hasn't changed since it was
+ * last written can be skipped entirely.
+ *
+ * The hash covers the block data, light, biomes, heightmaps, and the tile
+ * entity and entity NBT captured with the chunk; it does not include the time
+ * the chunk was saved.  Tile entities imported from the previous version of
+ * the chunk aren't included either, as that version is what was last written,
+ * so they can only differ if something else did; leaving them out means that
+ * an unchanged chunk is skipped without reading its previous version.  This
+ * class is thread-safe.
+ */
+public class ChunkFingerprints {
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	/**
+	 * Scratch buffer for serializing sections in the same form as is used for
+	 * copying them in {@link ChunkSnapshot}.
+	 */
+	private static final ThreadLocal<PacketByteBuf> SECTION_BUFFER =
+			ThreadLocal.withInitial(() -> new PacketByteBuf(Unpooled.buffer()));
+
+	// Guarded by fingerprints
+	private final Long2LongOpenHashMap fingerprints = new Long2LongOpenHashMap();
+	/** The most recent write that has begun for each chunk still being written. */
+	private final Long2LongOpenHashMap pendingWrites = new Long2LongOpenHashMap();
+	private long nextWrite;
+
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * Computes the fingerprint of the given chunk.
+	 *
+	 * @param snapshot The chunk
+	 */
+	public static long compute(ChunkSnapshot snapshot) {
+		Hasher hasher = HASH.newHasher();
+
+		PacketByteBuf buf = SECTION_BUFFER.get();
+		for (int y = 0; y < 16; y++) {
+			ChunkSection section = snapshot.getSection(y);
+			if (section == null) {
+				hasher.putByte((byte) 0);
+				continue;
+			}
+			buf.clear();
+			section.toPacket(buf);
+			hasher.putByte((byte) 1);
+			hasher.putBytes(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+		}
+		for (int y = -1; y < ChunkSnapshot.LIGHT_SECTION_COUNT - 1; y++) {
+			putLight(hasher, snapshot.getBlockLight(y));
+			putLight(hasher, snapshot.getSkyLight(y));
+		}
+
+		int[] biomes = snapshot.getBiomes();
+		if (biomes != null) {
+			for (int biome : biomes) {
+				hasher.putInt(biome);
+			}
+		}
+		for (Map.Entry<String, long[]> entry : snapshot.getHeightmaps().entrySet()) {
+			hasher.putUnencodedChars(entry.getKey());
+			for (long value : entry.getValue()) {
+				hasher.putLong(value);
+			}
+		}
+
+		hasher.putBoolean(snapshot.canSaveTileEntities);
+		putTileEntities(hasher, snapshot.newTileEntities);
+		putTileEntities(hasher, snapshot.chunkTileEntities);
+		putTag(hasher, snapshot.entities);
+
+		return hasher.hash().asLong();
+	}
+
+	private static void putLight(Hasher hasher, ChunkNibbleArray light) {
+		if (light == null || light.isUninitialized()) {
+			hasher.putByte((byte) 0);
+		} else {
+			hasher.putByte((byte) 1);
+			hasher.putBytes(light.asByteArray());
+		}
+	}
+
+	private static void putTileEntities(Hasher hasher, Map<BlockPos, CompoundTag> tileEntities) {
+		// By position, as the map's order depends on how it was built
+		List<Map.Entry<BlockPos, CompoundTag>> entries = new ArrayList<>(tileEntities.entrySet());
+		entries.sort(Comparator.comparingLong(e -> e.getKey().asLong()));
+		hasher.putInt(entries.size());
+		for (Map.Entry<BlockPos, CompoundTag> e : entries) {
+			hasher.putLong(e.getKey().asLong());
+			putTag(hasher, e.getValue());
+		}
+	}
+
+	private static void putTag(Hasher hasher, Tag tag) {
+		try {
+			tag.write(new DataOutputStream(Funnels.asOutputStream(hasher)));
+		} catch (IOException ex) {
+			// Funnel streams don't throw
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Checks whether the given fingerprint matches the one recorded for the
+	 * chunk the last time it was written, counting it as a skipped write if so.
+	 */
+	public boolean isUnchanged(ChunkPos pos, long fingerprint) {
+		checked.incrementAndGet();
+		boolean unchanged;
+		synchronized (fingerprints) {
+			unchanged = fingerprints.containsKey(pos.toLong())
+					&& fingerprints.get(pos.toLong()) == fingerprint;
+		}
+		if (unchanged) {
+			skipped.incrementAndGet();
+		}
+		return unchanged;
+	}
+
+	/**
+	 * Called before a chunk is queued to be written.  Until that write has
+	 * been {@link #record recorded}, the chunk is never treated as unchanged,
+	 * since what is on disk (or about to be) may differ from what was last
+	 * recorded.
+	 *
+	 * @return An identifier for the write, to pass to {@link #record}.
+	 */
+	public long beginWrite(ChunkPos pos) {
+		synchronized (fingerprints) {
+			long write = nextWrite++;
+			fingerprints.remove(pos.toLong());
+			pendingWrites.put(pos.toLong(), write);
+			return write;
+		}
+	}
+
+	/**
+	 * Records the fingerprint of a chunk once it has been written, unless
+	 * another write of the chunk has begun since.  Chunks are written in the
+	 * order they are queued, so the last write to begin is the one that ends
+	 * up on disk.
+	 *
+	 * @param write The identifier returned by {@link #beginWrite}.
+	 */
+	public void record(ChunkPos pos, long fingerprint, long write) {
+		synchronized (fingerprints) {
+			if (pendingWrites.containsKey(pos.toLong()) && pendingWrites.get(pos.toLong()) == write) {
+				pendingWrites.remove(pos.toLong());
+				fingerprints.put(pos.toLong(), fingerprint);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all fingerprints, e.g. because the chunks are now being written
+	 * to a different dimension.  The counters are kept.
+	 */
+	public void clear() {
+		synchronized (fingerprints) {
+			fingerprints.clear();
+			fingerprints.trim();
+			pendingWrites.clear();
+			pendingWrites.trim();
+		}
+	}
+
+	/**
+	 * Gets the number of chunk writes that were checked.
+	 */
+	public long getNumChecked() {
+		return checked.get();
+	}
+
+	/**
+	 * Gets the number of chunk writes that were skipped because the chunk
+	 * hadn't changed.
+	 */
+	public long getNumSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Resets the counters.
+	 */
+	public void resetCounters() {
+		checked.set(0);
+		skipped.set(0);
+	}
+
+	@Override
+	public String toString() {
+		int size;
+		synchronized (fingerprints) {
+			size = fingerprints.size();
+		}
+		return "ChunkFingerprints [tracked=" + size + ", checked=" + checked
+				+ ", skipped=" + skipped + "]";
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.state.property.Property;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.world.chunk.ChunkNibbleArray;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.ChunkStatus;
+
+/**
+ * Writes the binary NBT form of a chunk directly from a {@link ChunkSnapshot},
+ * without building a {@link CompoundTag} tree first.
+ *
+ * The output is the same root compound that
+ * {@link WDLChunkLoaderBase#writeSnapshot} passes to vanilla (a "Level"
+ * compound and a "DataVersion" int), in the format read by
+ * {@link net.minecraft.nbt.NbtIo#read(java.io.DataInput)}.  Block states are
+ * written with the same palette and packing as
+ * {@link net.minecraft.world.chunk.PalettedContainer#write}.
+ *
+ * Instances reuse their buffers and are not thread-safe; use {@link #get()}.
+ */
+final class ChunkNbtWriter {
+	private static final ThreadLocal<ChunkNbtWriter> WRITERS =
+			ThreadLocal.withInitial(ChunkNbtWriter::new);
+
+	/**
+	 * Buffers which have grown past this size (e.g. because of a chunk full of
+	 * huge tile entities) are thrown away rather than being kept around.
+	 */
+	private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+	private static final byte TAG_END = 0;
+	private static final byte TAG_BYTE = 1;
+	private static final byte TAG_SHORT = 2;
+	private static final byte TAG_INT = 3;
+	private static final byte TAG_LONG = 4;
+	private static final byte TAG_BYTE_ARRAY = 7;
+	private static final byte TAG_STRING = 8;
+	private static final byte TAG_LIST = 9;
+	private static final byte TAG_COMPOUND = 10;
+	private static final byte TAG_INT_ARRAY = 11;
+	private static final byte TAG_LONG_ARRAY = 12;
+
+	private static final BlockState AIR = Blocks.AIR.getDefaultState();
+
+	/**
+	 * Gets the writer for the current thread.
+	 */
+	static ChunkNbtWriter get() {
+		return WRITERS.get();
+	}
+
+	private Buffer buffer = new Buffer();
+	private DataOutputStream out = new DataOutputStream(buffer);
+
+	// Scratch space for block state palettes
+	private final int[] paletteIndices = new int[4096];
+	private final Reference2IntOpenHashMap<BlockState> paletteIds = new Reference2IntOpenHashMap<>();
+	private final List<BlockState> palette = new ArrayList<>();
+
+	private ChunkNbtWriter() {
+		paletteIds.defaultReturnValue(-1);
+	}
+
+	/**
+	 * Encodes the given chunk, replacing anything previously written.
+	 *
+	 * @param snapshot     The chunk
+	 * @param tileEntities The final (imported and edited) tile entity list
+	 * @param dataVersion  The data version to record
+	 */
+	void write(ChunkSnapshot snapshot, ListTag tileEntities, int dataVersion) throws IOException {
+		if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+			buffer = new Buffer();
+			out = new DataOutputStream(buffer);
+		}
+		buffer.reset();
+
+		// Root compound
+		out.writeByte(TAG_COMPOUND);
+		out.writeUTF("");
+
+		startCompound("Level");
+		writeLevel(snapshot, tileEntities);
+		out.writeByte(TAG_END);
+
+		name(TAG_INT, "DataVersion");
+		out.writeInt(dataVersion);
+
+		out.writeByte(TAG_END);
+	}
+
+	/**
+	 * Number of bytes written by the last call to {@link #write}.
+	 */
+	int size() {
+		return buffer.size();
+	}
+
+	/**
+	 * Copies the last encoded chunk to the given stream.
+	 */
+	void writeTo(OutputStream stream) throws IOException {
+		buffer.writeTo(stream);
+	}
+
+	private void writeLevel(ChunkSnapshot snapshot, ListTag tileEntities) throws IOException {
+		name(TAG_INT, "xPos");
+		out.writeInt(snapshot.pos.x);
+		name(TAG_INT, "zPos");
+		out.writeInt(snapshot.pos.z);
+		name(TAG_LONG, "LastUpdate");
+		out.writeLong(snapshot.lastUpdate);
+		name(TAG_LONG, "InhabitedTime");
+		out.writeLong(snapshot.inhabitedTime);
+		name(TAG_STRING, "Status");
+		out.writeUTF(ChunkStatus.FULL.toString());
+
+		if (snapshot.upgradeData != null) {
+			tag("UpgradeData", snapshot.upgradeData);
+		}
+
+		writeSections(snapshot);
+
+		if (snapshot.lightOn) {
+			name(TAG_BYTE, "isLightOn");
+			out.writeByte(1);
+		}
+
+		int[] biomes = snapshot.getBiomes();
+		if (biomes != null) {
+			name(TAG_INT_ARRAY, "Biomes");
+			out.writeInt(biomes.length);
+			for (int biome : biomes) {
+				out.writeInt(biome);
+			}
+		}
+
+		tag("Entities", snapshot.entities);
+		tag("TileEntities", tileEntities);
+
+		short[][] postProcessing = snapshot.getPostProcessing();
+		startList("PostProcessing", TAG_LIST, postProcessing.length);
+		for (short[] list : postProcessing) {
+			if (list == null || list.length == 0) {
+				out.writeByte(TAG_END);
+				out.writeInt(0);
+			} else {
+				out.writeByte(TAG_SHORT);
+				out.writeInt(list.length);
+				for (short value : list) {
+					out.writeShort(value);
+				}
+			}
+		}
+
+		CompoundTag ticks = snapshot.getTicks();
+		for (String key : ticks.getKeys()) {
+			tag(key, ticks.get(key));
+		}
+
+		startCompound("Heightmaps");
+		for (Entry<String, long[]> entry : snapshot.getHeightmaps().entrySet()) {
+			writeLongArray(entry.getKey(), entry.getValue());
+		}
+		out.writeByte(TAG_END);
+	}
+
+	private void writeSections(ChunkSnapshot snapshot) throws IOException {
+		int count = 0;
+		for (int y = -1; y < 17; ++y) {
+			if (hasSection(snapshot, y)) {
+				count++;
+			}
+		}
+
+		startList("Sections", TAG_COMPOUND, count);
+		for (int y = -1; y < 17; ++y) {
+			if (!hasSection(snapshot, y)) {
+				continue;
+			}
+			ChunkSection chunkSection = (y >= 0 && y < 16 ? snapshot.getSection(y) : null);
+			ChunkNibbleArray blocklightArray = snapshot.getBlockLight(y);
+			ChunkNibbleArray skylightArray = snapshot.getSkyLight(y);
+
+			name(TAG_BYTE, "Y");
+			out.writeByte(y & 255);
+
+			if (chunkSection != null) {
+				writeBlockStates(chunkSection);
+			}
+
+			if (blocklightArray != null && !blocklightArray.isUninitialized()) {
+				writeByteArray("BlockLight", blocklightArray.asByteArray());
+			}
+
+			if (skylightArray != null && !skylightArray.isUninitialized()) {
+				writeByteArray("SkyLight", skylightArray.asByteArray());
+			}
+
+			out.writeByte(TAG_END);
+		}
+	}
+
+	private static boolean hasSection(ChunkSnapshot snapshot, int y) {
+		return (y >= 0 && y < 16 && snapshot.getSection(y) != null)
+				|| snapshot.getBlockLight(y) != null
+				|| snapshot.getSkyLight(y) != null;
+	}
+
+	/**
+	 * Writes the "Palette" and "BlockStates" entries for a section, matching
+	 * PalettedContainer.write: the palette only has the states that are
+	 * actually used (air first), and at least 4 bits are used per block.
+	 */
+	private void writeBlockStates(ChunkSection section) throws IOException {
+		paletteIds.clear();
+		palette.clear();
+		paletteIds.put(AIR, 0);
+		palette.add(AIR);
+
+		BlockState last = AIR;
+		int lastId = 0;
+		for (int i = 0; i < 4096; i++) {
+			BlockState state = section.getBlockState(i & 15, (i >> 8) & 15, (i >> 4) & 15);
+			if (state != last) {
+				last = state;
+				lastId = paletteIds.getInt(state);
+				if (lastId < 0) {
+					lastId = palette.size();
+					paletteIds.put(state, lastId);
+					palette.add(state);
+				}
+			}
+			paletteIndices[i] = lastId;
+		}
+
+		startList("Palette", TAG_COMPOUND, palette.size());
+		for (BlockState state : palette) {
+			writeBlockState(state);
+		}
+
+		int bits = Math.max(4, MathHelper.log2DeBruijn(palette.size()));
+		int perLong = 64 / bits;
+		int longs = (4096 + perLong - 1) / perLong;
+		name(TAG_LONG_ARRAY, "BlockStates");
+		out.writeInt(longs);
+		int i = 0;
+		for (int l = 0; l < longs; l++) {
+			long value = 0;
+			for (int j = 0; j < perLong && i < 4096; j++, i++) {
+				value |= ((long) paletteIndices[i]) << (j * bits);
+			}
+			out.writeLong(value);
+		}
+	}
+
+	/**
+	 * Same layout as NbtHelper.fromBlockState, without the intermediate tag.
+	 */
+	private void writeBlockState(BlockState state) throws IOException {
+		name(TAG_STRING, "Name");
+		out.writeUTF(Registry.BLOCK.getId(state.getBlock()).toString());
+
+		if (!state.getEntries().isEmpty()) {
+			startCompound("Properties");
+			for (Map.Entry<Property<?>, Comparable<?>> entry : state.getEntries().entrySet()) {
+				name(TAG_STRING, entry.getKey().getName());
+				out.writeUTF(nameValue(entry.getKey(), entry.getValue()));
+			}
+			out.writeByte(TAG_END);
+		}
+
+		out.writeByte(TAG_END);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Comparable<T>> String nameValue(Property<T> property, Comparable<?> value) {
+		return property.name((T) value);
+	}
+
+	private void name(byte type, String name) throws IOException {
+		out.writeByte(type);
+		out.writeUTF(name);
+	}
+
+	private void startCompound(String name) throws IOException {
+		name(TAG_COMPOUND, name);
+	}
+
+	private void startList(String name, byte elementType, int size) throws IOException {
+		name(TAG_LIST, name);
+		out.writeByte(size == 0 ? TAG_END : elementType);
+		out.writeInt(size);
+	}
+
+	private void tag(String name, Tag tag) throws IOException {
+		name(tag.getType(), name);
+		tag.write(out);
+	}
+
+	private void writeByteArray(String name, byte[] array) throws IOException {
+		name(TAG_BYTE_ARRAY, name);
+		out.writeInt(array.length);
+		out.write(array);
+	}
+
+	private void writeLongArray(String name, long[] array) throws IOException {
+		name(TAG_LONG_ARRAY, name);
+		out.writeInt(array.length);
+		for (long value : array) {
+			out.writeLong(value);
+		}
+	}
+
+	/**
+	 * ByteArrayOutputStream that exposes its array and capacity.
+	 */
+	private static final class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(64 * 1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+}
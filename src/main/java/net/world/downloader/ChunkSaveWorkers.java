@@ -0,0 +1,133 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * A small pool of threads which build and write chunks from
+ * {@link ChunkSnapshot}s, off of the client thread.
+ *
+ * The pool is split into single-threaded lanes, and a given chunk position is
+ * always handled by the same lane.  This means that if the same chunk is saved
+ * twice, the second save is always written after the first.
+ */
+public class ChunkSaveWorkers {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private final ExecutorService[] lanes;
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Creates and starts the workers.
+	 *
+	 * @param threads The number of threads (lanes) to use.
+	 */
+	public ChunkSaveWorkers(int threads) {
+		this(threads, "WDL Chunk Save Worker");
+	}
+
+	/**
+	 * Creates and starts the workers.
+	 *
+	 * @param threads The number of threads (lanes) to use.
+	 * @param name    The name of the threads, which are numbered after it.
+	 */
+	public ChunkSaveWorkers(int threads, String name) {
+		this.lanes = new ExecutorService[Math.max(1, threads)];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setNameFormat(name + " #" + (i + 1))
+					.setDaemon(true)
+					.build());
+		}
+	}
+
+	/**
+	 * Queues a task for the given chunk.
+	 *
+	 * @param pos  The chunk the task writes; used to pick the lane.
+	 * @param task The task.  Exceptions are logged but otherwise swallowed, so
+	 *             tasks should report their own failures.
+	 */
+	public void submit(ChunkPos pos, Runnable task) {
+		int lane = Math.floorMod(31 * pos.x + pos.z, lanes.length);
+		pending.incrementAndGet();
+		try {
+			lanes[lane].execute(() -> {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					LOGGER.warn("[WDL] Unhandled exception while saving chunk at " + pos, t);
+				} finally {
+					if (pending.decrementAndGet() == 0) {
+						synchronized (pending) {
+							pending.notifyAll();
+						}
+					}
+				}
+			});
+		} catch (RuntimeException ex) {
+			pending.decrementAndGet();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Gets the number of chunks which have been queued but not yet written.
+	 */
+	public int getNumPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Blocks until every queued task has finished.
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		synchronized (pending) {
+			while (pending.get() > 0) {
+				pending.wait(100);
+			}
+		}
+	}
+
+	/**
+	 * Finishes all queued tasks and then stops the threads.
+	 */
+	public void shutdown() {
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+		try {
+			for (ExecutorService lane : lanes) {
+				if (!lane.awaitTermination(1, TimeUnit.MINUTES)) {
+					LOGGER.warn("[WDL] Timed out waiting for chunk save worker to finish");
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			LOGGER.warn("[WDL] Interrupted while waiting for chunk save workers", ex);
+		}
+	}
+}
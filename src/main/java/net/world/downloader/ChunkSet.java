@@ -0,0 +1,196 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * A set of chunk positions, stored as one 32x32 bitmap per region (keyed by
+ * the region's {@link ChunkPos#toLong packed position}).  A region's chunks
+ * take 128 bytes however many of them are in the set, and checking for a
+ * chunk doesn't allocate anything.
+ *
+ * Thread-safe: chunks are added as they are saved, and read every frame by
+ * the saved chunks GUI.
+ */
+public class ChunkSet {
+	private static final int REGION_WORDS = 32 * 32 / 64;
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Receives the chunks of the set from {@link ChunkSet#forEach}.
+	 */
+	@FunctionalInterface
+	public static interface ChunkConsumer {
+		void accept(int x, int z);
+	}
+
+	// Guarded by this
+	private final Long2ObjectOpenHashMap<long[]> regions = new Long2ObjectOpenHashMap<>();
+	private int size;
+
+	/**
+	 * Adds the given chunk.
+	 *
+	 * @return True if the chunk wasn't already in the set.
+	 */
+	public synchronized boolean add(int x, int z) {
+		long key = ChunkPos.toLong(x >> 5, z >> 5);
+		long[] bits = regions.get(key);
+		if (bits == null) {
+			bits = new long[REGION_WORDS];
+			regions.put(key, bits);
+		}
+		int index = getIndex(x, z);
+		long mask = 1L << index;
+		if ((bits[index >> 6] & mask) != 0) {
+			return false;
+		}
+		bits[index >> 6] |= mask;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Adds the given chunk.
+	 *
+	 * @return True if the chunk wasn't already in the set.
+	 */
+	public boolean add(ChunkPos pos) {
+		return add(pos.x, pos.z);
+	}
+
+	/**
+	 * Checks if the given chunk is in the set.
+	 */
+	public synchronized boolean contains(int x, int z) {
+		long[] bits = regions.get(ChunkPos.toLong(x >> 5, z >> 5));
+		if (bits == null) {
+			return false;
+		}
+		int index = getIndex(x, z);
+		return (bits[index >> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Checks if the given chunk is in the set.
+	 */
+	public boolean contains(ChunkPos pos) {
+		return contains(pos.x, pos.z);
+	}
+
+	/**
+	 * Passes every chunk in the set to the given consumer, region by region.
+	 * The set can't be changed until this returns, so the consumer should be
+	 * quick.
+	 */
+	public synchronized void forEach(ChunkConsumer consumer) {
+		for (Long2ObjectMap.Entry<long[]> e : Long2ObjectMaps.fastIterable(regions)) {
+			long key = e.getLongKey();
+			int baseX = ChunkPos.getPackedX(key) << 5;
+			int baseZ = ChunkPos.getPackedZ(key) << 5;
+			long[] bits = e.getValue();
+			for (int word = 0; word < REGION_WORDS; word++) {
+				long remaining = bits[word];
+				while (remaining != 0) {
+					int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+					remaining &= remaining - 1;
+					consumer.accept(baseX + (index & 31), baseZ + (index >> 5));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes every chunk.
+	 */
+	public synchronized void clear() {
+		regions.clear();
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of chunks in the set.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of regions with chunks in the set.
+	 */
+	public synchronized int getNumRegions() {
+		return regions.size();
+	}
+
+	/**
+	 * Writes the set, as its version, the number of regions, and each region's
+	 * coordinates and bitmap.
+	 */
+	public synchronized void write(DataOutput output) throws IOException {
+		output.writeInt(FORMAT_VERSION);
+		output.writeInt(regions.size());
+		for (Long2ObjectMap.Entry<long[]> e : Long2ObjectMaps.fastIterable(regions)) {
+			output.writeInt(ChunkPos.getPackedX(e.getLongKey()));
+			output.writeInt(ChunkPos.getPackedZ(e.getLongKey()));
+			for (long word : e.getValue()) {
+				output.writeLong(word);
+			}
+		}
+	}
+
+	/**
+	 * Adds every chunk in a set {@link #write written} previously.
+	 */
+	public synchronized void read(DataInput input) throws IOException {
+		int version = input.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported chunk set version " + version);
+		}
+		int count = input.readInt();
+		for (int i = 0; i < count; i++) {
+			long key = ChunkPos.toLong(input.readInt(), input.readInt());
+			long[] bits = regions.get(key);
+			if (bits == null) {
+				bits = new long[REGION_WORDS];
+				regions.put(key, bits);
+			}
+			for (int word = 0; word < REGION_WORDS; word++) {
+				long added = input.readLong() & ~bits[word];
+				bits[word] |= added;
+				size += Long.bitCount(added);
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ChunkSet [regions=" + regions.size() + ", chunks=" + size + "]";
+	}
+
+	/**
+	 * Gets the index of the given chunk within its region's bitmap, which is
+	 * the same as its index in the region file's header.
+	 */
+	private static int getIndex(int x, int z) {
+		return (x & 31) + (z & 31) * 32;
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nullable;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.shorts.ShortList;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.world.ServerTickScheduler;
+import net.minecraft.server.world.SimpleTickScheduler;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.ChunkTickScheduler;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.LightType;
+import net.minecraft.world.World;
+import net.minecraft.world.biome.source.BiomeArray;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkNibbleArray;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.ProtoChunk;
+import net.minecraft.world.chunk.UpgradeData;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.LightingProvider;
+
+/**
+ * An immutable copy of everything needed to write a chunk to disk.
+ *
+ * Taking a snapshot is cheap (it only copies arrays), and must be done on the
+ * thread that owns the chunk.  Everything else (building the NBT, importing
+ * old tile entities, and writing) can then be done on any thread, as the
+ * snapshot shares no mutable state with the world.
+ */
+public final class ChunkSnapshot {
+	/**
+	 * Number of light sections stored, from y = -1 to y = 16 inclusive.
+	 */
+	static final int LIGHT_SECTION_COUNT = 18;
+
+	/**
+	 * Scratch buffer used for copying chunk sections; sections are copied by
+	 * writing them as they would be sent over the network and reading them back.
+	 */
+	private static final ThreadLocal<PacketByteBuf> SECTION_BUFFER =
+			ThreadLocal.withInitial(() -> new PacketByteBuf(Unpooled.buffer()));
+
+	public final ChunkPos pos;
+	public final long lastUpdate;
+	public final long inhabitedTime;
+	public final boolean lightOn;
+	@Nullable
+	public final CompoundTag upgradeData;
+	/**
+	 * Copies of the chunk's sections, indexed by section y (0-15).  Entries are
+	 * null for empty sections.
+	 */
+	private final ChunkSection[] sections;
+	/**
+	 * Copies of the light data, indexed by section y + 1.  Entries are null if
+	 * the lighting provider had no data for that section.
+	 */
+	private final ChunkNibbleArray[] blockLight, skyLight;
+	@Nullable
+	private final int[] biomes;
+	private final Map<String, long[]> heightmaps;
+	private final short[][] postProcessing;
+	/**
+	 * Tick scheduler data, already in its final form (keyed by tag name).
+	 */
+	private final CompoundTag ticks;
+
+	/** Entities, already serialized (and edited) on the owning thread. */
+	public final ListTag entities;
+	/** Whether tile entities can be saved in this chunk at all. */
+	public final boolean canSaveTileEntities;
+	/** Tile entities manually saved by WDL (e.g. opened containers), by position. */
+	public final Map<BlockPos, CompoundTag> newTileEntities;
+	/** Tile entities that were present in the chunk itself, by position. */
+	public final Map<BlockPos, CompoundTag> chunkTileEntities;
+	/**
+	 * The {@link net.world.downloader.storage.CaptureJournal#mark capture
+	 * journal's mark} when the snapshot was taken, or -1 if there is no
+	 * journal.
+	 */
+	public final long captureMark;
+
+	@Nullable
+	private Chunk view;
+
+	private ChunkSnapshot(Builder builder) {
+		this.pos = builder.pos;
+		this.lastUpdate = builder.lastUpdate;
+		this.inhabitedTime = builder.inhabitedTime;
+		this.lightOn = builder.lightOn;
+		this.upgradeData = builder.upgradeData;
+		this.sections = builder.sections;
+		this.blockLight = builder.blockLight;
+		this.skyLight = builder.skyLight;
+		this.biomes = builder.biomes;
+		this.heightmaps = Collections.unmodifiableMap(builder.heightmaps);
+		this.postProcessing = builder.postProcessing;
+		this.ticks = builder.ticks;
+		this.entities = builder.entities;
+		this.canSaveTileEntities = builder.canSaveTileEntities;
+		this.newTileEntities = Collections.unmodifiableMap(builder.newTileEntities);
+		this.chunkTileEntities = Collections.unmodifiableMap(builder.chunkTileEntities);
+		this.captureMark = builder.captureMark;
+	}
+
+	/**
+	 * Gets the copy of the section at the given section y (0-15).
+	 *
+	 * @return The section, or null if it is empty.
+	 */
+	@Nullable
+	public ChunkSection getSection(int y) {
+		return sections[y];
+	}
+
+	/**
+	 * Gets the block light for the given section y (-1 to 16).
+	 */
+	@Nullable
+	public ChunkNibbleArray getBlockLight(int y) {
+		return blockLight[y + 1];
+	}
+
+	/**
+	 * Gets the sky light for the given section y (-1 to 16).
+	 */
+	@Nullable
+	public ChunkNibbleArray getSkyLight(int y) {
+		return skyLight[y + 1];
+	}
+
+	@Nullable
+	public int[] getBiomes() {
+		return biomes;
+	}
+
+	public Map<String, long[]> getHeightmaps() {
+		return heightmaps;
+	}
+
+	public short[][] getPostProcessing() {
+		return postProcessing;
+	}
+
+	/**
+	 * Gets the tick scheduler data, keyed by tag name.  Must not be modified.
+	 */
+	CompoundTag getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Writes the tick scheduler data into the given level compound.
+	 */
+	public void writeTicks(CompoundTag levelTag) {
+		for (String key : ticks.getKeys()) {
+			levelTag.put(key, ticks.get(key).copy());
+		}
+	}
+
+	/**
+	 * Gets a read-only chunk backed by the copied sections, for code (such as
+	 * {@link net.world.downloader.api.ITileEntityImportationIdentifier}s) that
+	 * needs to look at blocks.
+	 *
+	 * Block entities are lazily recreated from {@link #chunkTileEntities}.
+	 */
+	public synchronized Chunk getView() {
+		if (view == null) {
+			ProtoChunk chunk = new ProtoChunk(pos, UpgradeData.NO_UPGRADE_DATA) {
+				private final Map<BlockPos, BlockEntity> created = new HashMap<>();
+
+				@Override
+				@Nullable
+				public BlockEntity getBlockEntity(BlockPos pos) {
+					CompoundTag tag = chunkTileEntities.get(pos);
+					if (tag == null) {
+						return null;
+					}
+					return created.computeIfAbsent(pos.toImmutable(),
+							p -> BlockEntity.createFromTag(getBlockState(p), tag));
+				}
+			};
+			ChunkSection[] target = chunk.getSectionArray();
+			for (int y = 0; y < sections.length && y < target.length; y++) {
+				if (sections[y] != null) {
+					target[y] = sections[y];
+				}
+			}
+			view = chunk;
+		}
+		return view;
+	}
+
+	/**
+	 * Starts a snapshot of the given chunk, copying its blocks, light, biomes
+	 * and heightmaps.  Must be called on the thread that owns the chunk.
+	 *
+	 * @param c The chunk to copy
+	 * @param world The world the chunk is in, for lighting and the current time.
+	 */
+	static Builder builder(Chunk c, World world) {
+		return new Builder(c, world);
+	}
+
+	/**
+	 * Collects the data for a snapshot.  The entity and tile entity parts are
+	 * supplied by the chunk loader, as they depend on WDL's saved data.
+	 */
+	static final class Builder {
+		private final ChunkPos pos;
+		private final long lastUpdate;
+		private final long inhabitedTime;
+		private final boolean lightOn;
+		@Nullable
+		private final CompoundTag upgradeData;
+		private final ChunkSection[] sections = new ChunkSection[16];
+		private final ChunkNibbleArray[] blockLight = new ChunkNibbleArray[LIGHT_SECTION_COUNT];
+		private final ChunkNibbleArray[] skyLight = new ChunkNibbleArray[LIGHT_SECTION_COUNT];
+		@Nullable
+		private final int[] biomes;
+		private final Map<String, long[]> heightmaps = new HashMap<>();
+		private final short[][] postProcessing;
+		private final CompoundTag ticks = new CompoundTag();
+
+		private ListTag entities = new ListTag();
+		private boolean canSaveTileEntities;
+		private Map<BlockPos, CompoundTag> newTileEntities = Collections.emptyMap();
+		private Map<BlockPos, CompoundTag> chunkTileEntities = Collections.emptyMap();
+		private long captureMark = -1;
+
+		private Builder(Chunk c, World world) {
+			this.pos = c.getPos();
+			this.lastUpdate = world.getTime();
+			this.inhabitedTime = c.getInhabitedTime();
+			this.lightOn = c.isLightOn();
+
+			UpgradeData upgradedata = c.getUpgradeData();
+			this.upgradeData = upgradedata.isDone() ? null : upgradedata.toTag();
+
+			PacketByteBuf buf = SECTION_BUFFER.get();
+			for (ChunkSection section : c.getSectionArray()) {
+				if (section == null || section == WorldChunk.EMPTY_SECTION) {
+					continue;
+				}
+				int y = section.getYOffset() >> 4;
+				if (y < 0 || y >= sections.length) {
+					continue;
+				}
+				buf.clear();
+				section.toPacket(buf);
+				ChunkSection copy = new ChunkSection(section.getYOffset());
+				copy.fromPacket(buf);
+				sections[y] = copy;
+			}
+
+			// XXX: VersionedFunctions.hasSkyLight is inapplicable here presumably, but it might still need to be used somehow
+			LightingProvider lighting = world.getChunkManager().getLightingProvider();
+			for (int y = -1; y < LIGHT_SECTION_COUNT - 1; y++) {
+				ChunkSectionPos sectionPos = ChunkSectionPos.from(pos, y);
+				ChunkNibbleArray block = lighting.get(LightType.BLOCK).getLightSection(sectionPos);
+				ChunkNibbleArray sky = lighting.get(LightType.SKY).getLightSection(sectionPos);
+				blockLight[y + 1] = (block != null ? block.copy() : null);
+				skyLight[y + 1] = (sky != null ? sky.copy() : null);
+			}
+
+			BiomeArray biomeArray = c.getBiomeArray();
+			this.biomes = (biomeArray != null ? biomeArray.toIntArray() : null);
+
+			for (Entry<Heightmap.Type, Heightmap> entry : c.getHeightmaps()) {
+				if (c.getStatus().getHeightmapTypes().contains(entry.getKey())) {
+					heightmaps.put(entry.getKey().getName(), entry.getValue().asLongArray().clone());
+				}
+			}
+
+			ShortList[] lists = c.getPostProcessingLists();
+			this.postProcessing = new short[lists.length][];
+			for (int i = 0; i < lists.length; i++) {
+				postProcessing[i] = (lists[i] != null ? lists[i].toShortArray() : null);
+			}
+
+			// XXX: Note: This was re-sorted on mojang's end; I've undone that.
+			if (world.getBlockTickScheduler() instanceof ServerTickScheduler) {
+				ticks.put("TileTicks", ((ServerTickScheduler<?>) world.getBlockTickScheduler())
+						.toTag(pos));
+			}
+			if (world.getFluidTickScheduler() instanceof ServerTickScheduler) {
+				ticks.put("LiquidTicks", ((ServerTickScheduler<?>) world.getFluidTickScheduler())
+						.toTag(pos));
+			}
+			if (c.getBlockTickScheduler() instanceof ChunkTickScheduler) {
+				ticks.put("ToBeTicked", ((ChunkTickScheduler<?>) c.getBlockTickScheduler()).toNbt());
+			}
+			// XXX: These are new, and they might conflict with the other one.  Not sure which should be used.
+			if (c.getBlockTickScheduler() instanceof SimpleTickScheduler) {
+				ticks.put("TileTicks", ((SimpleTickScheduler<?>) c.getBlockTickScheduler()).toNbt());
+			}
+			if (c.getFluidTickScheduler() instanceof ChunkTickScheduler) {
+				ticks.put("LiquidsToBeTicked", ((ChunkTickScheduler<?>) c.getFluidTickScheduler())
+						.toNbt());
+			}
+			if (c.getFluidTickScheduler() instanceof SimpleTickScheduler) {
+				ticks.put("LiquidTicks", ((SimpleTickScheduler<?>) c.getFluidTickScheduler()).toNbt());
+			}
+		}
+
+		Builder entities(ListTag entities) {
+			this.entities = entities;
+			return this;
+		}
+
+		Builder tileEntities(boolean canSave, Map<BlockPos, CompoundTag> newTileEntities,
+				Map<BlockPos, CompoundTag> chunkTileEntities) {
+			this.canSaveTileEntities = canSave;
+			this.newTileEntities = newTileEntities;
+			this.chunkTileEntities = chunkTileEntities;
+			return this;
+		}
+
+		Builder captureMark(long captureMark) {
+			this.captureMark = captureMark;
+			return this;
+		}
+
+		ChunkSnapshot build() {
+			return new ChunkSnapshot(this);
+		}
+	}
+}
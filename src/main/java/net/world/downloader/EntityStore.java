@@ -0,0 +1,221 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * The entities that WDL has saved manually (when they were removed from the
+ * client's world), as the NBT they had at the time.  Entities are indexed
+ * both by UUID and by {@link ChunkPos#toLong packed chunk position}, so an
+ * entity is only ever kept in the chunk it was last seen in, and moving,
+ * replacing or evicting one doesn't need to scan its chunk.
+ *
+ * An entity's position is remembered even while its NBT is
+ * {@link #detachChunk detached} (for instance, spilled to disk by the
+ * {@link CaptureSpiller}), so that a detached copy is not put back if the
+ * entity has been seen again since.
+ *
+ * Thread-safe: entities are saved on the client thread, but may be read by
+ * chunk save workers.
+ */
+public class EntityStore {
+	private static final class Entry {
+		final UUID uuid;
+		final long chunk;
+		/** Null while detached. */
+		@Nullable
+		CompoundTag tag;
+
+		Entry(UUID uuid, long chunk, @Nullable CompoundTag tag) {
+			this.uuid = uuid;
+			this.chunk = chunk;
+			this.tag = tag;
+		}
+	}
+
+	// Guarded by this
+	private final Map<UUID, Entry> byUuid = new HashMap<>();
+	/** Entries of each chunk, in the order they were saved. */
+	private final Long2ObjectOpenHashMap<Map<UUID, Entry>> byChunk = new Long2ObjectOpenHashMap<>();
+	/** Number of entries that aren't detached. */
+	private int size;
+
+	/**
+	 * Saves the given entity in the given chunk, replacing any copy of it
+	 * already saved, in this chunk or another.
+	 *
+	 * @return The chunk the entity was previously saved in, or null if it
+	 *         hadn't been saved.
+	 */
+	@Nullable
+	public synchronized ChunkPos put(ChunkPos pos, UUID uuid, CompoundTag tag) {
+		Entry previous = remove(uuid);
+		link(new Entry(uuid, pos.toLong(), tag));
+		return previous != null ? new ChunkPos(previous.chunk) : null;
+	}
+
+	/**
+	 * Gets the entities saved in the given chunk, not counting detached ones.
+	 *
+	 * @return A copy of the entities, in the order they were saved.
+	 */
+	public synchronized List<CompoundTag> getChunk(ChunkPos pos) {
+		Map<UUID, Entry> entries = byChunk.get(pos.toLong());
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		List<CompoundTag> result = new ArrayList<>(entries.size());
+		for (Entry entry : entries.values()) {
+			if (entry.tag != null) {
+				result.add(entry.tag);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the chunk the given entity was last saved in, even if it is
+	 * detached.
+	 */
+	@Nullable
+	public synchronized ChunkPos getPosition(UUID uuid) {
+		Entry entry = byUuid.get(uuid);
+		return entry != null ? new ChunkPos(entry.chunk) : null;
+	}
+
+	/**
+	 * Removes and returns the entities saved in the given chunk, while still
+	 * remembering that they are in that chunk.  They can be put back with
+	 * {@link #reattach}.
+	 */
+	public synchronized List<CompoundTag> detachChunk(ChunkPos pos) {
+		Map<UUID, Entry> entries = byChunk.get(pos.toLong());
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		List<CompoundTag> result = new ArrayList<>(entries.size());
+		for (Entry entry : entries.values()) {
+			if (entry.tag != null) {
+				result.add(entry.tag);
+				entry.tag = null;
+				size--;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Puts back a detached entity, unless it has been saved again since it
+	 * was detached (or its chunk has been removed).
+	 *
+	 * @return True if the entity was put back.
+	 */
+	public synchronized boolean reattach(ChunkPos pos, UUID uuid, CompoundTag tag) {
+		Entry entry = byUuid.get(uuid);
+		if (entry == null || entry.chunk != pos.toLong() || entry.tag != null) {
+			return false;
+		}
+		entry.tag = tag;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Forgets every entity saved in the given chunk, including detached ones.
+	 */
+	public synchronized void removeChunk(ChunkPos pos) {
+		Map<UUID, Entry> entries = byChunk.remove(pos.toLong());
+		if (entries == null) {
+			return;
+		}
+		for (Entry entry : entries.values()) {
+			byUuid.remove(entry.uuid);
+			if (entry.tag != null) {
+				size--;
+			}
+		}
+	}
+
+	/**
+	 * Forgets every entity.
+	 */
+	public synchronized void clear() {
+		byUuid.clear();
+		byChunk.clear();
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of saved entities, not counting detached ones.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of chunks with saved (or detached) entities.
+	 */
+	public synchronized int getNumChunks() {
+		return byChunk.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EntityStore [chunks=" + byChunk.size() + ", entities=" + size
+				+ ", detached=" + (byUuid.size() - size) + "]";
+	}
+
+	private void link(Entry entry) {
+		byUuid.put(entry.uuid, entry);
+		Map<UUID, Entry> entries = byChunk.get(entry.chunk);
+		if (entries == null) {
+			entries = new LinkedHashMap<>();
+			byChunk.put(entry.chunk, entries);
+		}
+		entries.put(entry.uuid, entry);
+		if (entry.tag != null) {
+			size++;
+		}
+	}
+
+	@Nullable
+	private Entry remove(UUID uuid) {
+		Entry entry = byUuid.remove(uuid);
+		if (entry == null) {
+			return null;
+		}
+		Map<UUID, Entry> entries = byChunk.get(entry.chunk);
+		entries.remove(uuid);
+		if (entries.isEmpty()) {
+			byChunk.remove(entry.chunk);
+		}
+		if (entry.tag != null) {
+			size--;
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.world.downloader.utils.VersionedFunctions;
+
+/**
+ * A backup of a world that is made lazily while downloading: each file is
+ * copied into the backup folder just before WDL first changes it, so that the
+ * cost depends on what the download touches rather than on the size of the
+ * world.
+ *
+ * The backup folder has the same layout as the world folder, but only
+ * contains the original versions of the files that were changed; copying it
+ * over the world restores those files.  Files that didn't exist before the
+ * download aren't recorded.
+ */
+public class LazyWorldBackup {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private final Path worldFolder;
+	private final Path destination;
+	private final String worldName;
+
+	/** Paths (relative to the world folder) that have already been handled. */
+	private final Set<Path> handled = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger copied = new AtomicInteger();
+	private final AtomicInteger linked = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @param worldFolder The folder of the world being backed up.
+	 * @param destination The folder to put the backed up files in.
+	 * @param worldName   The name of the world, for the toast shown when done.
+	 */
+	public LazyWorldBackup(File worldFolder, File destination, String worldName) {
+		this.worldFolder = worldFolder.toPath().toAbsolutePath().normalize();
+		this.destination = destination.toPath();
+		this.worldName = worldName;
+	}
+
+	/**
+	 * Backs up the given file, if it hasn't been already, before it is
+	 * modified in place.  Files outside the world folder are ignored.
+	 */
+	public void beforeWrite(File file) throws IOException {
+		backUp(file, false);
+	}
+
+	/**
+	 * Backs up the given file, if it hasn't been already, before it is
+	 * replaced with a new file (or moved away).  As the original file itself
+	 * won't be changed, it is hard linked rather than copied where possible.
+	 */
+	public void beforeReplace(File file) throws IOException {
+		backUp(file, true);
+	}
+
+	private void backUp(File file, boolean replaced) throws IOException {
+		Path source = file.toPath().toAbsolutePath().normalize();
+		if (!source.startsWith(worldFolder)) {
+			return;
+		}
+		Path relative = worldFolder.relativize(source);
+		if (handled.contains(relative)) {
+			return;
+		}
+		synchronized (this) {
+			if (handled.contains(relative)) {
+				return;
+			}
+			if (Files.isRegularFile(source)) {
+				Path target = destination.resolve(relative);
+				Files.createDirectories(target.getParent());
+				long size = Files.size(source);
+				if (replaced && tryLink(target, source)) {
+					linked.incrementAndGet();
+				} else {
+					Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+					Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.COPY_ATTRIBUTES);
+					Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+					copied.incrementAndGet();
+				}
+				bytes.addAndGet(size);
+			}
+			// Only marked once backed up, so that a failed copy is retried
+			// (and the write it precedes fails); a file that didn't exist is
+			// marked too, so that WDL's own version of it is never backed up.
+			handled.add(relative);
+		}
+	}
+
+	private static boolean tryLink(Path target, Path source) {
+		try {
+			Files.deleteIfExists(target);
+			Files.createLink(target, source);
+			return true;
+		} catch (IOException | UnsupportedOperationException | SecurityException ex) {
+			// Not supported by this file system; copy instead
+			return false;
+		}
+	}
+
+	/**
+	 * Called once the download is done; reports the size of the backup.
+	 */
+	public void finish() {
+		LOGGER.info("[WDL] Lazy backup of " + worldName + " finished: " + this);
+		if (copied.get() + linked.get() > 0) {
+			VersionedFunctions.makeBackupToast(worldName, bytes.get());
+		}
+	}
+
+	/**
+	 * Gets the folder the backed up files are put in.
+	 */
+	public File getDestination() {
+		return destination.toFile();
+	}
+
+	@Override
+	public String toString() {
+		return "LazyWorldBackup [destination=" + destination + ", copied=" + copied
+				+ ", linked=" + linked + ", bytes=" + bytes + "]";
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader;
+
+import javax.annotation.Nullable;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * The tile entities that WDL has saved manually (for instance, containers
+ * that have been opened), by chunk and then position.  Tile entities are kept
+ * as the NBT they had when they were saved, rather than as live objects that
+ * would keep the world they came from alive.  Both levels are keyed by
+ * packed longs ({@link ChunkPos#toLong} and {@link BlockPos#asLong}), so that
+ * saving a tile entity doesn't need to allocate a ChunkPos.
+ *
+ * Not thread-safe; guarded by {@link WDL#captureLock}.
+ */
+public class TileEntityStore {
+	private final Long2ObjectOpenHashMap<Long2ObjectOpenHashMap<CompoundTag>> chunks =
+			new Long2ObjectOpenHashMap<>();
+	private int size;
+
+	/**
+	 * Saves the given tile entity, replacing any already saved at the same
+	 * position.
+	 */
+	public void put(BlockPos pos, CompoundTag tag) {
+		long chunk = ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4);
+		Long2ObjectOpenHashMap<CompoundTag> tileEntities = chunks.get(chunk);
+		if (tileEntities == null) {
+			tileEntities = new Long2ObjectOpenHashMap<>();
+			chunks.put(chunk, tileEntities);
+		}
+		if (tileEntities.put(pos.asLong(), tag) == null) {
+			size++;
+		}
+	}
+
+	/**
+	 * Gets the tile entities saved in the given chunk, keyed by
+	 * {@link BlockPos#asLong packed position}.
+	 *
+	 * @return An unmodifiable view of the tile entities, or an empty map.
+	 */
+	public Long2ObjectMap<CompoundTag> getChunk(ChunkPos pos) {
+		Long2ObjectOpenHashMap<CompoundTag> tileEntities = chunks.get(pos.toLong());
+		if (tileEntities == null) {
+			return Long2ObjectMaps.emptyMap();
+		}
+		return Long2ObjectMaps.unmodifiable(tileEntities);
+	}
+
+	/**
+	 * Gets the tile entity saved at the given position.
+	 */
+	@Nullable
+	public CompoundTag get(BlockPos pos) {
+		Long2ObjectOpenHashMap<CompoundTag> tileEntities =
+				chunks.get(ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4));
+		return tileEntities != null ? tileEntities.get(pos.asLong()) : null;
+	}
+
+	/**
+	 * Discards the tile entities saved in the given chunk.
+	 */
+	public void removeChunk(ChunkPos pos) {
+		Long2ObjectOpenHashMap<CompoundTag> tileEntities = chunks.remove(pos.toLong());
+		if (tileEntities != null) {
+			size -= tileEntities.size();
+		}
+	}
+
+	/**
+	 * Discards every saved tile entity.
+	 */
+	public void clear() {
+		chunks.clear();
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of saved tile entities.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of chunks with saved tile entities.
+	 */
+	public int getNumChunks() {
+		return chunks.size();
+	}
+
+	@Override
+	public String toString() {
+		return "TileEntityStore [chunks=" + getNumChunks() + ", tileEntities=" + size() + "]";
+	}
+}
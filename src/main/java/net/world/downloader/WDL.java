@@ -23,25 +23,20 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 
-import net.minecraft.block.AirBlock;
-import net.minecraft.block.BedBlock;
-import net.minecraft.block.Block;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayNetworkHandler;
@@ -69,9 +64,6 @@ import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.GameRules;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
-import net.minecraft.world.chunk.ChunkSection;
-import net.minecraft.world.chunk.EmptyChunk;
-import net.minecraft.world.chunk.WorldChunk;
 import net.world.downloader.WorldBackup.WorldBackupType;
 import net.world.downloader.api.APIImpl;
 //import net.minecraft.world.storage.SaveHandler;
@@ -93,6 +85,7 @@ import net.world.downloader.gui.screens.GuiWDLMultiworld;
 import net.world.downloader.gui.screens.GuiWDLMultiworldSelect;
 import net.world.downloader.gui.screens.GuiWDLOverwriteChanges;
 import net.world.downloader.gui.screens.GuiWDLSaveProgress;
+import net.world.downloader.storage.IoPool;
 import net.world.downloader.utils.ReflectionUtils;
 import net.world.downloader.utils.VersionedFunctions;
 
@@ -173,20 +166,36 @@ public class WDL {
 	 * For player files and the level.dat file.
 	 */
 	public ISaveHandlerWrapper saveHandler;
+	/**
+	 * The backup that files are copied into before they are first changed, if
+	 * the user chose a lazy backup; null otherwise.
+	 */
+	@Nullable
+	public LazyWorldBackup lazyBackup;
 	/**
 	 * For the chunks (despite the name it does also SAVE chunks)
 	 */
 	public WDLChunkLoader chunkLoader;
 
+	/**
+	 * Guards {@link #newTileEntities}, {@link #newEntities} and
+	 * {@link #newMapDatas}.  These are changed on the client thread as things
+	 * are captured, but are also read by the save thread (when it snapshots
+	 * chunks and saves maps), so they must only be used while holding this.
+	 */
+	public final Object captureLock = new Object();
+
 	/**
 	 * All tile entities that were saved manually, by chunk and then position.
 	 */
-	public Map<ChunkPos, Map<BlockPos, BlockEntity>> newTileEntities = new HashMap<>();
+	public final TileEntityStore newTileEntities = new TileEntityStore();
 
 	/**
-	 * All entities that were downloaded, by chunk.
+	 * All entities that were downloaded, by chunk and UUID, as the NBT they had
+	 * when they were removed from the client's world.  Each entity is only kept
+	 * in the chunk it was last seen in, so it isn't written into several chunks.
 	 */
-	public Multimap<ChunkPos, Entity> newEntities = HashMultimap.create();
+	public final EntityStore newEntities = new EntityStore();
 
 	/**
 	 * All of the {@link MapData}s that were sent to the client in the current
@@ -195,16 +204,15 @@ public class WDL {
 	public Map<Integer, MapState> newMapDatas = new HashMap<>();
 
 	/**
-	 * The chunk position of each entity that has been saved, by UUID.
-	 * Cleared after that chunk has been written to disk.  Used to avoid
-	 * writing the same entity into multiple chunks.
+	 * All chunks that have been saved, for use in a UI.
 	 */
-	public Map<UUID, ChunkPos> entityPositions = new HashMap<>();
+	public final ChunkSet savedChunks = new ChunkSet();
 
 	/**
-	 * All chunks that have been saved, for use in a UI.
+	 * Content hashes of the chunks written to the current dimension, used to
+	 * skip writing chunks that haven't changed.
 	 */
-	public Set<ChunkPos> savedChunks = new HashSet<>();
+	public final ChunkFingerprints chunkFingerprints = new ChunkFingerprints();
 
 	// State variables:
 	/**
@@ -475,13 +483,19 @@ public class WDL {
 		minecraft.openScreen(null);
 
 		chunkLoader = WDLChunkLoader.create(this, saveHandler, VersionedFunctions.getDimension(worldClient));
-		newTileEntities.values().forEach((m) -> {
-			m.clear();
-		});
-		newTileEntities.clear();
-		newEntities.clear();
-		newMapDatas.clear();
+		synchronized (captureLock) {
+			newTileEntities.clear();
+			newEntities.clear();
+			newMapDatas.clear();
+		}
 		savedChunks.clear();
+		chunkFingerprints.clear();
+		chunkFingerprints.resetCounters();
+		int recovered = chunkLoader.recoverCaptures();
+		if (recovered > 0) {
+			WDLMessages.chatMessageTranslated(WDL.serverProps,
+					WDLMessageTypes.INFO, "wdl.messages.generalInfo.capturesRecovered", recovered);
+		}
 
 		startOnChange = true;
 		downloading = true;
@@ -510,6 +524,8 @@ public class WDL {
 		boolean wasDownloading = downloading;
 
 		if (wasDownloading) {
+			// Nothing captured is wanted any more
+			chunkLoader.truncateCaptureJournal();
 			try {
 				chunkLoader.close();
 			} catch (IOException ex) {
@@ -526,6 +542,7 @@ public class WDL {
 			saving = false;
 			downloading = false;
 			worldLoadingDeferred = false;
+			finishLazyBackup();
 
 			WDLMessages.chatMessageTranslated(WDL.serverProps,
 					WDLMessageTypes.INFO, "wdl.messages.generalInfo.downloadCanceled");
@@ -651,10 +668,40 @@ public class WDL {
 			return;
 		}
 
+		finishLazyBackup();
+
 		WDLMessages.chatMessageTranslated(WDL.serverProps,
 				WDLMessageTypes.INFO, "wdl.messages.generalInfo.saveComplete.done");
 	}
 
+	/**
+	 * Finishes the {@link #lazyBackup}, if there is one.
+	 */
+	private void finishLazyBackup() {
+		if (lazyBackup != null) {
+			lazyBackup.finish();
+			lazyBackup = null;
+		}
+	}
+
+	/**
+	 * Backs up the given file with the {@link #lazyBackup}, if there is one,
+	 * before it is first changed.
+	 *
+	 * @param replaced True if the file is replaced with a new one, rather than
+	 *                 being modified in place.
+	 */
+	private void backUpBeforeWrite(File file, boolean replaced) throws IOException {
+		if (lazyBackup == null) {
+			return;
+		}
+		if (replaced) {
+			lazyBackup.beforeReplace(file);
+		} else {
+			lazyBackup.beforeWrite(file);
+		}
+	}
+
 	/**
 	 * Saves all remaining chunks, world info and player info. Usually called
 	 * when stopping.
@@ -667,10 +714,12 @@ public class WDL {
 		}
 
 		WorldBackupType backupType = serverProps.getValue(MiscSettings.BACKUP_TYPE);
+		boolean compactRegions = serverProps.getValue(MiscSettings.COMPACT_REGIONS);
 
 		final GuiWDLSaveProgress progressScreen = new GuiWDLSaveProgress(this,
 				new TranslatableText("wdl.saveProgress.title"),
 				(backupType != WorldBackupType.NONE ? 6 : 5)
+				+ (compactRegions ? 1 : 0)
 				+ WDLApi.getImplementingExtensions(ISaveListener.class).size());
 
 		// Schedule this as a task to avoid threading issues.
@@ -723,6 +772,21 @@ public class WDL {
 		} catch (Exception e) {
 			throw new RuntimeException("Threw exception waiting for asynchronous IO to finish. Hmmm.", e);
 		}
+		// Everything that was captured is now on disk
+		chunkLoader.truncateCaptureJournal();
+
+		if (compactRegions) {
+			progressScreen.startMajorTask(
+					I18n.translate("wdl.saveProgress.compacting.title"),
+					chunkLoader.getNumWrittenRegions());
+			long reclaimed = chunkLoader.compactRegions(done ->
+					progressScreen.setMinorTaskProgress(
+							I18n.translate("wdl.saveProgress.compacting.subtitle"), done));
+			LOGGER.info("[WDL] Compacting region files reclaimed " + reclaimed + " bytes");
+			WDLMessages.chatMessageTranslated(WDL.serverProps,
+					WDLMessageTypes.SAVING, "wdl.messages.saving.regionsCompacted",
+					reclaimed / (1024 * 1024));
+		}
 		chunkLoader.close();
 		chunkLoader = null;
 
@@ -831,8 +895,9 @@ public class WDL {
 		File playerFile = new File(playersDirectory, player.getUuid().toString() + ".dat");
 
 		try (FileOutputStream stream = new FileOutputStream(playerFileTmp)) {
-			NbtIo.writeCompressed(playerNBT, stream);
+			IoPool.writeCompressed(playerNBT, stream);
 
+			backUpBeforeWrite(playerFile, true);
 			// Remove the old player file to make space for the new one.
 			Files.deleteIfExists(playerFile.toPath());
 			Files.move(playerFileTmp.toPath(), playerFile.toPath());
@@ -898,11 +963,13 @@ public class WDL {
 
 		try (FileOutputStream stream = new FileOutputStream(dataFileTmp)) {
 			// Make temporary level.dat_new
-			NbtIo.writeCompressed(rootWorldInfoNBT, stream);
+			IoPool.writeCompressed(rootWorldInfoNBT, stream);
 
+			backUpBeforeWrite(dataFile, true);
 			if (dataFile.exists()) {
 				// level.dat becomes level.dat_old
 				// (however it won't exist the first time the world is saved)
+				backUpBeforeWrite(dataFileBackup, true);
 				Files.deleteIfExists(dataFileBackup.toPath());
 				Files.move(dataFile.toPath(), dataFileBackup.toPath());
 			}
@@ -942,20 +1009,48 @@ public class WDL {
 		progressScreen.startMajorTask(I18n.translate("wdl.saveProgress.chunk.title"),
 				chunks.length());
 
-		for (int currentChunk = 0; currentChunk < chunks.length(); currentChunk++) {
-			Chunk c = chunks.get(currentChunk);
-			if (c != null) {
-				//Serverside restrictions check
-				if (!WDLPluginChannels.canSaveChunk(c)) {
-					continue;
+		// Snapshots are taken on this thread, one at a time, and each is handed
+		// to a worker as soon as it is taken; the expensive part of building and
+		// writing the NBT is then done in parallel.  Chunks that are skipped
+		// count towards the progress as well.
+		AtomicInteger skipped = new AtomicInteger();
+		Iterator<ChunkSnapshot> snapshots = new AbstractIterator<ChunkSnapshot>() {
+			private int currentChunk = 0;
+
+			@Override
+			protected ChunkSnapshot computeNext() {
+				while (currentChunk < chunks.length()) {
+					Chunk c = chunks.get(currentChunk++);
+					//Serverside restrictions check
+					if (c == null || !WDLPluginChannels.canSaveChunk(c)) {
+						skipped.incrementAndGet();
+						continue;
+					}
+					ChunkSnapshot snapshot = snapshotChunk(c);
+					if (snapshot != null) {
+						return snapshot;
+					}
+					skipped.incrementAndGet();
 				}
-
-				progressScreen.setMinorTaskProgress(I18n.translate(
-						"wdl.saveProgress.chunk.saving", c.getPos().x,
-						c.getPos().z), currentChunk);
-
-				saveChunk(c);
+				return endOfData();
 			}
+		};
+
+		try {
+			chunkLoader.writeSnapshots(snapshots, (pos, written) ->
+					progressScreen.setMinorTaskProgress(I18n.translate(
+							"wdl.saveProgress.chunk.saving", pos.x, pos.z), written + skipped.get()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while saving chunks", e);
+		}
+		LOGGER.info("[WDL] Skipped " + chunkFingerprints.getNumSkipped() + " of "
+				+ chunkFingerprints.getNumChecked() + " chunk writes as the chunks were unchanged");
+		LOGGER.info("[WDL] Chunk compression: " + chunkLoader.getCompressor());
+		LOGGER.info("[WDL] I/O pool: " + IoPool.getStats());
+		LOGGER.info("[WDL] Region storage: " + chunkLoader.getRegionStorage());
+		if (chunkLoader.getCaptureSpiller() != null) {
+			LOGGER.info("[WDL] Retained captures: " + chunkLoader.getCaptureSpiller());
 		}
 		WDLMessages.chatMessageTranslated(WDL.serverProps,
 				WDLMessageTypes.SAVING, "wdl.messages.saving.chunksSaved");
@@ -980,7 +1075,11 @@ public class WDL {
 				return;
 			}
 			
-			chunkLoader.saveChunk(worldClient, c);
+			if (serverProps.getValue(MiscSettings.ASYNC_CHUNK_SAVING)) {
+				chunkLoader.saveChunkAsync(worldClient, c);
+			} else {
+				chunkLoader.saveChunk(worldClient, c);
+			}
 		} catch (Exception e) {
 			// Better tell the player that something didn't work:
 			WDLMessages.chatMessageTranslated(WDL.serverProps,
@@ -989,38 +1088,38 @@ public class WDL {
 		}
 	}
 
-	private boolean isEmpty(Chunk c) {
-		if(c == null || c instanceof EmptyChunk) {
-			return true;
-		}
-		
-		ChunkSection[] array = c.getSectionArray();
-		
-		for (int i = 1; i < array.length; i++) {
-			if (array[i] != WorldChunk.EMPTY_SECTION) {
-				return false;
+	/**
+	 * Does the same checks as {@link #saveChunk(Chunk)}, but takes a snapshot
+	 * of the chunk rather than saving it.
+	 *
+	 * @return The snapshot, or null if the chunk shouldn't (or couldn't) be saved.
+	 */
+	@Nullable
+	private ChunkSnapshot snapshotChunk(Chunk c) {
+		try {
+			savedChunks.add(c.getPos());
+			if (isEmpty(c)) {
+				return null;
 			}
+
+			saveHandler.checkSessionLock();
+			ChunkSnapshot snapshot = chunkLoader.takeSnapshot(c, worldClient);
+			chunkLoader.unloadChunk(c.getPos());
+			return snapshot;
+		} catch (Exception e) {
+			WDLMessages.chatMessageTranslated(WDL.serverProps,
+					WDLMessageTypes.ERROR,
+					"wdl.messages.generalError.failedToSaveChunk", c.getPos().x, c.getPos().z, e);
+			return null;
 		}
-		if (array[0] != WorldChunk.EMPTY_SECTION) {
-			// All-air empty chunks sometimes are sent with a bottom section;
-			// handle that and a few other special cases.
-			for (int y = 0; y < 16; y++) {
-				for (int z = 0; z < 16; z++) {
-					for (int x = 0; x < 16; x++) {
-						Block block = array[0].getBlockState(x, y, z).getBlock(); 
-						if (!(block instanceof AirBlock || block instanceof BedBlock)) {
-							// Contains a non-airoid; stop
-							return false;
-						}
-					}
-				}
-			}
-			// Only composed of airoids; treat as empty
-			LOGGER.warn("[WDL] Skipping airoid empty chunk at " + c.getPos().x + ", " + c.getPos().z);
-		} else {
-			// Definitely empty
-			LOGGER.warn("[WDL] Skipping chunk with all null sections at " + c.getPos().x + ", " + c.getPos().z);
+	}
+
+	private boolean isEmpty(Chunk c) {
+		ChunkClassifier.Category category = ChunkClassifier.classify(c);
+		if (category == ChunkClassifier.Category.HAS_CONTENT) {
+			return false;
 		}
+		ChunkClassifier.recordSkipped(category);
 		return true;
 	}
 
@@ -1365,16 +1464,21 @@ public class WDL {
 			return;
 		}
 
+		Map<Integer, MapState> mapDatas;
+		synchronized (captureLock) {
+			mapDatas = new HashMap<>(newMapDatas);
+		}
+
 		File dataDirectory = new File(saveHandler.getWorldDirectory(), "data");
 		dataDirectory.mkdirs();
 
 		progressScreen.startMajorTask(
-				I18n.translate("wdl.saveProgress.map.title"), newMapDatas.size());
+				I18n.translate("wdl.saveProgress.map.title"), mapDatas.size());
 
 		WDLMessages.chatMessageTranslated(WDL.serverProps,
 				WDLMessageTypes.SAVING, "wdl.messages.saving.savingMapItemData");
 
-		Optional<Integer> highestCurrent = newMapDatas.keySet().stream().max(Integer::compare);
+		Optional<Integer> highestCurrent = mapDatas.keySet().stream().max(Integer::compare);
 
 		highestCurrent.ifPresent(current -> {
 			progressScreen.setMinorTaskProgress(I18n.translate("wdl.saveProgress.map.idcounts"), 0);
@@ -1404,6 +1508,11 @@ public class WDL {
 				tag.putShort("map", (short)overallCount);
 			}
 			
+			try {
+				backUpBeforeWrite(idcountsFile, false);
+			} catch (IOException ex) {
+				throw new RuntimeException("[WDL] Failed to back up idcounts.dat!", ex);
+			}
 			try (DataOutputStream stream = new DataOutputStream(new FileOutputStream(idcountsFile))) {
 				NbtIo.write(tag, stream);
 			} catch (Exception ex) {
@@ -1413,7 +1522,7 @@ public class WDL {
 
 		int count = 0;
 		
-		for(Map.Entry<Integer, MapState> e : newMapDatas.entrySet()) {
+		for(Map.Entry<Integer, MapState> e : mapDatas.entrySet()) {
 			count++;
 
 			progressScreen.setMinorTaskProgress(
@@ -1433,8 +1542,14 @@ public class WDL {
 				mapNBT.putInt("DataVersion", VersionConstants.getDataVersion());
 			}
 
+			try {
+				backUpBeforeWrite(mapFile, false);
+			} catch (IOException ex) {
+				throw new RuntimeException("WDL: Exception while backing up " +
+						"map data for map " + e.getKey() + "!", ex);
+			}
 			try (FileOutputStream stream = new FileOutputStream(mapFile)) {
-				NbtIo.writeCompressed(mapNBT, stream);
+				IoPool.writeCompressed(mapNBT, stream);
 			} catch (IOException ex) {
 				throw new RuntimeException("WDL: Exception while writing " +
 						"map data for map " + e.getKey() + "!", ex);
@@ -1563,7 +1678,27 @@ public class WDL {
 	}
 
 	/**
-	 * Adds the given tile entity to {@link #newTileEntities}.
+	 * Gets the folder that the current world is (or will be) saved in, even if
+	 * no download is running.
+	 *
+	 * @return The folder, or null if it isn't known yet (e.g. a multiworld
+	 *         server where no world has been chosen).
+	 */
+	@Nullable
+	public File getWorldDirectory() {
+		if (saveHandler != null) {
+			return saveHandler.getWorldDirectory();
+		}
+		if (baseFolderName == null || worldName == null || (isMultiworld && worldName.isEmpty())) {
+			return null;
+		}
+		return new File(new File(minecraft.runDirectory, "saves"), getWorldFolderName(worldName));
+	}
+
+	/**
+	 * Adds the given tile entity to {@link #newTileEntities}, and records it in
+	 * the chunk loader's capture journal.  The tile entity is serialized
+	 * immediately, and isn't referenced afterwards.
 	 *
 	 * @param pos
 	 *            The position of the tile entity
@@ -1571,15 +1706,26 @@ public class WDL {
 	 *            The tile entity to add
 	 */
 	public void saveTileEntity(BlockPos pos, BlockEntity te) {
-		int chunkX = pos.getX() >> 4;
-		int chunkZ = pos.getZ() >> 4;
-
-		ChunkPos chunkPos = new ChunkPos(chunkX, chunkZ);
-
-		if (!newTileEntities.containsKey(chunkPos)) {
-			newTileEntities.put(chunkPos, new HashMap<BlockPos, BlockEntity>());
+		CompoundTag tag = new CompoundTag();
+		try {
+			te.toTag(tag);
+		} catch (Exception e) {
+			WDLMessages.chatMessageTranslated(
+					WDL.serverProps,
+					WDLMessageTypes.ERROR,
+					"wdl.messages.generalError.failedToSaveTE", te, pos, pos.getX() >> 4, pos.getZ() >> 4, e);
+			LOGGER.warn("Compound: " + tag);
+			return;
+		}
+		synchronized (captureLock) {
+			newTileEntities.put(pos, tag);
+			if (chunkLoader != null) {
+				chunkLoader.retainCapture(new ChunkPos(pos), tag);
+			}
+		}
+		if (chunkLoader != null) {
+			chunkLoader.journalTileEntity(pos, tag);
 		}
-		newTileEntities.get(chunkPos).put(pos, te);
 	}
 
 	/**
@@ -1588,16 +1734,13 @@ public class WDL {
 	 * @param pos Location of the chunk
 	 */
 	public void unloadChunk(ChunkPos pos) {
-		Map<BlockPos, BlockEntity> m = newTileEntities.get(pos);
-		if (m != null) {
-			m.clear();
-		}
-		newTileEntities.remove(pos);
-		// The entity has been saved, so there's no easy way to remove it from the already saved file.
-		// TODO: In the future it might be worth rewriting existing chunks for this, but that seems
-		// like a fair bit of work for the moment.
-		newEntities.get(pos).forEach(e -> entityPositions.remove(e.getUuid()));
-		newEntities.removeAll(pos);
+		synchronized (captureLock) {
+			newTileEntities.removeChunk(pos);
+			// The entity has been saved, so there's no easy way to remove it from the already saved file.
+			// TODO: In the future it might be worth rewriting existing chunks for this, but that seems
+			// like a fair bit of work for the moment.
+			newEntities.removeChunk(pos);
+		}
 	}
 
 	/**
@@ -1722,11 +1865,20 @@ public class WDL {
 		state.add("lastClickedBlock", lastClickedBlock);
 		state.add("lastEntity", lastEntity);
 		state.add("saveHandler", saveHandler);
+		state.add("lazyBackup", lazyBackup);
 		state.add("chunkLoader", chunkLoader);
 		state.add("newTileEntities", newTileEntities);
 		state.add("newEntities", newEntities);
-		state.add("entityPositions", entityPositions);
 		state.add("newMapDatas", newMapDatas);
+		state.add("chunkFingerprints", chunkFingerprints);
+		state.add("chunkCompressor", () -> String.valueOf(chunkLoader != null ? chunkLoader.getCompressor() : null));
+		state.add("regionStorage", () -> String.valueOf(chunkLoader != null ? chunkLoader.getRegionStorage() : null));
+		state.add("chunkJournal", () -> String.valueOf(chunkLoader != null ? chunkLoader.getJournal() : null));
+		state.add("chunkWriteQueue", () -> String.valueOf(chunkLoader != null ? chunkLoader.getWriteQueue() : null));
+		state.add("coverageIndex", () -> String.valueOf(chunkLoader != null ? chunkLoader.getCoverageIndex() : null));
+		state.add("ioPool", IoPool::getStats);
+		state.add("captureJournal", () -> String.valueOf(chunkLoader != null ? chunkLoader.getCaptureJournal() : null));
+		state.add("captureSpiller", () -> String.valueOf(chunkLoader != null ? chunkLoader.getCaptureSpiller() : null));
 		state.add("downloading", downloading);
 		state.add("isMultiworld", isMultiworld);
 		state.add("propsFound", propsFound);
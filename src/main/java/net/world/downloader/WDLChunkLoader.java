@@ -17,16 +17,28 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import net.minecraft.block.Block;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.entity.Entity;
@@ -40,7 +52,6 @@ import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ProtoChunk;
 import net.minecraft.world.chunk.WorldChunk;
-import net.minecraft.world.storage.RegionFile;
 import net.world.downloader.api.IDimensionWrapper;
 import net.world.downloader.api.IEntityEditor;
 import net.world.downloader.api.ISaveHandlerWrapper;
@@ -48,6 +59,7 @@ import net.world.downloader.api.ITileEntityEditor;
 import net.world.downloader.api.ITileEntityImportationIdentifier;
 import net.world.downloader.api.WDLApi;
 import net.world.downloader.api.WDLApi.ModInfo;
+import net.world.downloader.config.settings.MiscSettings;
 import net.world.downloader.utils.EntityUtils;
 import net.world.downloader.utils.VersionedFunctions;
 
@@ -66,8 +78,75 @@ public class WDLChunkLoader extends WDLChunkLoaderBase {
 		return new WDLChunkLoader(wdl, getWorldSaveFolder(handler, dimension));
 	}
 
+	/**
+	 * Tile entities from the previously saved version of chunks that are
+	 * currently loaded, read in the background by {@link #prefetchChunk}.
+	 * Entries are removed when the chunk is saved, and expire if it never is;
+	 * either way, a read that hasn't started yet is cancelled.
+	 */
+	private final Cache<ChunkPos, CompletableFuture<List<CompoundTag>>> prefetched = CacheBuilder.newBuilder()
+			.maximumSize(4096)
+			.expireAfterWrite(10, TimeUnit.MINUTES)
+			.<ChunkPos, CompletableFuture<List<CompoundTag>>>removalListener(
+					notification -> notification.getValue().cancel(false))
+			.build();
+	/**
+	 * Reads chunks for {@link #prefetchChunk}.  Chunks loaded while too many
+	 * are already waiting aren't prefetched.
+	 */
+	@Nullable
+	private final ExecutorService prefetcher;
+
 	public WDLChunkLoader(WDL wdl, File file) {
 		super(wdl, file);
+		if (WDL.serverProps.getValue(MiscSettings.PREFETCH_OLD_CHUNKS)) {
+			this.prefetcher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(1024), new ThreadFactoryBuilder()
+					.setNameFormat("WDL Chunk Prefetcher")
+					.setDaemon(true)
+					.build());
+		} else {
+			this.prefetcher = null;
+		}
+	}
+
+	/**
+	 * Starts reading the tile entities of the previously saved version of the
+	 * given chunk in the background, so that they are ready when the chunk is
+	 * saved.  Should be called when the chunk is loaded.
+	 */
+	public void prefetchChunk(ChunkPos pos) {
+		if (prefetcher == null) {
+			return;
+		}
+		// Even checking the tile entity index is left to the prefetcher, as
+		// this is called on the client thread
+		try {
+			prefetched.put(pos, CompletableFuture.supplyAsync(() -> {
+				try {
+					return readOldTileEntities(pos);
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			}, prefetcher));
+		} catch (RejectedExecutionException ex) {
+			// Closed, or too far behind; read when the chunk is saved instead
+		}
+	}
+
+	@Override
+	protected void onChunkWritten(ChunkPos pos) {
+		// Anything read before now is out of date
+		prefetched.invalidate(pos);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (prefetcher != null) {
+			prefetcher.shutdownNow();
+		}
+		prefetched.invalidateAll();
+		super.close();
 	}
 
 	/**
@@ -89,16 +168,6 @@ public class WDLChunkLoader extends WDLChunkLoaderBase {
 		for(TypeFilterableList<Entity> map : ((WorldChunk) chunk).getEntitySectionArray()) {
 			entities.addAll(map);
 		}
-		// Add the manually saved entities.
-		for (Entity e : wdl.newEntities.get(chunk.getPos())) {
-			assert chunk.getPos().equals(wdl.entityPositions.get(e.getUuid())) :
-				"Mismatch between position of " + e + " in "
-				+ chunk.getPos() + " and position recorded in entityPositions of "
-				+ wdl.entityPositions.get(e.getUuid());
-			// "Unkill" the entity, since it is killed when it is unloaded.
-			e.removed = false;
-			entities.add(e);
-		}
 
 		for (Entity entity : entities) {
 			if (entity == null) {
@@ -111,58 +180,80 @@ public class WDLChunkLoader extends WDLChunkLoaderBase {
 				continue;
 			}
 
-			// Apply any editors.
-			for (ModInfo<IEntityEditor> info : WDLApi.getImplementingExtensions(IEntityEditor.class)) {
-				try {
-					if (info.mod.shouldEdit(entity)) {
-						info.mod.editEntity(entity);
-					}
-				} catch (Exception ex) {
-					throw new RuntimeException("Failed to edit entity "
-							+ entity + " for chunk at "
-							+ chunk.getPos() + " with extension "
-							+ info, ex);
-				}
+			CompoundTag entityData = writeEntity(entity, chunk.getPos());
+			if (entityData != null) {
+				entityList.add(entityData);
 			}
+		}
+
+		// Add the manually saved entities, which were already checked and
+		// edited when they were saved.
+		entityList.addAll(wdl.newEntities.getChunk(chunk.getPos()));
 
-			CompoundTag entityData = new CompoundTag();
+		return entityList;
+	}
 
+	/**
+	 * Applies any {@link IEntityEditor}s to the given entity, and then saves it
+	 * to a new tag, putting a message into the chat if it can't.
+	 *
+	 * @param entity The entity to save
+	 * @param pos    The chunk the entity is being saved in
+	 * @return The tag, or null if the entity could not (or should not) be
+	 *         saved.
+	 */
+	@Nullable
+	static CompoundTag writeEntity(Entity entity, ChunkPos pos) {
+		// Apply any editors.
+		for (ModInfo<IEntityEditor> info : WDLApi.getImplementingExtensions(IEntityEditor.class)) {
 			try {
-				if (entity.saveToTag(entityData)) {
-					entityList.add(entityData);
+				if (info.mod.shouldEdit(entity)) {
+					info.mod.editEntity(entity);
 				}
-			} catch (Exception e) {
-				WDLMessages.chatMessageTranslated(
-						WDL.serverProps,
-						WDLMessageTypes.ERROR,
-						"wdl.messages.generalError.failedToSaveEntity", entity, chunk.getPos().x, chunk.getPos().z, e);
-				LOGGER.warn("Compound: " + entityData);
-				LOGGER.warn("Entity metadata dump:");
-				try {
-					List<DataTracker.Entry<?>> objects = entity.getDataTracker()
-							.getAllEntries();
-					if (objects == null) {
-						LOGGER.warn("No entries (getAllWatched() returned null)");
-					} else {
-						LOGGER.warn(objects);
-						for (DataTracker.Entry<?> obj : objects) {
-							if (obj != null) {
-								LOGGER.warn("DataEntry [get()="
-										+ obj.get()
-										+ ", isDirty()="
-										+ obj.isDirty());
-							}
+			} catch (Exception ex) {
+				throw new RuntimeException("Failed to edit entity "
+						+ entity + " for chunk at "
+						+ pos + " with extension "
+						+ info, ex);
+			}
+		}
+
+		CompoundTag entityData = new CompoundTag();
+
+		try {
+			if (entity.saveToTag(entityData)) {
+				return entityData;
+			}
+			return null;
+		} catch (Exception e) {
+			WDLMessages.chatMessageTranslated(
+					WDL.serverProps,
+					WDLMessageTypes.ERROR,
+					"wdl.messages.generalError.failedToSaveEntity", entity, pos.x, pos.z, e);
+			LOGGER.warn("Compound: " + entityData);
+			LOGGER.warn("Entity metadata dump:");
+			try {
+				List<DataTracker.Entry<?>> objects = entity.getDataTracker()
+						.getAllEntries();
+				if (objects == null) {
+					LOGGER.warn("No entries (getAllWatched() returned null)");
+				} else {
+					LOGGER.warn(objects);
+					for (DataTracker.Entry<?> obj : objects) {
+						if (obj != null) {
+							LOGGER.warn("DataEntry [get()="
+									+ obj.get()
+									+ ", isDirty()="
+									+ obj.isDirty());
 						}
 					}
-				} catch (Exception e2) {
-					LOGGER.warn("Failed to complete dump: ", e);
 				}
-				LOGGER.warn("End entity metadata dump");
-				continue;
+			} catch (Exception e2) {
+				LOGGER.warn("Failed to complete dump: ", e);
 			}
+			LOGGER.warn("End entity metadata dump");
+			return null;
 		}
-
-		return entityList;
 	}
 
 	/**
@@ -191,96 +282,122 @@ public class WDLChunkLoader extends WDLChunkLoaderBase {
 	}
 
 	/**
-	 * Creates an NBT list of all tile entities in this chunk, importing tile
-	 * entities as needed.
+	 * Serializes the tile entities in this chunk, along with the ones that have
+	 * been saved for it, into the given snapshot builder.
 	 */
 	@Override
-	protected ListTag getTileEntityList(Chunk chunk) {
-		ListTag tileEntityList = new ListTag();
-
+	protected ChunkSnapshot.Builder captureTileEntities(Chunk chunk, ChunkSnapshot.Builder builder) {
 		if (!WDLPluginChannels.canSaveTileEntities(chunk)) {
-			return tileEntityList;
+			return builder.tileEntities(false, new HashMap<>(), new HashMap<>());
 		}
 
 		Map<BlockPos, BlockEntity> chunkTEMap;
-		Map<BlockPos, CompoundTag> oldTEMap = getOldTileEntities(chunk);
-		Map<BlockPos, BlockEntity> newTEMap = wdl.newTileEntities.get(chunk.getPos());
-		
+		Long2ObjectMap<CompoundTag> newTEMap = wdl.newTileEntities.getChunk(chunk.getPos());
+
 		if(chunk instanceof WorldChunk)
 			chunkTEMap = ((WorldChunk) chunk).getBlockEntities();
 		else if(chunk instanceof ProtoChunk)
 			chunkTEMap = ((ProtoChunk) chunk).getBlockEntities();
 		else
 			throw new RuntimeException("I can't handle this right now.");
-		
-		if (newTEMap == null) {
-			newTEMap = new HashMap<>();
+
+		Map<BlockPos, CompoundTag> newTags = new HashMap<>();
+		Map<BlockPos, CompoundTag> chunkTags = new HashMap<>();
+
+		// These were serialized when they were saved
+		for (Long2ObjectMap.Entry<CompoundTag> e : Long2ObjectMaps.fastIterable(newTEMap)) {
+			BlockPos pos = BlockPos.fromLong(e.getLongKey());
+			WDLMessages.chatMessageTranslated(WDL.serverProps, WDLMessageTypes.LOAD_TILE_ENTITY,
+					"wdl.messages.tileEntity.usingNew", e.getValue().getString("id"), pos);
+			newTags.put(pos, e.getValue());
+		}
+		for (Map.Entry<BlockPos, BlockEntity> e : chunkTEMap.entrySet()) {
+			if (newTEMap.containsKey(e.getKey().asLong())) {
+				continue;
+			}
+			CompoundTag compound = writeBlockEntity(chunk, e.getKey(), e.getValue());
+			if (compound != null) {
+				chunkTags.put(e.getKey(), compound);
+			}
 		}
 
-		// All of the locations of tile entities in the chunk.
-		Set<BlockPos> allTELocations = new HashSet<>();
-		allTELocations.addAll(chunkTEMap.keySet());
-		allTELocations.addAll(oldTEMap.keySet());
-		allTELocations.addAll(newTEMap.keySet());
-
-		for (BlockPos pos : allTELocations) {
-			// Now, add all of the tile entities, using the "best" map
-			// if it's in multiple.
-			if (newTEMap.containsKey(pos)) {
-				CompoundTag compound = new CompoundTag();
-				BlockEntity te = newTEMap.get(pos);
-				
-				try {
-					te.toTag(compound);
-				} catch (Exception e) {
-					WDLMessages.chatMessageTranslated(
-							WDL.serverProps,
-							WDLMessageTypes.ERROR,
-							"wdl.messages.generalError.failedToSaveTE", te, pos, chunk.getPos().x, chunk.getPos().z, e);
-					LOGGER.warn("Compound: " + compound);
-					continue;
-				}
+		return builder.tileEntities(true, newTags, chunkTags);
+	}
 
-				String entityType = compound.getString("id") + " (" + te.getClass().getCanonicalName()
-						+")";
-				WDLMessages.chatMessageTranslated(WDL.serverProps, WDLMessageTypes.LOAD_TILE_ENTITY,
-						"wdl.messages.tileEntity.usingNew", entityType, pos);
-
-				editBlockEntity(pos, compound, ITileEntityEditor.TileEntityCreationMode.NEW);
-
-				tileEntityList.add(compound);
-			} else if (oldTEMap.containsKey(pos)) {
-				CompoundTag compound = oldTEMap.get(pos);
-				String entityType = compound.getString("id");
-				WDLMessages.chatMessageTranslated(
-						WDL.serverProps,
-						WDLMessageTypes.LOAD_TILE_ENTITY,
-						"wdl.messages.tileEntity.usingOld", entityType, pos);
-
-				editBlockEntity(pos, compound, ITileEntityEditor.TileEntityCreationMode.IMPORTED);
-
-				tileEntityList.add(compound);
-			} else if (chunkTEMap.containsKey(pos)) {
-				// TODO: Do we want a chat message for this?
-				// It seems unnecessary.
-				BlockEntity te = chunkTEMap.get(pos);
-				CompoundTag compound = new CompoundTag();
-				
-				try {
-					te.toTag(compound);
-				} catch (Exception e) {
-					WDLMessages.chatMessageTranslated(
-							WDL.serverProps,
-							WDLMessageTypes.ERROR,
-							"wdl.messages.generalError.failedToSaveTE", te, pos, chunk.getPos().x, chunk.getPos().z, e);
-					LOGGER.warn("Compound: " + compound);
-					continue;
-				}
+	/**
+	 * Saves the given block entity to a new tag, putting a message into the
+	 * chat if it can't.
+	 *
+	 * @return The tag, or null if the block entity could not be saved.
+	 */
+	@Nullable
+	private static CompoundTag writeBlockEntity(Chunk chunk, BlockPos pos, BlockEntity te) {
+		CompoundTag compound = new CompoundTag();
+
+		try {
+			te.toTag(compound);
+			return compound;
+		} catch (Exception e) {
+			WDLMessages.chatMessageTranslated(
+					WDL.serverProps,
+					WDLMessageTypes.ERROR,
+					"wdl.messages.generalError.failedToSaveTE", te, pos, chunk.getPos().x, chunk.getPos().z, e);
+			LOGGER.warn("Compound: " + compound);
+			return null;
+		}
+	}
 
-				editBlockEntity(pos, compound, ITileEntityEditor.TileEntityCreationMode.EXISTING);
+	/**
+	 * Creates an NBT list of all tile entities in this chunk, importing tile
+	 * entities as needed.
+	 */
+	@Override
+	protected ListTag getTileEntityList(ChunkSnapshot snapshot) {
+		ListTag tileEntityList = new ListTag();
+
+		if (!snapshot.canSaveTileEntities) {
+			return tileEntityList;
+		}
 
-				tileEntityList.add(compound);
+		Map<BlockPos, CompoundTag> chunkTEMap = snapshot.chunkTileEntities;
+		Map<BlockPos, CompoundTag> oldTEMap = getOldTileEntities(snapshot.getView());
+		Map<BlockPos, CompoundTag> newTEMap = snapshot.newTileEntities;
+
+		// Add all of the tile entities, using the "best" map if one is in
+		// several: new ones, then imported ones, then the chunk's own.
+		for (Map.Entry<BlockPos, CompoundTag> e : newTEMap.entrySet()) {
+			CompoundTag compound = e.getValue().copy();
+
+			editBlockEntity(e.getKey(), compound, ITileEntityEditor.TileEntityCreationMode.NEW);
+
+			tileEntityList.add(compound);
+		}
+		for (Map.Entry<BlockPos, CompoundTag> e : oldTEMap.entrySet()) {
+			if (newTEMap.containsKey(e.getKey())) {
+				continue;
 			}
+			CompoundTag compound = e.getValue();
+			String entityType = compound.getString("id");
+			WDLMessages.chatMessageTranslated(
+					WDL.serverProps,
+					WDLMessageTypes.LOAD_TILE_ENTITY,
+					"wdl.messages.tileEntity.usingOld", entityType, e.getKey());
+
+			editBlockEntity(e.getKey(), compound, ITileEntityEditor.TileEntityCreationMode.IMPORTED);
+
+			tileEntityList.add(compound);
+		}
+		for (Map.Entry<BlockPos, CompoundTag> e : chunkTEMap.entrySet()) {
+			if (newTEMap.containsKey(e.getKey()) || oldTEMap.containsKey(e.getKey())) {
+				continue;
+			}
+			// TODO: Do we want a chat message for this?
+			// It seems unnecessary.
+			CompoundTag compound = e.getValue().copy();
+
+			editBlockEntity(e.getKey(), compound, ITileEntityEditor.TileEntityCreationMode.EXISTING);
+
+			tileEntityList.add(compound);
 		}
 
 		return tileEntityList;
@@ -302,35 +419,38 @@ public class WDLChunkLoader extends WDLChunkLoaderBase {
 		Map<BlockPos, CompoundTag> returned = new HashMap<>();
 
 		try {
-			// XXX The cache is gone now (along with MC-119971), right?
-			 CompoundTag chunkNBT = this.getNbt(chunk.getPos());
-			if (chunkNBT == null) {
-				// This happens whenever the chunk hasn't been saved before.
-				// It's a normal case.
-				return returned;
+			List<CompoundTag> oldList = null;
+			CompletableFuture<List<CompoundTag>> prefetch = prefetched.asMap().remove(chunk.getPos());
+			if (prefetch != null) {
+				// Never waited for, as this may be the client thread; one
+				// that isn't done yet was cancelled when it was removed
+				try {
+					oldList = prefetch.getNow(null);
+				} catch (CancellationException ex) {
+					// Still queued or being read
+				} catch (CompletionException ex) {
+					LOGGER.warn("[WDL] Failed to prefetch chunk at " + chunk.getPos() + "; reading it again", ex);
+				}
+			}
+			if (oldList == null) {
+				oldList = readOldTileEntities(chunk.getPos());
 			}
 
-			CompoundTag levelNBT = chunkNBT.getCompound("Level");
-			ListTag oldList = levelNBT.getList("TileEntities", 10);
-
-			if (oldList != null) {
-				for (int i = 0; i < oldList.size(); i++) {
-					CompoundTag oldNBT = oldList.getCompound(i);
-					String entityID = oldNBT.getString("id");
-					BlockPos pos = new BlockPos(oldNBT.getInt("x"),
-							oldNBT.getInt("y"), oldNBT.getInt("z"));
-					Block block = chunk.getBlockState(pos).getBlock();
-
-					if (shouldImportBlockEntity(entityID, pos, block, oldNBT, chunk)) {
-						returned.put(pos, oldNBT);
-					} else {
-						// Even if this tile entity is saved in another way
-						// later, we still want the player to know we did not
-						// import something in that chunk.
-						WDLMessages.chatMessageTranslated(WDL.serverProps,
-								WDLMessageTypes.LOAD_TILE_ENTITY,
-								"wdl.messages.tileEntity.notImporting", entityID, pos);
-					}
+			for (CompoundTag oldNBT : oldList) {
+				String entityID = oldNBT.getString("id");
+				BlockPos pos = new BlockPos(oldNBT.getInt("x"),
+						oldNBT.getInt("y"), oldNBT.getInt("z"));
+				Block block = chunk.getBlockState(pos).getBlock();
+
+				if (shouldImportBlockEntity(entityID, pos, block, oldNBT, chunk)) {
+					returned.put(pos, oldNBT);
+				} else {
+					// Even if this tile entity is saved in another way
+					// later, we still want the player to know we did not
+					// import something in that chunk.
+					WDLMessages.chatMessageTranslated(WDL.serverProps,
+							WDLMessageTypes.LOAD_TILE_ENTITY,
+							"wdl.messages.tileEntity.notImporting", entityID, pos);
 				}
 			}
 		} catch (Exception e) {
@@ -341,6 +461,45 @@ public class WDLChunkLoader extends WDLChunkLoaderBase {
 		return returned;
 	}
 
+	/**
+	 * Reads all tile entities in the previously saved version of the given
+	 * chunk, using the tile entity index if possible.  May be called from any
+	 * thread.
+	 *
+	 * @return The tile entities; empty if the chunk hasn't been saved before.
+	 */
+	protected List<CompoundTag> readOldTileEntities(ChunkPos pos) throws IOException {
+		Map<BlockPos, CompoundTag> indexed = getIndexedTileEntities(pos);
+		if (indexed != null) {
+			// No need to read the chunk at all
+			return new ArrayList<>(indexed.values());
+		}
+
+		// Only what has actually been written can go in the index, as a
+		// queued write might still fail
+		boolean queued = isWritePending(pos);
+		// XXX The cache is gone now (along with MC-119971), right?
+		CompoundTag chunkNBT = this.readChunkNbt(pos, queued);
+		if (chunkNBT == null) {
+			// This happens whenever the chunk hasn't been saved before.
+			// It's a normal case.
+			return new ArrayList<>();
+		}
+
+		CompoundTag levelNBT = chunkNBT.getCompound("Level");
+		ListTag tileEntities = levelNBT.getList("TileEntities", 10);
+		if (!queued) {
+			// The chunk may have been written (and indexed) since it was read
+			backfillTileEntities(pos, tileEntities);
+		}
+
+		List<CompoundTag> result = new ArrayList<>(tileEntities.size());
+		for (int i = 0; i < tileEntities.size(); i++) {
+			result.add(tileEntities.getCompound(i));
+		}
+		return result;
+	}
+
 	/**
 	 * Checks if the block entity should be imported. Only "problematic" (IE,
 	 * those that require manual interaction such as chests) block entities will
@@ -404,38 +563,4 @@ public class WDLChunkLoader extends WDLChunkLoaderBase {
 			}
 		}
 	}
-
-	@Nullable
-	public RegionFile getRegionFileIfExists(int regionX, int regionZ) {
-		// Based on RegionFileCache.func_219098_a
-		try {
-			long cacheKey = ChunkPos.toLong(regionX, regionZ);
-			RegionFile regionfile = this.cache.getAndMoveToFirst(cacheKey);
-			
-			if (regionfile != null) {
-				return regionfile;
-			} else {
-				File file = new File(this.chunkSaveLocation, "r." + regionX + "." + regionZ + ".mca");
-				if (!file.exists()) {
-					// This is changed from func_219098_a; we don't want to create the file if it doesn't exist
-					return null;
-				}
-
-				if (this.cache.size() >= 256) {
-					this.cache.removeLast();
-				}
-
-				if (!this.chunkSaveLocation.exists()) {
-					this.chunkSaveLocation.mkdirs();
-				}
-
-				regionfile = createRegionFile(file);
-				this.cache.putAndMoveToFirst(cacheKey, regionfile);
-				return regionfile;
-			}
-		} catch (IOException ex) {
-			LOGGER.warn("[WDL] Failed to get region file", ex);
-			return null;
-		}
-	}
 }
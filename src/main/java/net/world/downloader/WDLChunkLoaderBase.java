@@ -14,42 +14,63 @@
 package net.world.downloader;
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
 
 import javax.annotation.Nullable;
 
-import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
-import it.unimi.dsi.fastutil.shorts.ShortList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.Striped;
+
+import net.minecraft.item.map.MapState;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.LongArrayTag;
-import net.minecraft.server.world.ServerTickScheduler;
-import net.minecraft.server.world.SimpleTickScheduler;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
-import net.minecraft.util.math.ChunkSectionPos;
-import net.minecraft.world.ChunkTickScheduler;
-import net.minecraft.world.Heightmap;
-import net.minecraft.world.LightType;
 import net.minecraft.world.World;
-import net.minecraft.world.biome.source.BiomeArray;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ChunkNibbleArray;
 import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.ChunkStatus;
-import net.minecraft.world.chunk.UpgradeData;
-import net.minecraft.world.chunk.WorldChunk;
-import net.minecraft.world.chunk.light.LightingProvider;
-import net.minecraft.world.storage.RegionBasedStorage;
-import net.minecraft.world.storage.RegionFile;
-import net.minecraft.world.storage.StorageIoWorker;
 import net.minecraft.world.storage.VersionedChunkStorage;
 import net.world.downloader.api.IDimensionWrapper;
 import net.world.downloader.api.ISaveHandlerWrapper;
 import net.world.downloader.config.settings.MiscSettings;
-import net.world.downloader.utils.ReflectionUtils;
+import net.world.downloader.storage.CaptureJournal;
+import net.world.downloader.storage.ChunkCompressor;
+import net.world.downloader.storage.ChunkJournal;
+import net.world.downloader.storage.ChunkWriteQueue;
+import net.world.downloader.storage.CoverageIndex;
+import net.world.downloader.storage.IoPool;
+import net.world.downloader.storage.RegionCompactor;
+import net.world.downloader.storage.RegionStorage;
+import net.world.downloader.storage.RegionStorage.Durability;
+import net.world.downloader.storage.TileEntityIndex;
 import net.world.downloader.utils.VersionedFunctions;
 
 /**
@@ -59,6 +80,14 @@ import net.world.downloader.utils.VersionedFunctions;
  * This variant is used for chunks from 1.13 and later.
  */
 public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * Number of snapshots per thread that {@link #writeSnapshots} holds at
+	 * once, counting the ones being written.
+	 */
+	private static final int SNAPSHOTS_PER_THREAD = 4;
+
 	protected final WDL wdl;
 	/**
 	 * Location where chunks are saved.
@@ -68,8 +97,92 @@ public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
 	 */
 	protected final File chunkSaveLocation;
 
-	// XXX HACK this is burried deep, and probably shouldn't be directly accessed
-	protected final Long2ObjectLinkedOpenHashMap<RegionFile> cache;
+	/**
+	 * The region files in {@link #chunkSaveLocation}.  Vanilla's own storage
+	 * (from the superclass) is never used to read or write chunks.
+	 */
+	protected final RegionStorage regionStorage;
+
+	/**
+	 * Threads used by {@link #saveChunkAsync}.
+	 */
+	protected final ChunkSaveWorkers saveWorkers;
+	/**
+	 * Threads that compress encoded chunks for {@link #writeSnapshot}, whether
+	 * or not chunks are saved asynchronously, so that compression never runs
+	 * on the client thread.  Lanes keep the writes of a chunk in order.
+	 */
+	protected final ChunkSaveWorkers compressWorkers;
+
+	/**
+	 * If true, chunks are encoded with {@link ChunkNbtWriter} rather than by
+	 * building a tag tree.
+	 */
+	protected final boolean streamingEncoder;
+
+	/**
+	 * Compresses encoded chunks before they are queued.
+	 */
+	protected final ChunkCompressor compressor;
+	/**
+	 * Bytes of encoded chunks allowed to wait for the {@link #compressWorkers},
+	 * so that a backlog there blocks {@link #writeSnapshot} just like a full
+	 * {@link #writeQueue} does.  Sized like the write queue's limit.
+	 */
+	private final int compressLimit;
+	/**
+	 * Permits for {@link #compressLimit}, one per byte.
+	 */
+	private final Semaphore compressPermits;
+
+	/**
+	 * Compressed chunks waiting to be written to the {@link #journal} or the
+	 * {@link #regionStorage}.
+	 */
+	protected final ChunkWriteQueue writeQueue;
+
+	/**
+	 * Journal that chunks are appended to instead of being written directly to
+	 * the region files, or null if disabled.
+	 */
+	@Nullable
+	protected final ChunkJournal journal;
+
+	/**
+	 * If true, writes of chunks whose {@link ChunkFingerprints fingerprint}
+	 * hasn't changed since they were last written are skipped.
+	 */
+	protected final boolean skipUnchangedChunks;
+
+	/**
+	 * Index of the tile entities written to each chunk, or null if disabled.
+	 */
+	@Nullable
+	protected final TileEntityIndex tileEntityIndex;
+	/**
+	 * Which chunks have been saved in this dimension, and when.
+	 */
+	protected final CoverageIndex coverageIndex;
+	/**
+	 * Journal of the tile entities, entities and maps captured for the
+	 * download, or null if disabled.
+	 */
+	@Nullable
+	private CaptureJournal captureJournal;
+	/**
+	 * Keeps WDL's retained entities and tile entities within their memory
+	 * budget, or null if they are never spilled.
+	 */
+	@Nullable
+	private final CaptureSpiller captureSpiller;
+
+	/**
+	 * Locks held while a chunk is written to its region file, keyed by
+	 * packed region coordinates.  Chunks in different regions can be written
+	 * at the same time; building the NBT doesn't need any lock.
+	 */
+	private final Striped<Lock> regionLocks = Striped.lock(64);
+
 	
 	/**
 	 * Gets the save folder for the given WorldProvider, respecting Forge's
@@ -77,7 +190,13 @@ public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
 	 */
 	protected static File getWorldSaveFolder(ISaveHandlerWrapper handler,
 			IDimensionWrapper dimension) {
-		File baseFolder = handler.getWorldDirectory();
+		return getWorldSaveFolder(handler.getWorldDirectory(), dimension);
+	}
+
+	/**
+	 * Gets the region folder of the given dimension in the given world folder.
+	 */
+	public static File getWorldSaveFolder(File baseFolder, IDimensionWrapper dimension) {
 		// XXX No forge support at this time
 
 		File dimensionFolder;
@@ -96,35 +215,788 @@ public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
 		return new File(dimensionFolder, "region");
 	}
 
-	@SuppressWarnings({ "unchecked" })
 	protected WDLChunkLoaderBase(WDL wdl, File file) {
 		super(file, null, /* enable flushing */true);
 		this.wdl = wdl;
 		this.chunkSaveLocation = file;
-		StorageIoWorker worker = ReflectionUtils.findAndGetPrivateField(this, VersionedChunkStorage.class,
-				StorageIoWorker.class);
-		RegionBasedStorage rfc = ReflectionUtils.findAndGetPrivateField(worker, RegionBasedStorage.class);
-		this.cache = ReflectionUtils.findAndGetPrivateField(rfc, Long2ObjectLinkedOpenHashMap.class);
+		this.regionStorage = new RegionStorage(file,
+				WDL.serverProps.getValue(MiscSettings.REGION_FILE_LIMIT),
+				WDL.serverProps.getValue(MiscSettings.REGION_DURABILITY),
+				WDL.serverProps.getValue(MiscSettings.GROUP_COMMIT_MILLIS),
+				WDL.serverProps.getValue(MiscSettings.GROUP_COMMIT_CHUNKS));
+		if (wdl.lazyBackup != null) {
+			this.regionStorage.setWriteGuard(wdl.lazyBackup::beforeWrite);
+		}
+		this.saveWorkers = new ChunkSaveWorkers(WDL.serverProps.getValue(MiscSettings.CHUNK_SAVE_THREADS));
+		this.compressWorkers = new ChunkSaveWorkers(WDL.serverProps.getValue(MiscSettings.CHUNK_SAVE_THREADS),
+				"WDL Chunk Compressor");
+		this.streamingEncoder = WDL.serverProps.getValue(MiscSettings.STREAMING_CHUNK_ENCODER);
+		this.compressor = new ChunkCompressor(
+				WDL.serverProps.getValue(MiscSettings.REGION_COMPRESSION_LEVEL));
+		this.writeQueue = new ChunkWriteQueue(this::writeChunkData,
+				WDL.serverProps.getValue(MiscSettings.WRITE_QUEUE_LIMIT_MB) * 1024L * 1024L,
+				WDL.serverProps.getValue(MiscSettings.WRITE_BATCH_DELAY_MILLIS));
+		this.compressLimit = (int) Math.max(1, Math.min(Integer.MAX_VALUE, writeQueue.getMaxBytes()));
+		this.compressPermits = new Semaphore(compressLimit);
+		this.coverageIndex = createCoverageIndex(file);
+		this.journal = openJournal(new File(file.getParentFile(), "wdl" + File.separator + "journal"));
+		this.captureJournal = openCaptureJournal(
+				new File(file.getParentFile(), "wdl" + File.separator + "captures.wdlc"));
+		this.captureSpiller = openCaptureSpiller(
+				new File(file.getParentFile(), "wdl" + File.separator + "spill.dat"));
+		this.skipUnchangedChunks = WDL.serverProps.getValue(MiscSettings.SKIP_UNCHANGED_CHUNKS);
+		if (WDL.serverProps.getValue(MiscSettings.TILE_ENTITY_INDEX)) {
+			this.tileEntityIndex = new TileEntityIndex(
+					new File(file.getParentFile(), "wdl" + File.separator + "tileentities"), file);
+		} else {
+			this.tileEntityIndex = null;
+		}
 	}
 
 	/**
-	 * Saves the given chunk.
+	 * Saves the given chunk.  The chunk is encoded on the calling thread, but
+	 * compressed and written in the background.
 	 *
 	 * Note that while the normal implementation swallows Exceptions, this
-	 * version does not.
+	 * version does not; errors once the chunk has been encoded are reported
+	 * in chat instead.
+	 */
+	public void saveChunk(World world, Chunk c) throws Exception {
+		wdl.saveHandler.checkSessionLock();
+
+		ChunkSnapshot snapshot = takeSnapshot(c, world);
+		writeSnapshot(snapshot).whenComplete((result, e) -> {
+			if (e != null) {
+				reportSaveFailure(snapshot.pos, e);
+			}
+		});
+
+		unloadChunk(c.getPos());
+	}
+
+	/**
+	 * Saves the given chunk on one of the {@link ChunkSaveWorkers}.  Only a
+	 * {@link ChunkSnapshot} is taken on the calling thread, which should be the
+	 * thread that owns the chunk.
+	 *
+	 * Errors while writing the chunk are reported in chat rather than thrown.
 	 */
-	public synchronized void saveChunk(World world, Chunk c) throws Exception {
+	public void saveChunkAsync(World world, Chunk c) throws Exception {
 		wdl.saveHandler.checkSessionLock();
 
-		CompoundTag levelTag = writeChunkToNBT(c, world);
+		ChunkSnapshot snapshot = takeSnapshot(c, world);
+
+		// The snapshot has everything WDL had stored for this chunk
+		unloadChunk(c.getPos());
+
+		saveWorkers.submit(snapshot.pos, () -> {
+			try {
+				writeSnapshot(snapshot).whenComplete((result, e) -> {
+					if (e != null) {
+						reportSaveFailure(snapshot.pos, e);
+					}
+				});
+			} catch (Exception e) {
+				reportSaveFailure(snapshot.pos, e);
+			}
+		});
+	}
+
+	private static void reportSaveFailure(ChunkPos pos, Throwable e) {
+		WDLMessages.chatMessageTranslated(WDL.serverProps,
+				WDLMessageTypes.ERROR,
+				"wdl.messages.generalError.failedToSaveChunk", pos.x, pos.z, e);
+	}
+
+	/**
+	 * Takes a snapshot of the given chunk, including the entities and tile
+	 * entities that WDL has stored for it.  Must be called on the thread that
+	 * owns the chunk.
+	 */
+	public ChunkSnapshot takeSnapshot(Chunk c, World world) {
+		synchronized (wdl.captureLock) {
+			if (captureSpiller != null) {
+				captureSpiller.restore(c.getPos());
+			}
+			return captureTileEntities(c, ChunkSnapshot.builder(c, world)
+					.entities(getEntityList(c)))
+					.captureMark(captureJournal != null ? captureJournal.mark() : -1)
+					.build();
+		}
+	}
+
+	/**
+	 * Discards the data WDL has stored for the given chunk, once it has been
+	 * captured.  The captures stay in the capture journal until the chunk has
+	 * been written.
+	 *
+	 * @see WDL#unloadChunk(ChunkPos)
+	 */
+	public void unloadChunk(ChunkPos pos) {
+		synchronized (wdl.captureLock) {
+			wdl.unloadChunk(pos);
+			if (captureSpiller != null) {
+				captureSpiller.discard(pos);
+			}
+		}
+	}
+
+	/**
+	 * Gets the lock for the region containing the given chunk.
+	 */
+	protected Lock getRegionLock(ChunkPos pos) {
+		return regionLocks.get(ChunkPos.toLong(pos.getRegionX(), pos.getRegionZ()));
+	}
+
+	/**
+	 * Builds and writes the given snapshots in parallel, on temporary
+	 * {@link ChunkSaveWorkers} with a thread per core.  Snapshots are taken
+	 * from the iterator (on the calling thread) only as workers become free,
+	 * so that at most a few snapshots per thread are held in memory at once;
+	 * the written chunks are then batched by region by the
+	 * {@link #writeQueue}.  A snapshot counts as held until it has been
+	 * compressed.  Blocks until everything has been handed to the queue.
+	 *
+	 * Errors while writing a chunk are reported in chat rather than thrown.
+	 *
+	 * @param snapshots The snapshots to write, taken as they are needed.
+	 * @param progress  Called after each chunk is queued, with the chunk and
+	 *                  the number of chunks written so far.  May be called
+	 *                  from any thread.
+	 */
+	public void writeSnapshots(Iterator<ChunkSnapshot> snapshots,
+			ObjIntConsumer<ChunkPos> progress) throws InterruptedException {
+		// Anything queued earlier for these chunks needs to be written first
+		saveWorkers.awaitCompletion();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		ChunkSaveWorkers workers = new ChunkSaveWorkers(threads, "WDL Final Save Worker");
+		Semaphore window = new Semaphore(threads * SNAPSHOTS_PER_THREAD);
+		AtomicInteger written = new AtomicInteger();
+		try {
+			while (true) {
+				// Wait for room before taking the next snapshot, not after
+				window.acquire();
+				if (!snapshots.hasNext()) {
+					window.release();
+					break;
+				}
+				ChunkSnapshot snapshot = snapshots.next();
+				try {
+					workers.submit(snapshot.pos, () -> {
+						CompletableFuture<Void> queued;
+						try {
+							queued = writeSnapshot(snapshot);
+						} catch (Exception e) {
+							queued = new CompletableFuture<>();
+							queued.completeExceptionally(e);
+						}
+						queued.whenComplete((result, e) -> {
+							if (e != null) {
+								reportSaveFailure(snapshot.pos, e);
+							}
+							window.release();
+							progress.accept(snapshot.pos, written.incrementAndGet());
+						});
+					});
+				} catch (RuntimeException ex) {
+					window.release();
+					throw ex;
+				}
+			}
+			workers.awaitCompletion();
+			compressWorkers.awaitCompletion();
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Builds the NBT for the given snapshot on the calling thread, and then
+	 * compresses it on one of the {@link #compressWorkers} and writes it.
+	 * Safe to call from any thread.
+	 *
+	 * Blocks while too many encoded chunks are waiting to be compressed.
+	 *
+	 * @return A future completed once the chunk has been handed to the
+	 *         {@link #writeQueue} (or skipped as unchanged), or completed
+	 *         exceptionally if it couldn't be compressed.
+	 */
+	protected CompletableFuture<Void> writeSnapshot(ChunkSnapshot snapshot) throws Exception {
+		long fingerprint = 0;
+		if (skipUnchangedChunks) {
+			// Before importing old tile entities, so that an unchanged chunk
+			// doesn't read its previous version at all
+			fingerprint = ChunkFingerprints.compute(snapshot);
+			if (wdl.chunkFingerprints.isUnchanged(snapshot.pos, fingerprint)) {
+				// Already written with the same captures
+				journalCheckpoint(snapshot);
+				return CompletableFuture.completedFuture(null);
+			}
+		}
+
+		ListTag tileEntities = getTileEntityList(snapshot);
+
+		IoPool.Buffer bytes = IoPool.takeBuffer();
+		try {
+			if (streamingEncoder) {
+				ChunkNbtWriter writer = ChunkNbtWriter.get();
+				writer.write(snapshot, tileEntities, VersionConstants.getDataVersion());
+				// The writer's own buffer is reused by the next chunk on this thread
+				writer.writeTo(bytes);
+			} else {
+				CompoundTag levelTag = writeSnapshotToNBT(snapshot, tileEntities);
+
+				CompoundTag rootTag = new CompoundTag();
+				rootTag.put("Level", levelTag);
+				rootTag.putInt("DataVersion", VersionConstants.getDataVersion());
+
+				NbtIo.write(rootTag, new DataOutputStream(bytes));
+			}
+		} catch (Exception ex) {
+			IoPool.releaseBuffer(bytes);
+			throw ex;
+		}
+
+		// A chunk bigger than the whole limit still goes through, alone
+		int permits = Math.min(bytes.size(), compressLimit);
+		try {
+			compressPermits.acquire(permits);
+		} catch (InterruptedException ex) {
+			IoPool.releaseBuffer(bytes);
+			throw ex;
+		}
+
+		// Started now, so that the chunk isn't skipped as unchanged while it
+		// is waiting to be compressed
+		long write = skipUnchangedChunks ? wdl.chunkFingerprints.beginWrite(snapshot.pos) : 0;
+		long written = fingerprint;
+		CompletableFuture<Void> queued = new CompletableFuture<>();
+		try {
+			compressWorkers.submit(snapshot.pos, () -> {
+				byte[] data;
+				try {
+					data = compressor.compress(bytes.array(), 0, bytes.size());
+				} catch (Throwable t) {
+					queued.completeExceptionally(t);
+					return;
+				} finally {
+					IoPool.releaseBuffer(bytes);
+					compressPermits.release(permits);
+				}
+				try {
+					// Only done once written, so that a chunk whose write
+					// failed isn't skipped the next time, and its captures
+					// are still recovered after a crash
+					writeQueue.enqueue(snapshot.pos, data, () -> {
+						if (skipUnchangedChunks) {
+							wdl.chunkFingerprints.record(snapshot.pos, written, write);
+						}
+						indexTileEntities(snapshot.pos, tileEntities);
+						journalCheckpoint(snapshot);
+					});
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					queued.completeExceptionally(ex);
+					return;
+				}
+				onChunkWritten(snapshot.pos);
+				queued.complete(null);
+			});
+		} catch (RuntimeException ex) {
+			IoPool.releaseBuffer(bytes);
+			compressPermits.release(permits);
+			throw ex;
+		}
+		return queued;
+	}
+
+	/**
+	 * Called after a chunk has been handed to its region file, so that any
+	 * data cached from the previous version of the chunk can be dropped.
+	 */
+	protected void onChunkWritten(ChunkPos pos) { }
+
+	/**
+	 * Records the tile entities now stored in the given chunk in the
+	 * {@link #tileEntityIndex}, if it is enabled.
+	 */
+	protected void indexTileEntities(ChunkPos pos, ListTag tileEntities) {
+		if (tileEntityIndex == null) {
+			return;
+		}
+		try {
+			tileEntityIndex.put(pos, tileEntities);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to update the tile entity index for " + pos, ex);
+		}
+	}
+
+	/**
+	 * Records the tile entities read from the previous version of the given
+	 * chunk in the {@link #tileEntityIndex}, if it is enabled and doesn't
+	 * already have a (newer) entry for the chunk.
+	 */
+	protected void backfillTileEntities(ChunkPos pos, ListTag tileEntities) {
+		if (tileEntityIndex == null) {
+			return;
+		}
+		try {
+			tileEntityIndex.putIfAbsent(pos, tileEntities);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to update the tile entity index for " + pos, ex);
+		}
+	}
+
+	/**
+	 * Gets the tile entities that were previously written to the given chunk,
+	 * according to the {@link #tileEntityIndex}.  The index is only updated
+	 * once a write has succeeded, so it isn't used while one is pending.
+	 *
+	 * @return The tile entities, or null if they aren't known and the chunk
+	 *         needs to be read instead.
+	 */
+	@Nullable
+	protected Map<BlockPos, CompoundTag> getIndexedTileEntities(ChunkPos pos) {
+		if (tileEntityIndex == null || isWritePending(pos)) {
+			return null;
+		}
+		try {
+			return tileEntityIndex.get(pos);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to read the tile entity index for " + pos, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the chunk journal if it is enabled.  If it is disabled but a
+	 * journal was left over from a previous session, that journal is still
+	 * folded into the region files and then closed.
+	 */
+	@Nullable
+	private ChunkJournal openJournal(File directory) {
+		boolean enabled = WDL.serverProps.getValue(MiscSettings.CHUNK_JOURNAL);
+		if (!enabled && !ChunkJournal.hasSegments(directory)) {
+			// Nothing to recover; a leftover empty folder is just removed
+			directory.delete();
+			return null;
+		}
+		ChunkJournal.RegionWriter regionWriter = new ChunkJournal.RegionWriter() {
+			@Override
+			public void write(ChunkPos pos, byte[] data) throws IOException {
+				writeToRegion(pos, data);
+			}
+
+			@Override
+			public void sync() throws IOException {
+				regionStorage.sync();
+			}
+		};
+		try {
+			ChunkJournal journal = new ChunkJournal(directory, regionWriter,
+					WDL.serverProps.getValue(MiscSettings.REGION_DURABILITY) == Durability.SYNC_EACH_WRITE,
+					64 * 1024 * 1024);
+			if (!enabled) {
+				journal.close();
+				// Only removed if nothing (such as an invalid segment) is left
+				directory.delete();
+				return null;
+			}
+			// Fold the journal after 5 seconds without any chunks being saved
+			journal.startCompactor(5000);
+			return journal;
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to open the chunk journal in " + directory
+					+ "; chunks will be written directly to the region files", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the capture journal, if it is enabled or was left over from a
+	 * previous session.
+	 */
+	@Nullable
+	private CaptureJournal openCaptureJournal(File file) {
+		if (!WDL.serverProps.getValue(MiscSettings.CAPTURE_JOURNAL) && !file.exists()) {
+			return null;
+		}
+		try {
+			return new CaptureJournal(file,
+					WDL.serverProps.getValue(MiscSettings.CAPTURE_JOURNAL_SYNC_MILLIS));
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to open the capture journal " + file
+					+ "; captures will not survive a crash", ex);
+			return null;
+		}
+	}
+
+	@Nullable
+	private CaptureSpiller openCaptureSpiller(File file) {
+		int limit = WDL.serverProps.getValue(MiscSettings.RETAINED_CAPTURES_LIMIT_MB);
+		if (limit <= 0) {
+			return null;
+		}
+		try {
+			return new CaptureSpiller(wdl, file, limit * 1024L * 1024L);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to open the spill file " + file
+					+ "; captures will be kept in memory", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Called after an entity or tile entity has been retained for the given
+	 * chunk, to keep what is retained within its memory budget.  Must hold
+	 * {@link WDL#captureLock}.
+	 */
+	public void retainCapture(ChunkPos pos, CompoundTag tag) {
+		if (captureSpiller == null) {
+			return;
+		}
+		captureSpiller.captured(pos, tag);
+	}
+
+	/**
+	 * Records a tile entity saved by {@link WDL#saveTileEntity} in the
+	 * capture journal.
+	 */
+	public void journalTileEntity(BlockPos pos, CompoundTag tag) {
+		if (captureJournal == null) {
+			return;
+		}
+		try {
+			captureJournal.appendTileEntity(pos, tag);
+		} catch (Exception ex) {
+			LOGGER.warn("[WDL] Failed to journal the tile entity at " + pos, ex);
+		}
+	}
+
+	/**
+	 * Records an entity saved for the given chunk in the capture journal.
+	 */
+	public void journalEntity(ChunkPos pos, CompoundTag tag) {
+		if (captureJournal == null) {
+			return;
+		}
+		try {
+			captureJournal.appendEntity(pos, tag);
+		} catch (Exception ex) {
+			LOGGER.warn("[WDL] Failed to journal entity " + tag.getString("id") + " in " + pos, ex);
+		}
+	}
+
+	/**
+	 * Records in the capture journal that the given snapshot's chunk has been
+	 * written, with everything captured for it before the snapshot was taken.
+	 * Called once the write has succeeded, as only then can recovery skip
+	 * those captures.
+	 */
+	private void journalCheckpoint(ChunkSnapshot snapshot) {
+		CaptureJournal captureJournal = this.captureJournal;
+		if (captureJournal == null || snapshot.captureMark < 0) {
+			return;
+		}
+		try {
+			captureJournal.appendCheckpoint(snapshot.pos, snapshot.captureMark);
+		} catch (Exception ex) {
+			LOGGER.warn("[WDL] Failed to journal a checkpoint for " + snapshot.pos, ex);
+		}
+	}
+
+	/**
+	 * Records a map saved with the given ID in the capture journal.
+	 */
+	public void journalMap(int id, MapState map) {
+		if (captureJournal == null) {
+			return;
+		}
+		try {
+			CompoundTag tag = new CompoundTag();
+			tag.put("data", map.toTag(new CompoundTag()));
+			captureJournal.appendMap(id, tag);
+		} catch (Exception ex) {
+			LOGGER.warn("[WDL] Failed to journal map " + id, ex);
+		}
+	}
+
+	/**
+	 * Discards the capture journal, once everything in it has been saved (or
+	 * the download is canceled).
+	 */
+	public void truncateCaptureJournal() {
+		if (captureJournal == null) {
+			return;
+		}
+		try {
+			captureJournal.truncate();
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to truncate the capture journal", ex);
+		}
+	}
+
+	/**
+	 * Recovers the captures left in the capture journal by a session that
+	 * didn't finish saving.  Tile entities and entities are merged into the
+	 * chunks they belong to (captures for chunks that were never saved are
+	 * dropped, as there is nothing to put them in, and captures the chunk was
+	 * later written with are skipped), and maps are put back into
+	 * {@link WDL#newMapDatas} to be saved with the rest.  Should be called once
+	 * WDL's own captures have been cleared for the new download.
+	 *
+	 * @return The number of captures recovered.
+	 */
+	public int recoverCaptures() {
+		if (captureJournal == null) {
+			return 0;
+		}
+		int count = 0;
+		if (captureJournal.getNumRecords() > 0) {
+			LOGGER.info("[WDL] Recovering captures from " + captureJournal);
+			Map<ChunkPos, Map<BlockPos, CompoundTag>> tileEntities = new LinkedHashMap<>();
+			Map<ChunkPos, Map<UUID, CompoundTag>> entities = new LinkedHashMap<>();
+			Map<UUID, ChunkPos> entityPositions = new HashMap<>();
+			Map<Integer, CompoundTag> maps = new LinkedHashMap<>();
+			try {
+				count = captureJournal.replay(new CaptureJournal.Replayer() {
+					@Override
+					public void tileEntity(BlockPos pos, CompoundTag tag) {
+						tileEntities.computeIfAbsent(new ChunkPos(pos), k -> new HashMap<>()).put(pos, tag);
+					}
+
+					@Override
+					public void entity(ChunkPos pos, CompoundTag tag) {
+						if (!tag.containsUuid("UUID")) {
+							return;
+						}
+						UUID uuid = tag.getUuid("UUID");
+						// An entity is only kept in the chunk it was last saved in
+						ChunkPos prevPos = entityPositions.put(uuid, pos);
+						if (prevPos != null) {
+							entities.get(prevPos).remove(uuid);
+						}
+						entities.computeIfAbsent(pos, k -> new LinkedHashMap<>()).put(uuid, tag);
+					}
+
+					@Override
+					public void map(int id, CompoundTag tag) {
+						maps.put(id, tag);
+					}
+
+					@Override
+					public void entityWritten(ChunkPos pos, CompoundTag tag) {
+						if (!tag.containsUuid("UUID")) {
+							return;
+						}
+						// Already in that chunk, so not anywhere it was before
+						UUID uuid = tag.getUuid("UUID");
+						ChunkPos prevPos = entityPositions.remove(uuid);
+						if (prevPos != null) {
+							entities.get(prevPos).remove(uuid);
+						}
+					}
+				});
+				mergeCaptures(tileEntities, entities);
+			} catch (IOException ex) {
+				LOGGER.warn("[WDL] Failed to recover captures from " + captureJournal, ex);
+				return 0;
+			}
+
+			Map<Integer, MapState> mapDatas;
+			synchronized (wdl.captureLock) {
+				for (Map.Entry<Integer, CompoundTag> e : maps.entrySet()) {
+					MapState map = new MapState("map_" + e.getKey());
+					map.fromTag(e.getValue().getCompound("data"));
+					wdl.newMapDatas.put(e.getKey(), map);
+				}
+				mapDatas = new HashMap<>(wdl.newMapDatas);
+			}
+			truncateCaptureJournal();
+			// The maps are only in memory again, so they need to stay journaled
+			for (Map.Entry<Integer, MapState> e : mapDatas.entrySet()) {
+				journalMap(e.getKey(), e.getValue());
+			}
+		}
+		if (!WDL.serverProps.getValue(MiscSettings.CAPTURE_JOURNAL)) {
+			// Only opened to recover what was left over
+			try {
+				captureJournal.close();
+			} catch (IOException ex) {
+				LOGGER.warn("[WDL] Failed to close the capture journal", ex);
+			}
+			captureJournal = null;
+		}
+		return count;
+	}
+
+	/**
+	 * Writes recovered tile entities and entities into the saved versions of
+	 * their chunks, replacing any with the same position or UUID.
+	 */
+	private void mergeCaptures(Map<ChunkPos, Map<BlockPos, CompoundTag>> tileEntities,
+			Map<ChunkPos, Map<UUID, CompoundTag>> entities) throws IOException {
+		Set<ChunkPos> chunks = new HashSet<>(tileEntities.keySet());
+		chunks.addAll(entities.keySet());
+		int merged = 0;
+		for (ChunkPos pos : chunks) {
+			CompoundTag root = readChunkNbt(pos);
+			if (root == null) {
+				LOGGER.warn("[WDL] Dropping recovered captures for " + pos + ", which was never saved");
+				continue;
+			}
+			CompoundTag level = root.getCompound("Level");
+
+			ListTag tileEntityList = level.getList("TileEntities", 10);
+			Map<BlockPos, CompoundTag> newTileEntities = tileEntities.getOrDefault(pos, Collections.emptyMap());
+			tileEntityList.removeIf(tag -> newTileEntities.containsKey(getBlockEntityPos((CompoundTag) tag)));
+			tileEntityList.addAll(newTileEntities.values());
+			level.put("TileEntities", tileEntityList);
 
-		CompoundTag rootTag = new CompoundTag();
-		rootTag.put("Level", levelTag);
-		rootTag.putInt("DataVersion", VersionConstants.getDataVersion());
+			ListTag entityList = level.getList("Entities", 10);
+			Map<UUID, CompoundTag> newEntities = entities.getOrDefault(pos, Collections.emptyMap());
+			entityList.removeIf(tag -> ((CompoundTag) tag).containsUuid("UUID")
+					&& newEntities.containsKey(((CompoundTag) tag).getUuid("UUID")));
+			entityList.addAll(newEntities.values());
+			level.put("Entities", entityList);
 
-		setTagAt(c.getPos(), rootTag);
+			IoPool.Buffer bytes = IoPool.takeBuffer();
+			try {
+				NbtIo.write(root, new DataOutputStream(bytes));
+				writeToRegion(pos, compressor.compress(bytes.array(), 0, bytes.size()));
+			} finally {
+				IoPool.releaseBuffer(bytes);
+			}
+			indexTileEntities(pos, tileEntityList);
+			onChunkWritten(pos);
+			merged++;
+		}
+		regionStorage.sync();
+		LOGGER.info("[WDL] Merged recovered captures into " + merged + " of " + chunks.size() + " chunks");
+	}
+
+	private static BlockPos getBlockEntityPos(CompoundTag tag) {
+		return new BlockPos(tag.getInt("x"), tag.getInt("y"), tag.getInt("z"));
+	}
+
+	/**
+	 * Writes the given {@link ChunkCompressor compressed} chunks, all in the
+	 * same region, to the journal or their region file.  Called by the
+	 * {@link #writeQueue}'s thread.
+	 */
+	protected void writeChunkData(int regionX, int regionZ, List<ChunkPos> positions,
+			List<byte[]> data) throws IOException {
+		try {
+			if (journal != null) {
+				for (int i = 0; i < positions.size(); i++) {
+					journal.append(positions.get(i), data.get(i));
+				}
+			} else {
+				Lock lock = getRegionLock(positions.get(0));
+				lock.lock();
+				try {
+					regionStorage.writeBatch(regionX, regionZ, positions, data);
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (IOException ex) {
+			ChunkPos pos = positions.get(0);
+			WDLMessages.chatMessageTranslated(WDL.serverProps,
+					WDLMessageTypes.ERROR,
+					"wdl.messages.generalError.failedToSaveChunk", pos.x, pos.z, ex);
+			throw ex;
+		}
+
+		try {
+			coverageIndex.markSaved(regionX, regionZ, positions,
+					(int) (System.currentTimeMillis() / 1000));
+		} catch (IOException ex) {
+			// The chunks themselves were saved, so this isn't worth a chat message
+			LOGGER.warn("[WDL] Failed to update the coverage of region " + regionX + ", " + regionZ, ex);
+		}
+	}
 
-		wdl.unloadChunk(c.getPos());
+	/**
+	 * Creates the {@link CoverageIndex} of the dimension with the given region
+	 * folder.  This can be used without a download running.
+	 */
+	public static CoverageIndex createCoverageIndex(File regionFolder) {
+		return new CoverageIndex(new File(regionFolder.getParentFile(),
+				"wdl" + File.separator + "coverage"), regionFolder);
+	}
+
+	/**
+	 * Writes the given {@link ChunkCompressor compressed} chunk to its region
+	 * file.
+	 */
+	protected void writeToRegion(ChunkPos pos, byte[] data) throws IOException {
+		Lock lock = getRegionLock(pos);
+		lock.lock();
+		try {
+			regionStorage.write(pos, data);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the NBT of the chunk currently saved at the given position,
+	 * including chunks that are still in the {@link #writeQueue} or the
+	 * {@link #journal}.
+	 *
+	 * @return The NBT, or null if the chunk has not been saved.
+	 */
+	@Nullable
+	protected CompoundTag readChunkNbt(ChunkPos pos) throws IOException {
+		return readChunkNbt(pos, true);
+	}
+
+	/**
+	 * Checks if the given chunk is in the {@link #writeQueue}, i.e. queued or
+	 * being written.
+	 */
+	protected boolean isWritePending(ChunkPos pos) {
+		return writeQueue.getPending(pos) != null;
+	}
+
+	/**
+	 * Reads the NBT of the chunk currently saved at the given position.
+	 *
+	 * @param includeQueued Whether to read chunks still in the
+	 *                      {@link #writeQueue}, rather than only what has
+	 *                      been written.
+	 * @return The NBT, or null if the chunk has not been saved.
+	 */
+	@Nullable
+	protected CompoundTag readChunkNbt(ChunkPos pos, boolean includeQueued) throws IOException {
+		byte[] pending = includeQueued ? writeQueue.getPending(pos) : null;
+		if (pending != null) {
+			try (DataInputStream stream = ChunkCompressor.decompress(pending)) {
+				return NbtIo.read(stream);
+			}
+		}
+
+		byte[] data = null;
+		if (journal != null) {
+			data = journal.read(pos);
+		}
+		if (data == null) {
+			Lock lock = getRegionLock(pos);
+			lock.lock();
+			try {
+				data = regionStorage.read(pos);
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (data == null) {
+			return null;
+		}
+		try (DataInputStream stream = ChunkCompressor.decompress(data)) {
+			return NbtIo.read(stream);
+		}
 	}
 
 	/**
@@ -142,44 +1014,51 @@ public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
 	 *            time.
 	 * @return A new CompoundTag
 	 */
-	
 	public CompoundTag writeChunkToNBT(Chunk c, World world) {
+		return writeSnapshotToNBT(takeSnapshot(c, world));
+	}
+
+	/**
+	 * Creates the level NBT compound tag for the given snapshot.
+	 *
+	 * @param snapshot The snapshot to write
+	 * @return A new CompoundTag
+	 */
+	public CompoundTag writeSnapshotToNBT(ChunkSnapshot snapshot) {
+		return writeSnapshotToNBT(snapshot, getTileEntityList(snapshot));
+	}
+
+	/**
+	 * Creates the level NBT compound tag for the given snapshot, using an
+	 * already computed tile entity list.
+	 */
+	protected CompoundTag writeSnapshotToNBT(ChunkSnapshot snapshot, ListTag tileEntityList) {
 		CompoundTag compound = new CompoundTag();
-		ChunkPos chunkpos = c.getPos();
-		UpgradeData upgradedata = c.getUpgradeData();
-		
+		ChunkPos chunkpos = snapshot.pos;
+
 		compound.putInt("xPos", chunkpos.x);
 		compound.putInt("zPos", chunkpos.z);
-		compound.putLong("LastUpdate", world.getTime());
-		compound.putLong("InhabitedTime", c.getInhabitedTime());
+		compound.putLong("LastUpdate", snapshot.lastUpdate);
+		compound.putLong("InhabitedTime", snapshot.inhabitedTime);
 		compound.putString("Status", ChunkStatus.FULL.toString()); // Make sure that the chunk is considered fully generated
 
-		if (!upgradedata.isDone()) {
-			compound.put("UpgradeData", upgradedata.toTag());
+		if (snapshot.upgradeData != null) {
+			compound.put("UpgradeData", snapshot.upgradeData);
 		}
 
-		ChunkSection[] chunkSections = c.getSectionArray();
 		ListTag chunkSectionList = new ListTag();
-		LightingProvider worldlightmanager = world.getChunkManager().getLightingProvider();
-
-		// XXX: VersionedFunctions.hasSkyLight is inapplicable here presumably, but it might still need to be used somehow
-		for(int y = -1; y < 17; ++y) {
-			final int f_y = y; // Compiler food
-			ChunkSection chunkSection = Arrays.stream(chunkSections)
-					.filter(section -> section != null && section.getYOffset() >> 4 == f_y)
-					.findFirst()
-					.orElse(WorldChunk.EMPTY_SECTION);
-			
-			ChunkNibbleArray blocklightArray = worldlightmanager.get(LightType.BLOCK)
-					.getLightSection(ChunkSectionPos.from(chunkpos, y));
-			ChunkNibbleArray skylightArray = worldlightmanager.get(LightType.SKY)
-					.getLightSection(ChunkSectionPos.from(chunkpos, y));
-			if (chunkSection != WorldChunk.EMPTY_SECTION || blocklightArray != null
+
+		for (int y = -1; y < 17; ++y) {
+			ChunkSection chunkSection = (y >= 0 && y < 16 ? snapshot.getSection(y) : null);
+			ChunkNibbleArray blocklightArray = snapshot.getBlockLight(y);
+			ChunkNibbleArray skylightArray = snapshot.getSkyLight(y);
+
+			if (chunkSection != null || blocklightArray != null
 					|| skylightArray != null) {
 				CompoundTag sectionNBT = new CompoundTag();
 				sectionNBT.putByte("Y", (byte) (y & 255));
 				
-				if (chunkSection != WorldChunk.EMPTY_SECTION) {
+				if (chunkSection != null) {
 					chunkSection.getContainer().write(sectionNBT, "Palette", "BlockStates");
 				}
 
@@ -197,59 +1076,26 @@ public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
 
 		compound.put("Sections", chunkSectionList);
 
-		if (c.isLightOn()) {
+		if (snapshot.lightOn) {
 			compound.putBoolean("isLightOn", true);
 		}
 
-		BiomeArray biomes = c.getBiomeArray();
-		
-		if (biomes != null) {
-			compound.putIntArray("Biomes", biomes.toIntArray());
+		if (snapshot.getBiomes() != null) {
+			compound.putIntArray("Biomes", snapshot.getBiomes());
 		}
 
-		ListTag entityList = getEntityList(c);
-		compound.put("Entities", entityList);
+		compound.put("Entities", snapshot.entities);
 
-		ListTag tileEntityList = getTileEntityList(c);
 		compound.put("TileEntities", tileEntityList);
 
-		// XXX: Note: This was re-sorted on mojang's end; I've undone that.
-		if (world.getBlockTickScheduler() instanceof ServerTickScheduler) {
-			compound.put("TileTicks", ((ServerTickScheduler<?>) world.getBlockTickScheduler())
-					.toTag(chunkpos));
-		}
-		if (world.getFluidTickScheduler() instanceof ServerTickScheduler) {
-			compound.put("LiquidTicks", ((ServerTickScheduler<?>) world.getFluidTickScheduler())
-					.toTag(chunkpos));
-		}
-
-		compound.put("PostProcessing", listArrayToTag(c.getPostProcessingLists()));
+		compound.put("PostProcessing", listArrayToTag(snapshot.getPostProcessing()));
 
-		if (c.getBlockTickScheduler() instanceof ChunkTickScheduler) {
-			compound.put("ToBeTicked", ((ChunkTickScheduler<?>) c.getBlockTickScheduler()).toNbt());
-		}
-
-		// XXX: These are new, and they might conflict with the other one.  Not sure which should be used.
-		if (c.getBlockTickScheduler() instanceof SimpleTickScheduler) {
-			compound.put("TileTicks", ((SimpleTickScheduler<?>) c.getBlockTickScheduler()).toNbt());
-		}
-
-		if (c.getFluidTickScheduler() instanceof ChunkTickScheduler) {
-			compound.put("LiquidsToBeTicked", ((ChunkTickScheduler<?>) c.getFluidTickScheduler())
-					.toNbt());
-		}
-
-		if (c.getFluidTickScheduler() instanceof SimpleTickScheduler) {
-			compound.put("LiquidTicks", ((SimpleTickScheduler<?>) c.getFluidTickScheduler()).toNbt());
-		}
+		snapshot.writeTicks(compound);
 
 		CompoundTag heightMaps = new CompoundTag();
 
-		for (Entry<Heightmap.Type, Heightmap> entry : c.getHeightmaps()) {
-			if (c.getStatus().getHeightmapTypes().contains(entry.getKey())) {
-				heightMaps.put(entry.getKey().getName(),
-						new LongArrayTag(entry.getValue().asLongArray()));
-			}
+		for (Entry<String, long[]> entry : snapshot.getHeightmaps().entrySet()) {
+			heightMaps.put(entry.getKey(), new LongArrayTag(entry.getValue()));
 		}
 
 		compound.put("Heightmaps", heightMaps);
@@ -259,13 +1105,13 @@ public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
 		return compound;
 	}
 
-	private static ListTag listArrayToTag(ShortList[] list) {
+	private static ListTag listArrayToTag(short[][] list) {
 		ListTag listnbt = new ListTag();
 
-		for (ShortList shortlist : list) {
+		for (short[] shortlist : list) {
 			ListTag sublist;
 			if (shortlist != null) {
-				sublist = VersionedFunctions.createShortListTag(shortlist.toShortArray());
+				sublist = VersionedFunctions.createShortListTag(shortlist);
 			} else {
 				sublist = VersionedFunctions.createShortListTag();
 			}
@@ -276,28 +1122,198 @@ public abstract class WDLChunkLoaderBase extends VersionedChunkStorage {
 		return listnbt;
 	}
 
+	/**
+	 * Creates the entity list for the given chunk.  Called on the thread that
+	 * owns the chunk, as entities are live objects.
+	 */
 	protected abstract ListTag getEntityList(Chunk c);
-	protected abstract ListTag getTileEntityList(Chunk c);
+	/**
+	 * Serializes the tile entities of the given chunk (and those that WDL has
+	 * saved for it) into the snapshot builder.  Called on the thread that owns
+	 * the chunk.
+	 */
+	protected abstract ChunkSnapshot.Builder captureTileEntities(Chunk c, ChunkSnapshot.Builder builder);
+	/**
+	 * Creates the tile entity list for the given snapshot, importing old tile
+	 * entities as needed.  May be called from any thread.
+	 */
+	protected abstract ListTag getTileEntityList(ChunkSnapshot snapshot);
 
 	/**
 	 * Gets a count of how many chunks there are that still need to be written to
-	 * disk. (Does not include any chunk that is currently being written to disk)
+	 * disk, including chunks that still need to be encoded and the chunk that
+	 * is currently being written.
 	 *
 	 * @return The number of chunks that still need to be written to disk
 	 */
-	public synchronized int getNumPendingChunks() {
-		return this.cache.size(); // XXX This is actually the number of regions
+	public int getNumPendingChunks() {
+		return writeQueue.getNumPending() + saveWorkers.getNumPending()
+				+ compressWorkers.getNumPending();
+	}
+
+	/**
+	 * Gets the compressor used for chunks, for its metrics.
+	 */
+	public ChunkCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Gets the queue of chunks waiting to be written, for its metrics.
+	 */
+	public ChunkWriteQueue getWriteQueue() {
+		return writeQueue;
+	}
+
+	/**
+	 * Compacts every region file written to by this loader, on a temporary
+	 * fork/join pool.  Must be called after {@link #flush()}.
+	 *
+	 * @param progress Called with the number of regions compacted so far.
+	 * @return The total number of bytes reclaimed.
+	 */
+	public long compactRegions(IntConsumer progress) {
+		long[] regions = regionStorage.getWrittenRegions();
+		AtomicInteger done = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			List<ForkJoinTask<Long>> tasks = new ArrayList<>();
+			for (long key : regions) {
+				tasks.add(pool.submit(() -> {
+					int regionX = ChunkPos.getPackedX(key);
+					int regionZ = ChunkPos.getPackedZ(key);
+					long reclaimed = 0;
+					Lock lock = regionLocks.get(key);
+					lock.lock();
+					try {
+						if (regionStorage.closeRegionFile(regionX, regionZ)) {
+							reclaimed = RegionCompactor.compact(chunkSaveLocation, regionX, regionZ);
+						}
+					} catch (IOException ex) {
+						LOGGER.warn("[WDL] Failed to compact region " + regionX + ", " + regionZ, ex);
+					} finally {
+						lock.unlock();
+					}
+					progress.accept(done.incrementAndGet());
+					return reclaimed;
+				}));
+			}
+			long total = 0;
+			for (ForkJoinTask<Long> task : tasks) {
+				total += task.join();
+			}
+			return total;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Gets the number of region files that {@link #compactRegions} would
+	 * process.
+	 */
+	public int getNumWrittenRegions() {
+		return regionStorage.getWrittenRegions().length;
+	}
+
+	/**
+	 * Gets the chunk journal, for its metrics.
+	 *
+	 * @return The journal, or null if it is disabled.
+	 */
+	@Nullable
+	public ChunkJournal getJournal() {
+		return journal;
 	}
 
 	/**
-	 * Provided since the constructor changes between versions.
+	 * Gets the capture journal, for its metrics.
+	 *
+	 * @return The journal, or null if it is disabled.
 	 */
-	protected RegionFile createRegionFile(File file) throws IOException {
-		return new RegionFile(file, this.chunkSaveLocation, /*enable flushing*/false);
+	@Nullable
+	public CaptureJournal getCaptureJournal() {
+		return captureJournal;
+	}
+
+	/**
+	 * Gets the capture spiller, for its metrics.
+	 *
+	 * @return The spiller, or null if captures are never spilled.
+	 */
+	@Nullable
+	public CaptureSpiller getCaptureSpiller() {
+		return captureSpiller;
+	}
+
+	/**
+	 * Gets the folder that region files are saved to.
+	 */
+	public File getRegionFolder() {
+		return chunkSaveLocation;
+	}
+
+	/**
+	 * Gets the record of which chunks have been saved in this dimension.
+	 */
+	public CoverageIndex getCoverageIndex() {
+		return coverageIndex;
+	}
+
+	/**
+	 * Gets the region files, for their metrics.
+	 */
+	public RegionStorage getRegionStorage() {
+		return regionStorage;
 	}
 
 	// I don't know if it should be this.close() or this.completeAll() -Svegon
 	public void flush() {
-		this.completeAll();
+		try {
+			saveWorkers.awaitCompletion();
+			compressWorkers.awaitCompletion();
+			writeQueue.awaitEmpty();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (journal != null) {
+			try {
+				journal.fold();
+			} catch (IOException ex) {
+				LOGGER.warn("[WDL] Failed to fold the chunk journal", ex);
+			}
+		}
+		regionStorage.sync();
+		coverageIndex.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		saveWorkers.shutdown();
+		compressWorkers.shutdown();
+		try {
+			writeQueue.close();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (journal != null) {
+			// Folds the rest of the journal into the region files
+			journal.close();
+		}
+		if (captureJournal != null) {
+			// Kept if not empty, to be recovered by the next download
+			captureJournal.close();
+		}
+		if (captureSpiller != null) {
+			captureSpiller.close();
+		}
+		regionStorage.close();
+		coverageIndex.close();
+		super.close();
+		if (tileEntityIndex != null) {
+			// Only now are all of the region files fully written
+			tileEntityIndex.close();
+		}
+		IoPool.reportLeaks();
 	}
 }
@@ -38,7 +38,9 @@ import net.minecraft.client.world.ClientWorld;
 import net.minecraft.entity.Entity;
 import net.minecraft.inventory.EnderChestInventory;
 import net.minecraft.item.map.MapState;
+import net.minecraft.nbt.CompoundTag;
 import net.minecraft.network.packet.s2c.play.BlockEventS2CPacket;
+import net.minecraft.network.packet.s2c.play.ChunkDataS2CPacket;
 import net.minecraft.network.packet.s2c.play.CustomPayloadS2CPacket;
 import net.minecraft.network.packet.s2c.play.GameMessageS2CPacket;
 import net.minecraft.network.packet.s2c.play.MapUpdateS2CPacket;
@@ -181,6 +183,17 @@ public class WDLEvents {
 		}
 	}
 
+	/**
+	 * Must be called after a chunk has been received from the server.
+	 */
+	public void onChunkLoaded(ChunkPos pos) {
+		if (!WDL.downloading) { return; }
+
+		// Start reading the previously saved version of the chunk, so that
+		// tile entities can be imported when it is saved
+		wdl.chunkLoader.prefetchChunk(pos);
+	}
+
 	/**
 	 * Must be called when a GUI that receives item stacks from the server is
 	 * shown.
@@ -402,7 +415,12 @@ public class WDLEvents {
 		assert player != null;
 		MapDataHandler.MapDataResult result = MapDataHandler.repairMapData(mapID, mapData, wdl.player);
 
-		wdl.newMapDatas.put(mapID, result.map);
+		synchronized (wdl.captureLock) {
+			wdl.newMapDatas.put(mapID, result.map);
+		}
+		if (wdl.chunkLoader != null) {
+			wdl.chunkLoader.journalMap(mapID, result.map);
+		}
 
 		WDLMessages.chatMessageTranslated(WDL.serverProps, WDLMessageTypes.ON_MAP_SAVED,
 				"wdl.messages.onMapSaved", mapID, result.toComponent());
@@ -449,17 +467,30 @@ public class WDLEvents {
 						wdl.player.getPos(), threshold, serverViewDistance);
 				ChunkPos pos = new ChunkPos(entity.chunkX, entity.chunkZ);
 				UUID uuid = entity.getUuid();
-				
-				if (wdl.entityPositions.containsKey(uuid)) {
-					// Remove previous entity, to avoid saving the same one in multiple chunks.
-					ChunkPos prevPos = wdl.entityPositions.get(uuid);
-					boolean removedSome = wdl.newEntities.get(pos)
-							.removeIf(e -> e.getUuid().equals(uuid));
-					LOGGER.info("Replacing entity with UUID {} previously located at {} with new position {}.  There was an entity at old position (should be true): {}", uuid, prevPos, pos, removedSome);
+
+				if (!WDLChunkLoader.shouldSaveEntity(entity)) {
+					return;
+				}
+				// Keep only the entity's NBT, so that it doesn't keep the world alive
+				CompoundTag tag = WDLChunkLoader.writeEntity(entity, pos);
+				if (tag == null) {
+					return;
 				}
 				
-				wdl.newEntities.put(pos, entity);
-				wdl.entityPositions.put(uuid, pos);
+				// Replaces any previous copy, to avoid saving the same one in multiple chunks.
+				ChunkPos prevPos;
+				synchronized (wdl.captureLock) {
+					prevPos = wdl.newEntities.put(pos, uuid, tag);
+					if (wdl.chunkLoader != null) {
+						wdl.chunkLoader.retainCapture(pos, tag);
+					}
+				}
+				if (prevPos != null) {
+					LOGGER.info("Replaced entity with UUID {} previously located at {} with new position {}.", uuid, prevPos, pos);
+				}
+				if (wdl.chunkLoader != null) {
+					wdl.chunkLoader.journalEntity(pos, tag);
+				}
 			} else {
 				WDLMessages.chatMessageTranslated(WDL.serverProps, WDLMessageTypes.REMOVE_ENTITY,
 						"wdl.messages.removeEntity.allowingRemoveDistance", entity,
@@ -691,6 +722,30 @@ public class WDLEvents {
 			}
 		}
 
+		@Override
+		public void onNHPCHandleChunkData(ClientPlayNetworkHandler sender, ClientWorld world,
+				ChunkDataS2CPacket packet) {
+			try {
+				if (!wdl.minecraft.isOnThread()) {
+					return;
+				}
+
+				if (!WDL.downloading) {
+					return;
+				}
+
+				if (ENABLE_PROFILER)
+					PROFILER.push("wdl.onChunkLoaded");
+
+				wdlEvents.onChunkLoaded(new ChunkPos(packet.getX(), packet.getZ()));
+
+				if (ENABLE_PROFILER)
+					PROFILER.pop();  // "wdl.onChunkLoaded"
+			} catch (Throwable e) {
+				wdl.crashed(e, "WDL mod: exception in onNHPCHandleChunkData event");
+			}
+		}
+
 		@Override
 		public void onNHPCHandleChat(ClientPlayNetworkHandler sender, GameMessageS2CPacket packet) {
 			try {
@@ -54,6 +54,8 @@ public final class WDLHooks {
 		public void onWorldClientRemoveEntityFromWorld(ClientWorld sender, int eid);
 		public void onNHPCHandleChunkUnload(ClientPlayNetworkHandler sender, ClientWorld world,
 				UnloadChunkS2CPacket packet);
+		public void onNHPCHandleChunkData(ClientPlayNetworkHandler sender, ClientWorld world,
+				ChunkDataS2CPacket packet);
 		public void onNHPCHandleChat(ClientPlayNetworkHandler sender, GameMessageS2CPacket packet);
 		public void onNHPCHandleMaps(ClientPlayNetworkHandler sender, MapUpdateS2CPacket packet);
 		public void onNHPCHandleCustomPayload(ClientPlayNetworkHandler sender,
@@ -94,6 +96,12 @@ public final class WDLHooks {
 			listener.onNHPCHandleChunkUnload(sender, world, packet);
 		}
 
+		@Override
+		public void onNHPCHandleChunkData(ClientPlayNetworkHandler sender, ClientWorld world, ChunkDataS2CPacket packet) {
+			bootstrap();
+			listener.onNHPCHandleChunkData(sender, world, packet);
+		}
+
 		@Override
 		public void onNHPCHandleChat(ClientPlayNetworkHandler sender, GameMessageS2CPacket packet) {
 			bootstrap();
@@ -191,6 +199,16 @@ public final class WDLHooks {
 		listener.onNHPCHandleChunkUnload(sender, world, packet);
 	}
 
+	/**
+	 * Called when {@link ClientPlayNetworkHandler#onChunkData(ChunkDataS2CPacket)} is called.
+	 * <br/>
+	 * Should be at the end of the method.
+	 */
+	public static void onNHPCHandleChunkData(ClientPlayNetworkHandler sender,
+			ClientWorld world, ChunkDataS2CPacket packet) {
+		listener.onNHPCHandleChunkData(sender, world, packet);
+	}
+
 	/**
 	 * Called when {@link ClientPlayNetworkHandler#handleChat(SChatPacket)} is
 	 * called.
@@ -285,6 +285,32 @@ public class WorldBackup {
 		}
 	}
 
+	/**
+	 * Starts a {@link LazyWorldBackup} of the given world, which backs up
+	 * files as the download changes them instead of all at once.
+	 *
+	 * @param worldFolder The folder that contains the world to backup.
+	 * @param worldName The name of the world.
+	 *
+	 * @throws IOException
+	 */
+	public static LazyWorldBackup startLazyBackup(File worldFolder, String worldName)
+			throws IOException {
+		String folderName = LocalDateTime.now().format(DATE_FORMAT) + "_" + worldName;
+
+		File destination = new File(getBackupsFolder(), folderName);
+
+		if (destination.exists()) {
+			throw new BackupFailedException("Backup folder (" + destination +
+					") already exists!");
+		}
+		if (!destination.mkdirs()) {
+			throw new BackupFailedException("Failed to create backup folder (" + destination + ")");
+		}
+
+		return new LazyWorldBackup(worldFolder, destination, worldName);
+	}
+
 	/**
 	 * Copies a directory.
 	 * @return The size of the created copy.
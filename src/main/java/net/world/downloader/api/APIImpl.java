@@ -13,6 +13,8 @@
  */
 package net.world.downloader.api;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,12 +33,14 @@ import net.minecraft.util.math.BlockPos;
 import net.world.downloader.MessageTypeCategory;
 import net.world.downloader.VersionConstants;
 import net.world.downloader.WDL;
+import net.world.downloader.WDLChunkLoader;
 import net.world.downloader.WDLMessages;
 import net.world.downloader.WDLPluginChannels;
 import net.world.downloader.api.WDLApi.ModInfo;
 import net.world.downloader.config.Setting;
 import net.world.downloader.config.settings.MiscSettings.ExtensionEnabledSetting;
 import net.world.downloader.handler.HologramHandler;
+import net.world.downloader.storage.RegionReader;
 import net.world.downloader.utils.EntityRealigner;
 
 /**
@@ -207,6 +211,17 @@ public class APIImpl implements WDLApi.APIInstance {
 		}
 	}
 
+	@Override
+	public RegionReader openRegionReader(File regionFile) throws IOException {
+		return new RegionReader(regionFile);
+	}
+
+	@Override
+	public File getRegionFolder() {
+		WDLChunkLoader chunkLoader = WDL.getInstance().chunkLoader;
+		return chunkLoader != null ? chunkLoader.getRegionFolder() : null;
+	}
+
 	@Override
 	public boolean isEnabled(String modID) {
 		if (wdlMods.containsKey(modID)) {
@@ -14,6 +14,7 @@
 package net.world.downloader.api;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.util.List;
 import java.util.Map;
@@ -24,6 +25,7 @@ import org.jetbrains.annotations.Nullable;
 
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.util.math.BlockPos;
+import net.world.downloader.storage.RegionReader;
 
 /**
  * Tool to allow other mods to interact with WDL.
@@ -102,6 +104,35 @@ public class WDLApi {
 		return INSTANCE.getModInfo(name);
 	}
 
+	/**
+	 * Opens a read-only, memory-mapped view of the given region (.mca) file,
+	 * e.g. to scan chunks that have been downloaded.  The reader can be used
+	 * from any number of threads at once, and must be closed by the caller.
+	 *
+	 * The reader doesn't see chunks that WDL writes after it was opened, and
+	 * reading a chunk that has been rewritten since may fail; to scan the
+	 * region files of a download, do it after the download has been saved.
+	 *
+	 * @param regionFile The region file.
+	 * @return The reader.
+	 */
+	public static RegionReader openRegionReader(File regionFile) throws IOException {
+		checkState();
+		return INSTANCE.openRegionReader(regionFile);
+	}
+
+	/**
+	 * Gets the folder that region files of the current dimension are being
+	 * saved to.
+	 *
+	 * @return The folder, or null if no download is running.
+	 */
+	@Nullable
+	public static File getRegionFolder() {
+		checkState();
+		return INSTANCE.getRegionFolder();
+	}
+
 	/**
 	 * Sets the instance.  Intended for internal use only.
 	 *
@@ -290,6 +321,11 @@ public class WDLApi {
 		abstract Map<String, ModInfo<?>> getWDLMods();
 		/** @see {@link WDLApi#getModInfo(String)} */
 		abstract String getModInfo(String name);
+		/** @see {@link WDLApi#openRegionReader(File)} */
+		abstract RegionReader openRegionReader(File regionFile) throws IOException;
+		/** @see {@link WDLApi#getRegionFolder()} */
+		@Nullable
+		abstract File getRegionFolder();
 
 		/** @see {@link ModInfo#isEnabled()} */
 		abstract boolean isEnabled(String modID);
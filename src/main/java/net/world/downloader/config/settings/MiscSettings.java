@@ -19,8 +19,10 @@ import net.world.downloader.WDL;
 import net.world.downloader.WorldBackup.WorldBackupType;
 import net.world.downloader.api.IConfiguration;
 import net.world.downloader.config.BaseSetting;
+import net.world.downloader.config.IntSetting;
 import net.world.downloader.config.Setting;
 import net.world.downloader.config.StringSetting;
+import net.world.downloader.storage.RegionStorage.Durability;
 
 /**
  * Miscellaneous settings that don't fit into any other group.
@@ -88,6 +90,110 @@ public final class MiscSettings {
 	public static final Setting<Boolean> FORCE_DIMENSION_TO_OVERWORLD =
 			new BaseSetting<>("ForceDimensionToOverworld", false, Boolean::valueOf, Object::toString);
 
+	// Chunk saving
+	/**
+	 * If true, chunks are only snapshotted on the client thread, and their NBT
+	 * is built and written by {@link #CHUNK_SAVE_THREADS} worker threads.
+	 */
+	public static final Setting<Boolean> ASYNC_CHUNK_SAVING =
+			new BaseSetting<>("AsyncChunkSaving", false, Boolean::valueOf, Object::toString);
+	public static final IntSetting CHUNK_SAVE_THREADS =
+			new IntSetting("ChunkSaveThreads",
+					Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+	/**
+	 * If true, chunk NBT is encoded directly to bytes, without building a tag
+	 * tree.
+	 */
+	public static final Setting<Boolean> STREAMING_CHUNK_ENCODER =
+			new BaseSetting<>("StreamingChunkEncoder", false, Boolean::valueOf, Object::toString);
+	/**
+	 * If true, a chunk is not written again if its content hasn't changed since
+	 * it was last written in this session.
+	 */
+	public static final Setting<Boolean> SKIP_UNCHANGED_CHUNKS =
+			new BaseSetting<>("SkipUnchangedChunks", true, Boolean::valueOf, Object::toString);
+	/**
+	 * If true, the tile entities written to each chunk are recorded in a
+	 * sidecar index, so that old tile entities can be imported without reading
+	 * the old chunk.
+	 */
+	public static final Setting<Boolean> TILE_ENTITY_INDEX =
+			new BaseSetting<>("TileEntityIndex", true, Boolean::valueOf, Object::toString);
+	/**
+	 * If true, the previously saved version of each chunk is read in the
+	 * background as soon as the chunk is received, rather than when it is saved.
+	 */
+	public static final Setting<Boolean> PREFETCH_OLD_CHUNKS =
+			new BaseSetting<>("PrefetchOldChunks", true, Boolean::valueOf, Object::toString);
+	/**
+	 * Maximum size, in megabytes, of encoded chunks waiting to be written
+	 * before saving chunks blocks.
+	 */
+	public static final IntSetting WRITE_QUEUE_LIMIT_MB =
+			new IntSetting("WriteQueueLimitMB", 64);
+	/**
+	 * Maximum size, in megabytes, of the entities and tile entities kept in
+	 * memory for chunks that haven't been saved yet; beyond this, they are
+	 * spilled to disk.  0 keeps everything in memory.
+	 */
+	public static final IntSetting RETAINED_CAPTURES_LIMIT_MB =
+			new IntSetting("RetainedCapturesLimitMB", 64);
+	/**
+	 * Longest time, in milliseconds, that queued chunks are held back so that
+	 * other chunks in the same region can be written with them.
+	 */
+	public static final IntSetting WRITE_BATCH_DELAY_MILLIS =
+			new IntSetting("WriteBatchDelayMillis", 1000);
+	/**
+	 * Deflate level used for chunks in region files, from 1 (fastest) to 9
+	 * (smallest).  0 stores chunks uncompressed, which vanilla can read but
+	 * never writes itself.
+	 */
+	public static final IntSetting REGION_COMPRESSION_LEVEL =
+			new IntSetting("RegionCompressionLevel", 6);
+	/**
+	 * Maximum number of region files to keep open at once (counting files
+	 * open for reading and for writing separately).
+	 */
+	public static final IntSetting REGION_FILE_LIMIT =
+			new IntSetting("RegionFileLimit", 256);
+	/**
+	 * When chunks written to region files are forced to disk.
+	 */
+	public static final Setting<Durability> REGION_DURABILITY =
+			new BaseSetting<>("RegionDurability", Durability.SYNC_EACH_WRITE, Durability::valueOf, Durability::name);
+	// Used when REGION_DURABILITY is GROUP_COMMIT
+	public static final IntSetting GROUP_COMMIT_MILLIS =
+			new IntSetting("GroupCommitMillis", 1000);
+	public static final IntSetting GROUP_COMMIT_CHUNKS =
+			new IntSetting("GroupCommitChunks", 256);
+	/**
+	 * If true, saved chunks are appended to a journal, which is folded into
+	 * the region files when idle and when saving finishes.
+	 */
+	public static final Setting<Boolean> CHUNK_JOURNAL =
+			new BaseSetting<>("ChunkJournal", false, Boolean::valueOf, Object::toString);
+	/**
+	 * If true, saved tile entities, entities and maps are appended to a
+	 * journal as they are captured, so that they can be recovered after a
+	 * crash.
+	 */
+	public static final Setting<Boolean> CAPTURE_JOURNAL =
+			new BaseSetting<>("CaptureJournal", true, Boolean::valueOf, Object::toString);
+	/**
+	 * How often, at most, in milliseconds, the capture journal is forced to
+	 * disk.  0 only forces it when it is truncated or closed, which still
+	 * survives the game crashing.  Independent of {@link #REGION_DURABILITY}.
+	 */
+	public static final IntSetting CAPTURE_JOURNAL_SYNC_MILLIS =
+			new IntSetting("CaptureJournalSyncMillis", 0);
+	/**
+	 * If true, region files written while downloading are rewritten without
+	 * free space at the end of saving.
+	 */
+	public static final Setting<Boolean> COMPACT_REGIONS =
+			new BaseSetting<>("CompactRegions", false, Boolean::valueOf, Object::toString);
+
 	// Extensions
 	public static class ExtensionEnabledSetting extends BaseSetting<Boolean> {
 		public ExtensionEnabledSetting(String modID) {
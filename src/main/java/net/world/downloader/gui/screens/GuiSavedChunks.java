@@ -13,19 +13,19 @@
  */
 package net.world.downloader.gui.screens;
 
-import java.lang.reflect.Field;
-import java.nio.IntBuffer;
+import java.io.File;
 
 import javax.annotation.Nullable;
 
 import net.minecraft.client.gui.screen.Screen;
 import net.minecraft.client.resource.language.I18n;
-import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.MathHelper;
-import net.minecraft.world.storage.RegionFile;
 import net.world.downloader.WDL;
+import net.world.downloader.WDLChunkLoader;
 import net.world.downloader.config.settings.MiscSettings;
 import net.world.downloader.gui.widget.ButtonDisplayGui;
+import net.world.downloader.storage.CoverageIndex;
+import net.world.downloader.storage.CoverageIndex.RegionCoverage;
 import net.world.downloader.utils.VersionedFunctions;
 
 /**
@@ -42,6 +42,17 @@ public class GuiSavedChunks extends WDLScreen {
 	@Nullable
 	private final Screen parent;
 	private final WDL wdl;
+	/**
+	 * Which chunks have been saved in the current dimension, or null if the
+	 * world's folder isn't known yet.
+	 */
+	@Nullable
+	private final CoverageIndex coverage;
+	/**
+	 * True if {@link #coverage} was opened by this GUI (as no download is
+	 * running), and thus needs to be closed by it.
+	 */
+	private final boolean ownsCoverage;
 
 	/**
 	 * The current position.
@@ -80,6 +91,21 @@ public class GuiSavedChunks extends WDLScreen {
 
 		int saveTime = (int)(wdl.worldProps.getValue(MiscSettings.LAST_SAVED) / 1000);
 		this.savedAfterLastDownloadTime = saveTime + SAVE_TIME_LEWAY;
+
+		if (wdl.chunkLoader != null) {
+			this.coverage = wdl.chunkLoader.getCoverageIndex();
+			this.ownsCoverage = false;
+		} else {
+			File worldDirectory = wdl.getWorldDirectory();
+			if (worldDirectory != null && wdl.worldClient != null) {
+				this.coverage = WDLChunkLoader.createCoverageIndex(WDLChunkLoader.getWorldSaveFolder(
+						worldDirectory, VersionedFunctions.getDimension(wdl.worldClient)));
+				this.ownsCoverage = true;
+			} else {
+				this.coverage = null;
+				this.ownsCoverage = false;
+			}
+		}
 	}
 
 	@Override
@@ -88,6 +114,13 @@ public class GuiSavedChunks extends WDLScreen {
 				200, 20, this.parent));
 	}
 
+	@Override
+	public void removed() {
+		if (ownsCoverage) {
+			coverage.close();
+		}
+	}
+
 	@Override
 	public void mouseDown(int mouseX, int mouseY) {
 		if (mouseY > TOP_MARGIN && mouseY < height - BOTTOM_MARGIN) {
@@ -119,17 +152,14 @@ public class GuiSavedChunks extends WDLScreen {
 		int maxZ = MathHelper.floor(displayZToChunkZ(height) / 32.0);
 		for (int rx = minX; rx <= maxX; rx++) {
 			for (int rz = minZ; rz <= maxZ; rz++) {
-				@SuppressWarnings("resource")
-				RegionFile region = loadRegion(rx, rz);
+				RegionCoverage region = loadRegion(rx, rz);
 				if (region != null) {
 					drawRegion(region, rx, rz);
 				}
 			}
 		}
 		// Chunks that have been saved already
-		for (ChunkPos pos : wdl.savedChunks) {
-			drawChunk(pos, 0xFF00FF00);
-		}
+		wdl.savedChunks.forEach((x, z) -> drawChunk(x, z, 0xFF00FF00));
 
 		// Player position.
 		int playerPosX = (int)(((VersionedFunctions.getEntityX(wdl.player) / 16.0D) - scrollX) * SCALE + (width / 2));
@@ -145,17 +175,15 @@ public class GuiSavedChunks extends WDLScreen {
 		if (mouseY > TOP_MARGIN && mouseY < height - BOTTOM_MARGIN) {
 			int x = displayXToChunkX(mouseX);
 			int z = displayZToChunkZ(mouseY);
-			if (wdl.savedChunks.contains(new ChunkPos(x, z))) {
+			if (wdl.savedChunks.contains(x, z)) {
 				this.drawString(this.textRenderer,
 						I18n.translate("wdl.gui.savedChunks.savedNow", x, z),
 						12, 24, 0xFFFFFF);
 			} else {
-				@SuppressWarnings("resource")
-				RegionFile region = loadRegion(x >> 5, z >> 5);
+				RegionCoverage region = loadRegion(x >> 5, z >> 5);
 				int timestamp = 0;
 				if (region != null) {
-					IntBuffer timestamps = getChunkTimestamps(region);
-					timestamp = timestamps.get(computeTimestampIndex(x, z));
+					timestamp = region.getTimestamp(computeTimestampIndex(x, z));
 				}
 				if (timestamp > savedAfterLastDownloadTime) {
 					this.drawString(this.textRenderer,
@@ -173,31 +201,28 @@ public class GuiSavedChunks extends WDLScreen {
 			}
 		}
 
-		if (wdl.chunkLoader == null) {
-			// XXX Untranslated, temporary strings
-			this.drawCenteredString(textRenderer, "Start download to see information about saved"
-					+ " chunks, from now and earlier.", width / 2, height / 2 - textRenderer.fontHeight,
-					0xFFFFFF);
-			this.drawCenteredString(textRenderer, "In the future, this GUI will work even when"
-					+ " downloading hasn't been started.", width / 2, height / 2, 0xFFFFFF);
+		if (coverage == null) {
+			// XXX Untranslated, temporary string
+			this.drawCenteredString(textRenderer, "Choose a world to see information about saved"
+					+ " chunks.", width / 2, height / 2, 0xFFFFFF);
 		}
 
 		super.render(mouseX, mouseY, partialTicks);
 	}
 
 	/**
-	 * Loads a region file if it exists.
+	 * Gets the coverage of a region, if anything in it has been saved.
 	 *
 	 * @param x Region x coordinate (chunk / 32)
 	 * @param z Region z coordinate (chunk / 32)
-	 * @return The region file if it exists, or else null
+	 * @return The region's coverage if it exists, or else null
 	 */
 	@Nullable
-	private RegionFile loadRegion(int x, int z) {
-		if (wdl.chunkLoader == null) {
+	private RegionCoverage loadRegion(int x, int z) {
+		if (coverage == null) {
 			return null;
 		}
-		return wdl.chunkLoader.getRegionFileIfExists(x, z);
+		return coverage.getRegion(x, z);
 	}
 
 	/**
@@ -206,75 +231,30 @@ public class GuiSavedChunks extends WDLScreen {
 	 *
 	 * @param x X chunk coordinate
 	 * @param z Z chunk coordinate
-	 * @return The index into a region file's timestamp array
+	 * @return The index into a region's timestamp array
 	 */
 	private int computeTimestampIndex(int x, int z) {
 		return (x & (REGION_SIZE - 1)) + (z & (REGION_SIZE - 1)) * REGION_SIZE;
 	}
 
-	private static final Field CHUNK_TIMESTAMPS_FIELD;
-	private static final boolean CHUNK_TIMESTAMPS_IS_INT_BUFFER; // True in 1.15+
-	static {
-		Field chunkTimestampsField = null;
-		boolean isIntBuffer = false;
-
-		int nArray = 0;
-		int nBuf = 0;
-		for (Field field : RegionFile.class.getDeclaredFields()) {
-			if (field.getType() == int[].class) {
-				nArray++;
-				if (nArray == 2) {
-					chunkTimestampsField = field;
-					isIntBuffer = false;
-					break;
-				}
-			}
-			if (field.getType() == IntBuffer.class) {
-				nBuf++;
-				if (nBuf == 2) {
-					chunkTimestampsField = field;
-					isIntBuffer = true;
-					break;
-				}
-			}
-		}
-		if (chunkTimestampsField == null) {
-			throw new AssertionError("Failed to find chunkTimestamps field (nArray=" + nArray + ", nBuf=" + nBuf + ")");
-		}
-		CHUNK_TIMESTAMPS_FIELD = chunkTimestampsField;
-		CHUNK_TIMESTAMPS_FIELD.setAccessible(true);
-		CHUNK_TIMESTAMPS_IS_INT_BUFFER = isIntBuffer;
-	}
-	private IntBuffer getChunkTimestamps(RegionFile region) {
-		try {
-			Object value = CHUNK_TIMESTAMPS_FIELD.get(region);
-			if (CHUNK_TIMESTAMPS_IS_INT_BUFFER) {
-				return (IntBuffer)value;
-			} else {
-				return IntBuffer.wrap((int[])value);
-			}
-		} catch (Exception ex) {
-			throw new RuntimeException(ex);
-		}
-	}
-
 	private static final int YELLOW_THRESHOLD = 60 * 60 * 24; // 1 day in seconds
 	private static final int RED_THRESHOLD = 60 * 60 * 24 * 30; // 1 month
 
-	private void drawRegion(RegionFile region, int regionX, int regionZ) {
+	private void drawRegion(RegionCoverage region, int regionX, int regionZ) {
 		// n.b. Vanilla doesn't read these values at all, which is odd.
-		IntBuffer chunkTimestamps = getChunkTimestamps(region);
 		int now = (int)(System.currentTimeMillis() / 1000);
 		for (int zOff = 0; zOff < REGION_SIZE; zOff++) {
 			for (int xOff = 0; xOff < REGION_SIZE; xOff++) {
-				ChunkPos pos = new ChunkPos(xOff + regionX * REGION_SIZE, zOff + regionZ * REGION_SIZE);
-				if (wdl.savedChunks.contains(pos)) {
+				int x = xOff + regionX * REGION_SIZE;
+				int z = zOff + regionZ * REGION_SIZE;
+				if (wdl.savedChunks.contains(x, z)) {
 					continue;
 				}
-				int saveTime = chunkTimestamps.get(computeTimestampIndex(pos.x, pos.z));
-				if (saveTime == 0) {
+				int index = computeTimestampIndex(x, z);
+				if (!region.isSaved(index)) {
 					continue;
 				}
+				int saveTime = region.getTimestamp(index);
 				int color;
 				if (saveTime > savedAfterLastDownloadTime) {
 					// Saved after the previous download finished.  Due to the check for
@@ -294,14 +274,14 @@ public class GuiSavedChunks extends WDLScreen {
 					}
 					color = 0xFF000000 | r << 16 | g << 8;
 				}
-				drawChunk(pos, color);
+				drawChunk(x, z, color);
 			}
 		}
 	}
 
-	private void drawChunk(ChunkPos pos, int color) {
-		int x1 = chunkXToDisplayX(pos.x);
-		int z1 = chunkZToDisplayZ(pos.z);
+	private void drawChunk(int chunkX, int chunkZ, int color) {
+		int x1 = chunkXToDisplayX(chunkX);
+		int z1 = chunkZToDisplayZ(chunkZ);
 		int x2 = x1 + SCALE - 1;
 		int z2 = z1 + SCALE - 1;
 
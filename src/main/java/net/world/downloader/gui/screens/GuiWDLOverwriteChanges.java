@@ -13,6 +13,7 @@
  */
 package net.world.downloader.gui.screens;
 
+import java.io.File;
 import java.io.IOException;
 
 import net.minecraft.client.resource.language.I18n;
@@ -107,6 +108,7 @@ public class GuiWDLOverwriteChanges extends GuiTurningCameraBase implements Worl
 	private int infoBoxWidth, infoBoxHeight;
 	private WDLButton backupAsZipButton;
 	private WDLButton backupAsFolderButton;
+	private WDLButton lazyBackupButton;
 	private WDLButton downloadNowButton;
 	private WDLButton cancelButton;
 
@@ -141,7 +143,7 @@ public class GuiWDLOverwriteChanges extends GuiTurningCameraBase implements Worl
 		// TODO: Figure out the widest between captionTitle, captionSubtitle,
 		// overwriteWarning1, and overwriteWarning2.
 		infoBoxWidth = textRenderer.getWidth(overwriteWarning1);
-		infoBoxHeight = 22 * 6;
+		infoBoxHeight = 22 * 7;
 
 		// Ensure that the infobox is wide enough for the buttons.
 		// While the default caption title is short enough, a translation may
@@ -174,6 +176,14 @@ public class GuiWDLOverwriteChanges extends GuiTurningCameraBase implements Worl
 			}
 		});
 		y += 22;
+		lazyBackupButton = this.addButton(new WDLButton(x, y, 200, 20,
+				new TranslatableText("wdl.gui.overwriteChanges.lazy.name")) {
+			public @Override void performAction() {
+				if (backingUp) return;
+				startLazyBackup();
+			}
+		});
+		y += 22;
 		downloadNowButton = this.addButton(new WDLButton(x, y, 200, 20,
 				new TranslatableText("wdl.gui.overwriteChanges.startNow.name")) {
 			public @Override void performAction() {
@@ -191,6 +201,25 @@ public class GuiWDLOverwriteChanges extends GuiTurningCameraBase implements Worl
 		super.init();
 	}
 
+	/**
+	 * Starts a {@link WorldBackup#startLazyBackup lazy backup}, which copies
+	 * files as the download changes them, and then starts the download.
+	 */
+	private void startLazyBackup() {
+		String name = WDL.getWorldFolderName(WDL.worldName);
+		File worldDirectory = wdl.getWorldDirectory();
+		try {
+			if (worldDirectory != null) {
+				wdl.lazyBackup = WorldBackup.startLazyBackup(worldDirectory, name + "_user");
+			}
+		} catch (IOException ex) {
+			WDLMessages.chatMessageTranslated(WDL.serverProps,
+					WDLMessageTypes.ERROR, "wdl.messages.generalError.failedToBackUp", ex);
+			VersionedFunctions.makeBackupFailedToast(ex);
+		}
+		callback.run();
+	}
+
 	@Override
 	public boolean onCloseAttempt() {
 		// Don't allow closing with escape.  The user has to read it!
@@ -231,9 +260,9 @@ public class GuiWDLOverwriteChanges extends GuiTurningCameraBase implements Worl
 					infoBoxY + this.textRenderer.fontHeight, 0xFFFFFF);
 
 			drawCenteredString(this.textRenderer, overwriteWarning1, width / 2,
-					infoBoxY + 115, 0xFFFFFF);
+					infoBoxY + 137, 0xFFFFFF);
 			drawCenteredString(this.textRenderer, overwriteWarning2, width / 2,
-					infoBoxY + 115 + this.textRenderer.fontHeight, 0xFFFFFF);
+					infoBoxY + 137 + this.textRenderer.fontHeight, 0xFFFFFF);
 
 			super.render(mouseX, mouseY, partialTicks);
 
@@ -242,6 +271,8 @@ public class GuiWDLOverwriteChanges extends GuiTurningCameraBase implements Worl
 				tooltip = new TranslatableText("wdl.gui.overwriteChanges.asZip.description");
 			} else if (backupAsFolderButton.isHovered()) {
 				tooltip = new TranslatableText("wdl.gui.overwriteChanges.asFolder.description");
+			} else if (lazyBackupButton.isHovered()) {
+				tooltip = new TranslatableText("wdl.gui.overwriteChanges.lazy.description");
 			} else if (downloadNowButton.isHovered()) {
 				tooltip = new TranslatableText("wdl.gui.overwriteChanges.startNow.description");
 			} else if (cancelButton.isHovered()) {
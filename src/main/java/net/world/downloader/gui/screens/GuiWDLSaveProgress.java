@@ -21,6 +21,7 @@ import net.minecraft.client.resource.language.I18n;
 import net.minecraft.text.Text;
 import net.minecraft.util.math.MathHelper;
 import net.world.downloader.WDL;
+import net.world.downloader.storage.ChunkWriteQueue;
 
 /**
  * GUI screen shown while the world is being saved.
@@ -29,6 +30,7 @@ import net.world.downloader.WDL;
  * {@link net.minecraft.client.gui.GuiScreenWorking GuiScreenWorking}.
  */
 public class GuiWDLSaveProgress extends GuiTurningCameraBase {
+	private final WDL wdl;
 	private String majorTaskMessage = "";
 	private Supplier<String> minorTaskMessageProvider = () -> "";
 	private int majorTaskNumber;
@@ -57,6 +59,7 @@ public class GuiWDLSaveProgress extends GuiTurningCameraBase {
 	 */
 	public GuiWDLSaveProgress(WDL wdl, Text title, int taskCount) {
 		super(wdl, title);
+		this.wdl = wdl;
 		this.majorTaskCount = taskCount;
 		this.majorTaskNumber = 0;
 	}
@@ -180,6 +183,15 @@ public class GuiWDLSaveProgress extends GuiTurningCameraBase {
 			this.drawProgressBar(140, 64, 69,
 					prevMinorBar + (minorBar - prevMinorBar) * partialTicks);
 
+			if (wdl.chunkLoader != null) {
+				ChunkWriteQueue queue = wdl.chunkLoader.getWriteQueue();
+				this.drawCenteredString(this.textRenderer, I18n.translate(
+						"wdl.gui.saveProgress.writeQueue", queue.getNumPending(),
+						queue.getBytesQueued() / (1024 * 1024), queue.getMaxBytes() / (1024 * 1024),
+						String.format("%.0f", queue.getAverageLatencyMillis())),
+						this.width / 2, 155, 0xA0A0A0);
+			}
+
 			super.render(mouseX, mouseY, partialTicks);
 		}
 	}
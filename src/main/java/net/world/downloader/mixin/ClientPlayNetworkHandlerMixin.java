@@ -11,6 +11,7 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import net.minecraft.client.network.ClientPlayNetworkHandler;
 import net.minecraft.client.world.ClientWorld;
 import net.minecraft.network.packet.s2c.play.BlockEventS2CPacket;
+import net.minecraft.network.packet.s2c.play.ChunkDataS2CPacket;
 import net.minecraft.network.packet.s2c.play.CustomPayloadS2CPacket;
 import net.minecraft.network.packet.s2c.play.GameJoinS2CPacket;
 import net.minecraft.network.packet.s2c.play.GameMessageS2CPacket;
@@ -36,6 +37,14 @@ public class ClientPlayNetworkHandlerMixin {
 		//more down here
 	}
 	
+	@Inject(method="onChunkData", at=@At("RETURN"))
+	private void onHandleChunkData(ChunkDataS2CPacket packetIn, CallbackInfo ci) {
+		//more up here
+		/* WDL >>> */
+		WDLHooks.onNHPCHandleChunkData((ClientPlayNetworkHandler)(Object)this, this.world, packetIn);
+		/* <<< WDL */
+	}
+
 	@Inject(method="onDisconnected", at=@At("HEAD"))
 	private void onDisconnect(Text reason, CallbackInfo ci) {
 		/* WDL >>> */
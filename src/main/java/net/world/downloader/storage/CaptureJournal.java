@@ -0,0 +1,537 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * An append-only journal of the tile entities, entities and maps that WDL has
+ * captured but that only exist in memory until they are saved.  Each capture
+ * is appended as NBT when it happens, and the journal is truncated once a
+ * full save has written everything to disk; if the game crashes first, the
+ * journal is replayed the next time a download starts.
+ *
+ * Every record has a sequence number, which keeps counting up across
+ * truncations (the file header holds the number of its first record).  Once a
+ * chunk has been written, a checkpoint is appended for it with the
+ * {@link #mark} taken when its snapshot was, so that replaying skips the tile
+ * entities and entities captured for it before then, which the saved chunk
+ * already has (or has superseded).
+ *
+ * Records are encoded by the thread appending them, but written by a
+ * background appender thread, which writes everything appended since its last
+ * write at once.  They are not forced to disk unless requested (and then at
+ * most once per sync interval, for all of the records written in it), as
+ * surviving the game crashing (rather than the whole system) only needs them
+ * to have been written.  Each record is checksummed, so a partially written
+ * record at the end of the journal is ignored.
+ */
+public class CaptureJournal implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int FILE_MAGIC = 0x5744434A; // WDCJ
+	private static final int FILE_VERSION = 2;
+	/** magic, version, sequence number of the first record */
+	private static final int FILE_HEADER_SIZE = 16;
+	private static final int RECORD_MAGIC = 0x57444352; // WDCR
+	/** magic, type, a, b, c, length, crc */
+	private static final int RECORD_HEADER_SIZE = 25;
+
+	private static final byte TILE_ENTITY = 1;
+	private static final byte ENTITY = 2;
+	private static final byte MAP = 3;
+	private static final byte CHECKPOINT = 4;
+
+	/**
+	 * Receives the records of the journal when it is replayed, in the order
+	 * they were appended.
+	 */
+	public static interface Replayer {
+		/**
+		 * A tile entity that was saved at the given position.
+		 */
+		void tileEntity(BlockPos pos, CompoundTag tag) throws IOException;
+
+		/**
+		 * An entity that was saved in the given chunk.
+		 */
+		void entity(ChunkPos pos, CompoundTag tag) throws IOException;
+
+		/**
+		 * A map that was saved with the given ID.
+		 */
+		void map(int id, CompoundTag tag) throws IOException;
+
+		/**
+		 * An entity that was saved in the given chunk, but that has since
+		 * been written with that chunk; any earlier capture of it elsewhere
+		 * is out of date.
+		 */
+		default void entityWritten(ChunkPos pos, CompoundTag tag) throws IOException {}
+	}
+
+	/**
+	 * Receives the raw records of the journal from {@link #scan}.
+	 */
+	@FunctionalInterface
+	private static interface RecordConsumer {
+		void accept(byte type, int a, int b, int c, long sequence, CompoundTag tag) throws IOException;
+	}
+
+	private final File file;
+	/** Nanoseconds between forcing written records to disk, or 0 to never. */
+	private final long syncNanos;
+
+	// Guarded by this, which is held by the appender while writing
+	private final FileChannel channel;
+	private long size;
+	private boolean closed;
+	/** True if records have been written since the channel was last forced. */
+	private volatile boolean unsynced;
+	private long lastSync = System.nanoTime();
+
+	// Guarded by pending; never acquired before this
+	private final Object pending = new Object();
+	/** Encoded records waiting for the appender, in order. */
+	private List<byte[]> pendingRecords = new ArrayList<>();
+	/** Number of records, including those still pending. */
+	private int records;
+	/** Sequence number of the first record in the file. */
+	private long base;
+	private boolean stopping;
+
+	private final Thread appender;
+
+	// Metrics
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong bytesAppended = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong truncations = new AtomicLong();
+
+	/**
+	 * Opens (or creates) the journal.  Anything left over from a previous
+	 * session is kept until it is {@link #replay replayed} and
+	 * {@link #truncate truncated}.
+	 *
+	 * @param file       The journal file.
+	 * @param syncMillis How often, at most, records that have been written are
+	 *                   forced to disk; 0 to only force them when the journal
+	 *                   is truncated or closed.
+	 */
+	public CaptureJournal(File file, int syncMillis) throws IOException {
+		this.file = file;
+		this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, syncMillis));
+
+		file.getParentFile().mkdirs();
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			if (channel.size() < FILE_HEADER_SIZE || !readFully(header, 0)
+					|| header.getInt(0) != FILE_MAGIC || header.getInt(4) != FILE_VERSION) {
+				if (channel.size() > 0) {
+					LOGGER.warn("[WDL] Ignoring invalid capture journal " + file);
+				}
+				writeHeader(0);
+			} else {
+				this.size = channel.size();
+				this.base = header.getLong(8);
+				// Find the end of the last complete record; anything after it
+				// was being written during a crash
+				long end = scan(null);
+				if (end < size) {
+					LOGGER.warn("[WDL] Ignoring " + (size - end) + " bytes at the end of "
+							+ file + " (probably written during a crash)");
+					channel.truncate(end);
+					size = end;
+				}
+			}
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+
+		this.appender = new Thread(this::runAppender, "WDL Capture Journal Appender");
+		appender.setDaemon(true);
+		appender.start();
+	}
+
+	private void runAppender() {
+		while (true) {
+			synchronized (pending) {
+				while (pendingRecords.isEmpty() && !stopping) {
+					try {
+						if (syncNanos > 0 && unsynced) {
+							// Wake up to force what was written last
+							pending.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(syncNanos)));
+							break;
+						}
+						pending.wait();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				if (stopping && pendingRecords.isEmpty()) {
+					return;
+				}
+			}
+			synchronized (this) {
+				try {
+					writePending();
+					if (syncNanos > 0 && unsynced && System.nanoTime() - lastSync >= syncNanos) {
+						sync();
+					}
+				} catch (IOException | RuntimeException ex) {
+					LOGGER.warn("[WDL] Failed to write to the capture journal " + file, ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes every pending record with a single write.  Must hold the lock
+	 * on this.
+	 */
+	private void writePending() throws IOException {
+		List<byte[]> batch;
+		synchronized (pending) {
+			if (pendingRecords.isEmpty()) {
+				return;
+			}
+			batch = pendingRecords;
+			pendingRecords = new ArrayList<>();
+		}
+		if (closed) {
+			return;
+		}
+		int length = 0;
+		for (byte[] record : batch) {
+			length += record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (byte[] record : batch) {
+			buffer.put(record);
+		}
+		buffer.flip();
+		writeFully(buffer, size);
+		size += length;
+		unsynced = true;
+		appended.addAndGet(batch.size());
+		bytesAppended.addAndGet(length);
+	}
+
+	/**
+	 * Forces everything written so far to disk.  Must hold the lock on this.
+	 */
+	private void sync() throws IOException {
+		channel.force(false);
+		unsynced = false;
+		lastSync = System.nanoTime();
+	}
+
+	/**
+	 * Empties the file.  Must hold the lock on this.
+	 *
+	 * @param firstSequence The sequence number of the next record.
+	 */
+	private void writeHeader(long firstSequence) throws IOException {
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putLong(firstSequence).flip();
+		writeFully(header, 0);
+		size = FILE_HEADER_SIZE;
+		synchronized (pending) {
+			pendingRecords.clear();
+			records = 0;
+			base = firstSequence;
+		}
+	}
+
+	/**
+	 * Appends a tile entity saved at the given position.
+	 */
+	public void appendTileEntity(BlockPos pos, CompoundTag tag) throws IOException {
+		append(TILE_ENTITY, pos.getX(), pos.getY(), pos.getZ(), tag);
+	}
+
+	/**
+	 * Appends an entity saved in the given chunk.
+	 */
+	public void appendEntity(ChunkPos pos, CompoundTag tag) throws IOException {
+		append(ENTITY, pos.x, pos.z, 0, tag);
+	}
+
+	/**
+	 * Appends a map saved with the given ID.
+	 */
+	public void appendMap(int id, CompoundTag tag) throws IOException {
+		append(MAP, id, 0, 0, tag);
+	}
+
+	/**
+	 * Gets the sequence number that the next record appended will have.
+	 */
+	public long mark() {
+		synchronized (pending) {
+			return base + records;
+		}
+	}
+
+	/**
+	 * Appends a checkpoint for the given chunk, once it has been written with
+	 * everything captured for it before the given {@link #mark}.
+	 */
+	public void appendCheckpoint(ChunkPos pos, long mark) throws IOException {
+		CompoundTag tag = new CompoundTag();
+		tag.putLong("Mark", mark);
+		append(CHECKPOINT, pos.x, pos.z, 0, tag);
+	}
+
+	private void append(byte type, int a, int b, int c, CompoundTag tag) throws IOException {
+		IoPool.Buffer buffer = IoPool.takeBuffer();
+		try {
+			// Reserve the header, so that the record is written with one write
+			for (int i = 0; i < RECORD_HEADER_SIZE; i++) {
+				buffer.write(0);
+			}
+			NbtIo.write(tag, new DataOutputStream(buffer));
+			int length = buffer.size() - RECORD_HEADER_SIZE;
+
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), RECORD_HEADER_SIZE, length);
+			ByteBuffer header = ByteBuffer.wrap(buffer.array(), 0, RECORD_HEADER_SIZE);
+			header.putInt(RECORD_MAGIC).put(type).putInt(a).putInt(b).putInt(c)
+					.putInt(length).putInt((int) crc.getValue());
+
+			// Written later by the appender, so this never waits for the disk
+			byte[] record = buffer.toByteArray();
+			synchronized (pending) {
+				if (stopping) {
+					throw new IllegalStateException("Journal is closed");
+				}
+				pendingRecords.add(record);
+				records++;
+				pending.notify();
+			}
+		} finally {
+			IoPool.releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Passes every record in the journal to the given replayer, in order,
+	 * except for tile entities and entities that a later checkpoint shows
+	 * were written with their chunk.
+	 *
+	 * @return The number of records replayed.
+	 */
+	public synchronized int replay(Replayer replayer) throws IOException {
+		writePending();
+		int before = getNumRecords();
+
+		// Latest mark of each chunk that has been written
+		Long2LongOpenHashMap checkpoints = new Long2LongOpenHashMap();
+		checkpoints.defaultReturnValue(Long.MIN_VALUE);
+		scan((type, a, b, c, sequence, tag) -> {
+			if (type == CHECKPOINT) {
+				long key = ChunkPos.toLong(a, b);
+				checkpoints.put(key, Math.max(checkpoints.get(key), tag.getLong("Mark")));
+			}
+		});
+
+		scan((type, a, b, c, sequence, tag) -> {
+			switch (type) {
+			case TILE_ENTITY:
+				if (sequence >= checkpoints.get(ChunkPos.toLong(a >> 4, c >> 4))) {
+					replayer.tileEntity(new BlockPos(a, b, c), tag);
+				}
+				break;
+			case ENTITY:
+				if (sequence >= checkpoints.get(ChunkPos.toLong(a, b))) {
+					replayer.entity(new ChunkPos(a, b), tag);
+				} else {
+					replayer.entityWritten(new ChunkPos(a, b), tag);
+				}
+				break;
+			case MAP: replayer.map(a, tag); break;
+			case CHECKPOINT: break;
+			default: LOGGER.warn("[WDL] Ignoring capture journal record of unknown type " + type);
+			}
+		});
+		replayed.addAndGet(before);
+		return before;
+	}
+
+	/**
+	 * Reads the records of the journal, up to the end of the file or the
+	 * first invalid record.  Must hold the lock on this.
+	 *
+	 * @param consumer Given each record, or null to only count them.
+	 * @return The position after the last valid record.
+	 */
+	private long scan(@Nullable RecordConsumer consumer) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		long position = FILE_HEADER_SIZE;
+		int count = 0;
+		long first;
+		synchronized (pending) {
+			first = base;
+		}
+		while (true) {
+			header.clear();
+			if (!readFully(header, position) || header.getInt(0) != RECORD_MAGIC) {
+				break;
+			}
+			byte type = header.get(4);
+			int a = header.getInt(5);
+			int b = header.getInt(9);
+			int c = header.getInt(13);
+			int length = header.getInt(17);
+			int checksum = header.getInt(21);
+			if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+				break;
+			}
+			ByteBuffer data = ByteBuffer.allocate(length);
+			if (!readFully(data, position + RECORD_HEADER_SIZE)) {
+				break;
+			}
+			crc.reset();
+			crc.update(data.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			if (consumer != null) {
+				CompoundTag tag;
+				try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(data.array()))) {
+					tag = NbtIo.read(stream);
+				}
+				consumer.accept(type, a, b, c, first + count, tag);
+			}
+			count++;
+			position += RECORD_HEADER_SIZE + length;
+		}
+		synchronized (pending) {
+			records = count + pendingRecords.size();
+		}
+		return position;
+	}
+
+	/**
+	 * Discards every record, once everything they describe has been saved.
+	 */
+	public synchronized void truncate() throws IOException {
+		if (closed || getNumRecords() == 0) {
+			return;
+		}
+		// Also drops anything still pending; numbering carries on, so that
+		// marks taken before now don't apply to later records
+		writeHeader(mark());
+		sync();
+		truncations.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of records in the journal, including those that haven't
+	 * been written yet.
+	 */
+	public int getNumRecords() {
+		synchronized (pending) {
+			return records;
+		}
+	}
+
+	/**
+	 * Closes the journal, once everything pending has been written.  If it is
+	 * empty, it is deleted; otherwise, it is kept to be replayed by the next
+	 * download.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (pending) {
+			stopping = true;
+			pending.notify();
+		}
+		try {
+			appender.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			try {
+				writePending();
+				if (getNumRecords() > 0) {
+					sync();
+				}
+			} finally {
+				closed = true;
+				channel.close();
+			}
+		}
+		if (getNumRecords() == 0 && !file.delete()) {
+			LOGGER.warn("[WDL] Failed to delete empty capture journal " + file);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CaptureJournal [file=" + file + ", records=" + getNumRecords() + ", appended="
+				+ appended + " (" + bytesAppended + " bytes), replayed=" + replayed
+				+ ", truncations=" + truncations + "]";
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
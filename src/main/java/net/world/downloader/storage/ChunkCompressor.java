@@ -0,0 +1,178 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compresses encoded chunks into the form they are stored in region files: a
+ * 4-byte length, a 1-byte compression type, and the (possibly compressed)
+ * NBT.
+ *
+ * Compression happens on whichever thread calls {@link #compress}, so that it
+ * can be spread over the chunk compressor workers rather than being done by
+ * the single thread writing the region files (or by the client thread).  {@link Deflater}s and output
+ * buffers come from the {@link IoPool}, as creating a Deflater allocates a
+ * fair amount of native memory.  This class is thread-safe.
+ */
+public class ChunkCompressor {
+	/** Compression type of gzip compressed chunks (never written by vanilla). */
+	public static final byte GZIP = 1;
+	/** Compression type of zlib compressed chunks. */
+	public static final byte DEFLATE = 2;
+	/** Compression type of uncompressed chunks. */
+	public static final byte UNCOMPRESSED = 3;
+
+	/** Size of the length and compression type that precede the data. */
+	public static final int HEADER_SIZE = 5;
+
+	private final int level;
+
+	// Metrics
+	private final AtomicLong chunks = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong nanos = new AtomicLong();
+
+	/**
+	 * @param level The deflate level, from 1 (fastest) to 9 (smallest), or 0
+	 *              to store chunks uncompressed.
+	 */
+	public ChunkCompressor(int level) {
+		this.level = Math.max(0, Math.min(9, level));
+	}
+
+	/**
+	 * Gets the compression type that chunks are written with.
+	 */
+	public byte getCompressionType() {
+		return level == 0 ? UNCOMPRESSED : DEFLATE;
+	}
+
+	/**
+	 * Compresses the given uncompressed chunk NBT.
+	 *
+	 * @return The data as it should be stored in the region file, including
+	 *         the header.
+	 */
+	public byte[] compress(byte[] nbt) {
+		return compress(nbt, 0, nbt.length);
+	}
+
+	/**
+	 * Compresses the given range of uncompressed chunk NBT.
+	 *
+	 * @return The data as it should be stored in the region file, including
+	 *         the header.
+	 */
+	public byte[] compress(byte[] nbt, int offset, int length) {
+		long start = System.nanoTime();
+		IoPool.Buffer buffer = IoPool.takeBuffer();
+		try {
+			buffer.write(0);
+			buffer.write(0);
+			buffer.write(0);
+			buffer.write(0);
+			buffer.write(getCompressionType());
+
+			if (level == 0) {
+				buffer.write(nbt, offset, length);
+			} else {
+				Deflater deflater = IoPool.takeDeflater(level);
+				try {
+					deflater.setInput(nbt, offset, length);
+					deflater.finish();
+					buffer.deflate(deflater);
+				} finally {
+					IoPool.releaseDeflater(level, deflater);
+				}
+			}
+
+			byte[] result = buffer.toByteArray();
+			// The length includes the compression type, but not itself
+			ByteBuffer.wrap(result).putInt(0, result.length - 4);
+
+			chunks.incrementAndGet();
+			bytesIn.addAndGet(length);
+			bytesOut.addAndGet(result.length);
+			return result;
+		} finally {
+			IoPool.releaseBuffer(buffer);
+			nanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Opens a stream over the NBT in data returned by {@link #compress} (or
+	 * read from a region file in the same format).  The stream should be
+	 * closed, so that its inflater can be reused.
+	 */
+	public static DataInputStream decompress(byte[] data) throws IOException {
+		int length = ByteBuffer.wrap(data).getInt(0) - 1;
+		switch (data[4]) {
+		case GZIP: return new DataInputStream(new GZIPInputStream(
+				new ByteArrayInputStream(data, HEADER_SIZE, length)));
+		case DEFLATE: return IoPool.inflate(data, HEADER_SIZE, length);
+		case UNCOMPRESSED: return new DataInputStream(
+				new ByteArrayInputStream(data, HEADER_SIZE, length));
+		default: throw new IOException("Unknown chunk compression type " + data[4]);
+		}
+	}
+
+	/**
+	 * Gets the configured level; 0 means uncompressed.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Gets the number of chunks compressed.
+	 */
+	public long getNumCompressed() {
+		return chunks.get();
+	}
+
+	/**
+	 * Gets the ratio of compressed size to uncompressed size.
+	 */
+	public double getRatio() {
+		long in = bytesIn.get();
+		return in == 0 ? 1 : (double) bytesOut.get() / in;
+	}
+
+	/**
+	 * Gets the rate at which uncompressed data was compressed, in megabytes
+	 * per second of time spent compressing (summed over all threads).
+	 */
+	public double getThroughputMBps() {
+		long time = nanos.get();
+		return time == 0 ? 0 : (bytesIn.get() / (1024.0 * 1024.0))
+				/ (time / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkCompressor [level=" + level + ", chunks=" + chunks + ", bytesIn=" + bytesIn
+				+ ", bytesOut=" + bytesOut + ", ratio=" + String.format("%.3f", getRatio())
+				+ ", MBps=" + String.format("%.1f", getThroughputMBps()) + "]";
+	}
+}
@@ -0,0 +1,501 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * An append-only journal of written chunks, which is later folded into the
+ * region files.  Appending to the journal is sequential I/O, unlike writing
+ * chunks in place in region files.
+ *
+ * The journal is a sequence of segment files ({@code <n>.wdlj}) in its own
+ * folder.  New chunks are appended to the newest segment; folding seals that
+ * segment, writes the latest version of each chunk in the sealed segments to
+ * the region files, syncs them, and deletes the sealed segments.  Segments
+ * left over from a crash are replayed and folded when the journal is opened.
+ * Each record is checksummed, so a partially written record at the end of a
+ * segment is ignored.  Segments without a valid header are renamed aside
+ * ({@code <n>.wdlj.bad}) rather than folded and deleted.
+ */
+public class ChunkJournal implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int SEGMENT_MAGIC = 0x57444C4A; // WDLJ
+	private static final int SEGMENT_VERSION = 1;
+	private static final int SEGMENT_HEADER_SIZE = 8;
+	private static final int RECORD_MAGIC = 0x57444C43; // WDLC
+	/** magic, x, z, length, crc */
+	private static final int RECORD_HEADER_SIZE = 20;
+
+	private static final Pattern SEGMENT_NAME = Pattern.compile("^(\\d+)\\.wdlj$");
+
+	/**
+	 * Where chunks end up when they are folded.
+	 */
+	public static interface RegionWriter {
+		/**
+		 * Writes a chunk, in the form returned by {@link ChunkCompressor#compress}.
+		 */
+		void write(ChunkPos pos, byte[] data) throws IOException;
+
+		/**
+		 * Forces everything written so far to disk.
+		 */
+		void sync() throws IOException;
+	}
+
+	private static final class Segment {
+		final long number;
+		final File file;
+		final FileChannel channel;
+		long size;
+
+		Segment(long number, File file, FileChannel channel, long size) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+			this.size = size;
+		}
+	}
+
+	private static final class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+
+		Location(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File directory;
+	private final RegionWriter regions;
+	private final boolean syncEachWrite;
+	private final long maxSegmentSize;
+
+	// Guarded by this
+	private final Long2ObjectMap<Location> index = new Long2ObjectOpenHashMap<>();
+	private final List<Segment> sealed = new ArrayList<>();
+	private Segment active;
+	private long lastAppend = System.nanoTime();
+	private boolean closed;
+
+	/** Held while folding, so that only one fold happens at a time. */
+	private final Object foldLock = new Object();
+
+	@Nullable
+	private Thread compactor;
+
+	// Metrics
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong bytesAppended = new AtomicLong();
+	private final AtomicLong folded = new AtomicLong();
+	private final AtomicLong superseded = new AtomicLong();
+	private final AtomicLong recovered = new AtomicLong();
+
+	/**
+	 * Opens the journal, folding anything left over from a previous session
+	 * into the region files.
+	 *
+	 * @param directory      Folder holding the journal's segments.
+	 * @param regions        Used to fold chunks into the region files.
+	 * @param syncEachWrite  If true, each append is forced to disk.
+	 * @param maxSegmentSize Size after which the active segment is sealed.
+	 */
+	public ChunkJournal(File directory, RegionWriter regions, boolean syncEachWrite,
+			long maxSegmentSize) throws IOException {
+		this.directory = directory;
+		this.regions = regions;
+		this.syncEachWrite = syncEachWrite;
+		this.maxSegmentSize = maxSegmentSize;
+
+		directory.mkdirs();
+		long next = recover();
+		if (!sealed.isEmpty()) {
+			LOGGER.info("[WDL] Recovering " + index.size() + " chunks from the chunk journal in " + directory);
+			recovered.set(index.size());
+			fold();
+		}
+		this.active = createSegment(next);
+	}
+
+	/**
+	 * Checks if the given folder holds any journal segments, i.e. whether
+	 * opening a journal there would have anything to recover.
+	 */
+	public static boolean hasSegments(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (SEGMENT_NAME.matcher(file.getName()).matches()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replays every existing segment into the index.
+	 *
+	 * @return The number to use for the next segment.
+	 */
+	private long recover() throws IOException {
+		File[] files = directory.listFiles();
+		List<Long> numbers = new ArrayList<>();
+		if (files != null) {
+			for (File file : files) {
+				Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+				if (matcher.matches()) {
+					numbers.add(Long.parseLong(matcher.group(1)));
+				}
+			}
+		}
+		numbers.sort(null);
+
+		long next = 0;
+		for (long number : numbers) {
+			File file = new File(directory, number + ".wdlj");
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			Segment segment = new Segment(number, file, channel, channel.size());
+			next = number + 1;
+			if (!replay(segment)) {
+				// Not ours (or not written far enough to tell); keep it out of
+				// the way, but don't let folding delete it
+				channel.close();
+				File aside = new File(directory, number + ".wdlj.bad");
+				LOGGER.warn("[WDL] Moving invalid chunk journal segment " + file + " to " + aside);
+				if (!file.renameTo(aside)) {
+					LOGGER.warn("[WDL] Failed to move invalid chunk journal segment " + file);
+				}
+				continue;
+			}
+			sealed.add(segment);
+		}
+		return next;
+	}
+
+	/**
+	 * Replays the given segment into the index.
+	 *
+	 * @return False if the segment doesn't have a valid header, in which case
+	 *         nothing was replayed.
+	 */
+	private boolean replay(Segment segment) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		header.limit(SEGMENT_HEADER_SIZE);
+		if (!readFully(segment.channel, header, 0) || header.getInt(0) != SEGMENT_MAGIC) {
+			return false;
+		}
+
+		long position = SEGMENT_HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		while (true) {
+			header.clear();
+			if (!readFully(segment.channel, header, position) || header.getInt(0) != RECORD_MAGIC) {
+				break;
+			}
+			int x = header.getInt(4);
+			int z = header.getInt(8);
+			int length = header.getInt(12);
+			int checksum = header.getInt(16);
+			if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.size) {
+				break;
+			}
+			ByteBuffer data = ByteBuffer.allocate(length);
+			if (!readFully(segment.channel, data, position + RECORD_HEADER_SIZE)) {
+				break;
+			}
+			crc.reset();
+			crc.update(data.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			index.put(ChunkPos.toLong(x, z), new Location(segment, position + RECORD_HEADER_SIZE, length));
+			position += RECORD_HEADER_SIZE + length;
+		}
+		if (position < segment.size) {
+			LOGGER.warn("[WDL] Ignoring " + (segment.size - position) + " bytes at the end of "
+					+ segment.file + " (probably written during a crash)");
+		}
+		return true;
+	}
+
+	private Segment createSegment(long number) throws IOException {
+		File file = new File(directory, number + ".wdlj");
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+		header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+		writeFully(channel, header, 0);
+		return new Segment(number, file, channel, SEGMENT_HEADER_SIZE);
+	}
+
+	/**
+	 * Appends a chunk, in the form returned by {@link ChunkCompressor#compress}.
+	 */
+	public synchronized void append(ChunkPos pos, byte[] data) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("Journal is closed");
+		}
+		if (active.size >= maxSegmentSize) {
+			seal();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		header.putInt(RECORD_MAGIC).putInt(pos.x).putInt(pos.z).putInt(data.length)
+				.putInt((int) crc.getValue()).flip();
+
+		long position = active.size;
+		writeFully(active.channel, header, position);
+		writeFully(active.channel, ByteBuffer.wrap(data), position + RECORD_HEADER_SIZE);
+		if (syncEachWrite) {
+			active.channel.force(false);
+		}
+		active.size = position + RECORD_HEADER_SIZE + data.length;
+
+		index.put(pos.toLong(), new Location(active, position + RECORD_HEADER_SIZE, data.length));
+		lastAppend = System.nanoTime();
+		appended.incrementAndGet();
+		bytesAppended.addAndGet(data.length);
+	}
+
+	/**
+	 * Reads the latest version of a chunk that has not yet been folded.
+	 *
+	 * @return The data, or null if the journal doesn't have the chunk.
+	 */
+	@Nullable
+	public synchronized byte[] read(ChunkPos pos) throws IOException {
+		Location location = index.get(pos.toLong());
+		if (location == null) {
+			return null;
+		}
+		ByteBuffer data = ByteBuffer.allocate(location.length);
+		if (!readFully(location.segment.channel, data, location.offset)) {
+			throw new IOException("Chunk journal record for " + pos + " is truncated");
+		}
+		return data.array();
+	}
+
+	/**
+	 * Starts folding the active segment, if it has anything in it.  Must hold
+	 * the lock on this.
+	 */
+	private void seal() throws IOException {
+		if (active.size == SEGMENT_HEADER_SIZE) {
+			return;
+		}
+		active.channel.force(false);
+		sealed.add(active);
+		active = createSegment(active.number + 1);
+	}
+
+	/**
+	 * Folds every chunk appended so far into the region files, and deletes the
+	 * folded segments.  Chunks can still be appended while this runs.
+	 */
+	public void fold() throws IOException {
+		synchronized (foldLock) {
+			List<Segment> toFold;
+			List<Long> keys = new ArrayList<>();
+			List<Location> locations = new ArrayList<>();
+			synchronized (this) {
+				if (active != null) {
+					seal();
+				}
+				toFold = new ArrayList<>(sealed);
+				for (Long2ObjectMap.Entry<Location> entry : index.long2ObjectEntrySet()) {
+					if (toFold.contains(entry.getValue().segment)) {
+						keys.add(entry.getLongKey());
+						locations.add(entry.getValue());
+					}
+				}
+			}
+			if (toFold.isEmpty()) {
+				return;
+			}
+
+			for (int i = 0; i < keys.size(); i++) {
+				long key = keys.get(i);
+				ChunkPos pos = new ChunkPos(key);
+				Location location = locations.get(i);
+				byte[] data;
+				synchronized (this) {
+					if (index.get(key) != location) {
+						// A newer version was appended, which will be folded later
+						superseded.incrementAndGet();
+						continue;
+					}
+					data = new byte[location.length];
+					if (!readFully(location.segment.channel, ByteBuffer.wrap(data), location.offset)) {
+						throw new IOException("Chunk journal record for " + pos + " is truncated");
+					}
+				}
+				regions.write(pos, data);
+				folded.incrementAndGet();
+			}
+			regions.sync();
+
+			synchronized (this) {
+				for (int i = 0; i < keys.size(); i++) {
+					long key = keys.get(i);
+					if (index.get(key) == locations.get(i)) {
+						index.remove(key);
+					}
+				}
+				for (Segment segment : toFold) {
+					segment.channel.close();
+					if (!segment.file.delete()) {
+						LOGGER.warn("[WDL] Failed to delete folded chunk journal segment " + segment.file);
+					}
+					sealed.remove(segment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts a thread that folds the journal whenever nothing has been appended
+	 * for the given time.
+	 */
+	public void startCompactor(long idleMillis) {
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		compactor = new Thread(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					Thread.sleep(Math.min(1000, idleMillis));
+				} catch (InterruptedException ex) {
+					return;
+				}
+				boolean idle;
+				synchronized (this) {
+					if (closed) {
+						return;
+					}
+					idle = System.nanoTime() - lastAppend >= idleNanos
+							&& (active.size > SEGMENT_HEADER_SIZE || !sealed.isEmpty());
+				}
+				if (idle) {
+					try {
+						fold();
+					} catch (Throwable t) {
+						LOGGER.warn("[WDL] Failed to fold the chunk journal", t);
+					}
+				}
+			}
+		}, "WDL Journal Compactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Folds everything into the region files and closes the journal.  If
+	 * folding fails, the journal is still closed, and whatever wasn't folded
+	 * is left to be recovered when it is next opened.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (compactor != null) {
+			compactor.interrupt();
+			try {
+				compactor.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		boolean folded = false;
+		try {
+			fold();
+			folded = true;
+		} finally {
+			synchronized (this) {
+				closed = true;
+				for (Segment segment : sealed) {
+					closeQuietly(segment);
+				}
+				closeQuietly(active);
+				if (folded && !active.file.delete()) {
+					LOGGER.warn("[WDL] Failed to delete empty chunk journal segment " + active.file);
+				}
+			}
+		}
+	}
+
+	private static void closeQuietly(Segment segment) {
+		try {
+			segment.channel.close();
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to close chunk journal segment " + segment.file, ex);
+		}
+	}
+
+	/**
+	 * Gets the number of chunks in the journal that haven't been folded yet.
+	 */
+	public synchronized int getNumUnfolded() {
+		return index.size();
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkJournal [directory=" + directory + ", unfolded=" + getNumUnfolded()
+				+ ", appended=" + appended + " (" + bytesAppended + " bytes), folded=" + folded
+				+ ", superseded=" + superseded + ", recovered=" + recovered + "]";
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
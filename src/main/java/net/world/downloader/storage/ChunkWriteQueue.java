@@ -0,0 +1,463 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * A bounded write-behind queue of compressed chunks, written to disk by a single
+ * background thread.
+ *
+ * Chunks are grouped by region, and each region's chunks are written together
+ * as one batch.  A batch is held back for up to a configurable delay after
+ * its first chunk was queued so that more chunks in that region can join it,
+ * unless the queue is getting full, is being drained, or is closed.
+ *
+ * The queue holds at most a configurable number of bytes; producers that
+ * would go over the limit block until enough has been written.  If a chunk is
+ * queued again before its previous version has been written, the previous
+ * version is replaced (keeping its place in the queue).  Chunks that are
+ * queued or being written can be read back with {@link #getPending}, so that
+ * readers never see an older version from disk.
+ */
+public class ChunkWriteQueue {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * Writes a batch of chunks, all in the same region, to disk.
+	 */
+	@FunctionalInterface
+	public static interface ChunkWriter {
+		void write(int regionX, int regionZ, List<ChunkPos> positions, List<byte[]> data)
+				throws IOException;
+	}
+
+	private static final class Entry {
+		final ChunkPos pos;
+		byte[] data;
+		@Nullable
+		Runnable onWritten;
+		final long enqueuedAt;
+
+		Entry(ChunkPos pos, byte[] data, @Nullable Runnable onWritten, long enqueuedAt) {
+			this.pos = pos;
+			this.data = data;
+			this.onWritten = onWritten;
+			this.enqueuedAt = enqueuedAt;
+		}
+	}
+
+	/**
+	 * The queued chunks of a single region.
+	 */
+	private static final class Batch {
+		final int regionX, regionZ;
+		final Map<Long, Entry> entries = new LinkedHashMap<>();
+		final long firstEnqueuedAt;
+
+		Batch(int regionX, int regionZ, long firstEnqueuedAt) {
+			this.regionX = regionX;
+			this.regionZ = regionZ;
+			this.firstEnqueuedAt = firstEnqueuedAt;
+		}
+	}
+
+	private final ChunkWriter writer;
+	private final long maxBytes;
+	private final long maxDelayNanos;
+	private final Thread thread;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when bytes are removed from the queue. */
+	private final Condition notFull = lock.newCondition();
+	/**
+	 * Signalled when an entry is added, when something starts waiting for the
+	 * queue, or when the queue is closed.
+	 */
+	private final Condition notEmpty = lock.newCondition();
+	/** Signalled when the queue becomes empty and nothing is being written. */
+	private final Condition drained = lock.newCondition();
+
+	// Guarded by lock
+	/** Batches by region key, oldest first. */
+	private final Map<Long, Batch> queue = new LinkedHashMap<>();
+	private int chunksQueued;
+	private long bytesQueued;
+	@Nullable
+	private Batch writing;
+	private int waitingProducers;
+	private int draining;
+	private boolean closed;
+
+	// Metrics
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicInteger maxBatch = new AtomicInteger();
+
+	/**
+	 * Creates the queue and starts its thread.
+	 *
+	 * @param writer         Used to write each batch; called on the queue's thread.
+	 * @param maxBytes       The maximum number of bytes to hold before blocking.
+	 * @param maxDelayMillis The longest a batch is held back waiting for more
+	 *                       chunks in its region; 0 writes batches as soon as
+	 *                       possible.
+	 */
+	public ChunkWriteQueue(ChunkWriter writer, long maxBytes, long maxDelayMillis) {
+		this.writer = writer;
+		this.maxBytes = Math.max(1, maxBytes);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+		this.thread = new Thread(this::run, "WDL Chunk Writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues the given chunk to be written, blocking while the queue is full.
+	 * A single chunk bigger than the limit is still accepted once the queue is
+	 * empty.
+	 */
+	public void enqueue(ChunkPos pos, byte[] data) throws InterruptedException {
+		enqueue(pos, data, null);
+	}
+
+	/**
+	 * Queues the given chunk to be written, blocking while the queue is full.
+	 * A single chunk bigger than the limit is still accepted once the queue is
+	 * empty.
+	 *
+	 * @param onWritten Run on the queue's thread once this data has been
+	 *                  written successfully.  Not run if the write fails, or
+	 *                  if the chunk is queued again before it is written (in
+	 *                  which case only the newer callback is run).
+	 */
+	public void enqueue(ChunkPos pos, byte[] data, @Nullable Runnable onWritten)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("Write queue is closed");
+			}
+			long regionKey = ChunkPos.toLong(pos.getRegionX(), pos.getRegionZ());
+			Batch batch = queue.get(regionKey);
+			Entry existing = batch != null ? batch.entries.get(pos.toLong()) : null;
+			if (existing != null) {
+				bytesQueued += data.length - existing.data.length;
+				existing.data = data;
+				existing.onWritten = onWritten;
+				coalesced.incrementAndGet();
+				return;
+			}
+			if (bytesQueued > 0 && bytesQueued + data.length > maxBytes) {
+				waitingProducers++;
+				try {
+					// Don't wait for the current batch's delay to run out
+					notEmpty.signal();
+					while (bytesQueued > 0 && bytesQueued + data.length > maxBytes) {
+						notFull.await();
+					}
+				} finally {
+					waitingProducers--;
+				}
+				// The batch may have been taken while waiting
+				batch = queue.get(regionKey);
+			}
+			long now = System.nanoTime();
+			if (batch == null) {
+				batch = new Batch(pos.getRegionX(), pos.getRegionZ(), now);
+				queue.put(regionKey, batch);
+			}
+			batch.entries.put(pos.toLong(), new Entry(pos, data, onWritten, now));
+			chunksQueued++;
+			bytesQueued += data.length;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Gets the data most recently queued for the given chunk, if it hasn't been
+	 * fully written yet.
+	 *
+	 * @return The data, or null if nothing is pending for that chunk.
+	 */
+	@Nullable
+	public byte[] getPending(ChunkPos pos) {
+		lock.lock();
+		try {
+			Batch batch = queue.get(ChunkPos.toLong(pos.getRegionX(), pos.getRegionZ()));
+			Entry entry = batch != null ? batch.entries.get(pos.toLong()) : null;
+			if (entry == null && writing != null) {
+				entry = writing.entries.get(pos.toLong());
+			}
+			return entry != null ? entry.data : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until every queued chunk has been written.  Batches are written
+	 * right away while this is waiting, without waiting for their delay.
+	 */
+	public void awaitEmpty() throws InterruptedException {
+		lock.lock();
+		try {
+			draining++;
+			try {
+				notEmpty.signal();
+				while (!queue.isEmpty() || writing != null) {
+					drained.await(100, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				draining--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes everything that is queued, and then stops the thread.
+	 */
+	public void close() throws InterruptedException {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		thread.join();
+	}
+
+	/**
+	 * Waits until the oldest batch should be written, and takes it from the
+	 * queue.  Must be called with the lock held.
+	 *
+	 * @return The batch, or null if the queue is closed and empty.
+	 */
+	@Nullable
+	private Batch takeBatch() {
+		while (true) {
+			if (queue.isEmpty()) {
+				if (closed) {
+					return null;
+				}
+				notEmpty.awaitUninterruptibly();
+				continue;
+			}
+			Iterator<Batch> itr = queue.values().iterator();
+			Batch batch = itr.next();
+			long wait = batch.firstEnqueuedAt + maxDelayNanos - System.nanoTime();
+			if (wait <= 0 || closed || draining > 0 || waitingProducers > 0
+					|| bytesQueued >= maxBytes / 2) {
+				itr.remove();
+				return batch;
+			}
+			try {
+				notEmpty.awaitNanos(wait);
+			} catch (InterruptedException ex) {
+				// Nothing interrupts this thread; check again
+			}
+		}
+	}
+
+	private void run() {
+		while (true) {
+			Batch batch;
+			lock.lock();
+			try {
+				batch = takeBatch();
+				if (batch == null) {
+					return;
+				}
+				writing = batch;
+			} finally {
+				lock.unlock();
+			}
+
+			int size = batch.entries.size();
+			List<ChunkPos> positions = new ArrayList<>(size);
+			List<byte[]> data = new ArrayList<>(size);
+			long bytes = 0;
+			for (Entry entry : batch.entries.values()) {
+				positions.add(entry.pos);
+				data.add(entry.data);
+				bytes += entry.data.length;
+			}
+
+			boolean succeeded;
+			try {
+				writer.write(batch.regionX, batch.regionZ, positions, data);
+				succeeded = true;
+			} catch (Throwable t) {
+				failed.addAndGet(size);
+				LOGGER.warn("[WDL] Failed to write " + size + " chunks in region "
+						+ batch.regionX + ", " + batch.regionZ, t);
+				succeeded = false;
+			}
+			if (succeeded) {
+				long now = System.nanoTime();
+				for (Entry entry : batch.entries.values()) {
+					totalLatencyNanos.addAndGet(now - entry.enqueuedAt);
+					if (entry.onWritten != null) {
+						try {
+							entry.onWritten.run();
+						} catch (Throwable t) {
+							LOGGER.warn("[WDL] Exception after writing chunk at " + entry.pos, t);
+						}
+					}
+				}
+				written.addAndGet(size);
+				bytesWritten.addAndGet(bytes);
+				batches.incrementAndGet();
+				maxBatch.accumulateAndGet(size, Math::max);
+			}
+
+			lock.lock();
+			try {
+				writing = null;
+				chunksQueued -= size;
+				bytesQueued -= bytes;
+				notFull.signalAll();
+				if (queue.isEmpty()) {
+					drained.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of chunks that are queued or being written.
+	 */
+	public int getNumPending() {
+		lock.lock();
+		try {
+			return chunksQueued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of bytes that are queued or being written.
+	 */
+	public long getBytesQueued() {
+		lock.lock();
+		try {
+			return bytesQueued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the configured limit on queued bytes.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Gets the average time between a chunk being queued and it being
+	 * written, in milliseconds.
+	 */
+	public double getAverageLatencyMillis() {
+		long count = written.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * Gets the number of chunks written.
+	 */
+	public long getNumWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Gets the number of batches written.
+	 */
+	public long getNumBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Gets the average number of chunks in each batch written.
+	 */
+	public double getAverageBatchSize() {
+		long count = batches.get();
+		return count == 0 ? 0 : (double) written.get() / count;
+	}
+
+	/**
+	 * Gets the number of chunks in the biggest batch written.
+	 */
+	public int getMaxBatchSize() {
+		return maxBatch.get();
+	}
+
+	/**
+	 * Gets the number of chunks that replaced an earlier version of
+	 * themselves in the queue.
+	 */
+	public long getNumCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Gets the total time producers spent in {@link #enqueue}, in milliseconds.
+	 */
+	public long getBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkWriteQueue [pending=" + getNumPending() + ", bytesQueued=" + getBytesQueued()
+				+ "/" + maxBytes + ", written=" + written + " (" + bytesWritten + " bytes)"
+				+ ", batches=" + batches + " (average " + String.format("%.1f", getAverageBatchSize())
+				+ ", max " + maxBatch + ")"
+				+ ", averageLatencyMs=" + String.format("%.1f", getAverageLatencyMillis())
+				+ ", coalesced=" + coalesced + ", failed=" + failed
+				+ ", producerBlockedMs=" + getBlockedMillis() + "]";
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * A persistent record of which chunks have been saved in a dimension, and
+ * when, kept in one small memory-mapped file per region.  This lets the saved
+ * chunks GUI (and anything else that only needs to know what has been saved)
+ * work without opening any region files, and without a download running.
+ *
+ * Regions that were saved before the index existed are imported from the
+ * region file's header the first time they are looked at.  Index files are
+ * only created or written once a chunk in their region is saved; until then,
+ * they are only read, and imported regions are only kept in memory.
+ *
+ * File format (all big-endian):
+ * <pre>
+ * int magic, int version
+ * byte[128] saved           -- one bit per chunk, by {@link RegionReader#getIndex}
+ * 1024 * int timestamp      -- seconds since the epoch, 0 if never saved
+ * </pre>
+ */
+public class CoverageIndex implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int MAGIC = 0x57444349; // WDCI
+	private static final int VERSION = 1;
+	private static final int BITMAP_OFFSET = 8;
+	private static final int TIMESTAMPS_OFFSET = BITMAP_OFFSET + 1024 / 8;
+	private static final int FILE_SIZE = TIMESTAMPS_OFFSET + 1024 * 4;
+	/** Maximum number of files kept mapped at once. */
+	private static final int MAX_MAPPED = 1024;
+
+	/**
+	 * The coverage of a single region.  Reads aren't synchronized; a chunk
+	 * that is being marked at the same time may or may not be seen.
+	 */
+	public static final class RegionCoverage {
+		private final ByteBuffer buffer;
+		/**
+		 * If true, {@link #buffer} is a writable mapping of the index file;
+		 * otherwise it is only being viewed, and can't be marked.
+		 */
+		private final boolean writable;
+
+		private RegionCoverage(ByteBuffer buffer, boolean writable) {
+			this.buffer = buffer;
+			this.writable = writable;
+		}
+
+		private void force() {
+			if (writable) {
+				((MappedByteBuffer) buffer).force();
+			}
+		}
+
+		/**
+		 * Checks if the chunk with the given {@link RegionReader#getIndex
+		 * index} has been saved.
+		 */
+		public boolean isSaved(int index) {
+			return (buffer.get(BITMAP_OFFSET + (index >> 3)) & (1 << (index & 7))) != 0;
+		}
+
+		/**
+		 * Gets the time (in seconds since the epoch) that the chunk with the
+		 * given {@link RegionReader#getIndex index} was last saved, or 0 if it
+		 * never was.
+		 */
+		public int getTimestamp(int index) {
+			return buffer.getInt(TIMESTAMPS_OFFSET + index * 4);
+		}
+
+		private void mark(int index, int timestamp) {
+			int offset = BITMAP_OFFSET + (index >> 3);
+			buffer.put(offset, (byte) (buffer.get(offset) | (1 << (index & 7))));
+			buffer.putInt(TIMESTAMPS_OFFSET + index * 4, timestamp);
+		}
+	}
+
+	private final File indexFolder;
+	private final File regionFolder;
+
+	// Guarded by this
+	private final Map<Long, RegionCoverage> mapped = new LinkedHashMap<Long, RegionCoverage>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, RegionCoverage> eldest) {
+			if (size() > MAX_MAPPED) {
+				// The mapping itself is released once it is garbage collected
+				eldest.getValue().force();
+				return true;
+			}
+			return false;
+		}
+	};
+	/** Regions that have neither an index file nor a region file. */
+	private final LongSet missing = new LongOpenHashSet();
+
+	/**
+	 * @param indexFolder  Folder to keep the index files in.
+	 * @param regionFolder Folder containing the region files being indexed,
+	 *                     used to import regions saved before the index
+	 *                     existed.
+	 */
+	public CoverageIndex(File indexFolder, File regionFolder) {
+		this.indexFolder = indexFolder;
+		this.regionFolder = regionFolder;
+	}
+
+	/**
+	 * Gets the coverage of the given region.
+	 *
+	 * @return The coverage, or null if nothing has been saved in the region.
+	 */
+	@Nullable
+	public synchronized RegionCoverage getRegion(int regionX, int regionZ) {
+		try {
+			return getRegion(regionX, regionZ, false);
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to read the coverage of region " + regionX + ", " + regionZ, ex);
+			missing.add(ChunkPos.toLong(regionX, regionZ));
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the time (in seconds since the epoch) that the given chunk was last
+	 * saved, or 0 if it never was.
+	 */
+	public int getTimestamp(ChunkPos pos) {
+		RegionCoverage region = getRegion(pos.getRegionX(), pos.getRegionZ());
+		return region != null ? region.getTimestamp(RegionReader.getIndex(pos)) : 0;
+	}
+
+	/**
+	 * Checks if the given chunk has been saved.
+	 */
+	public boolean isSaved(ChunkPos pos) {
+		RegionCoverage region = getRegion(pos.getRegionX(), pos.getRegionZ());
+		return region != null && region.isSaved(RegionReader.getIndex(pos));
+	}
+
+	/**
+	 * Records that the given chunks, all in the same region, were saved at
+	 * the given time.
+	 *
+	 * @param timestamp Seconds since the epoch.
+	 */
+	public synchronized void markSaved(int regionX, int regionZ, List<ChunkPos> positions,
+			int timestamp) throws IOException {
+		RegionCoverage region = getRegion(regionX, regionZ, true);
+		for (ChunkPos pos : positions) {
+			region.mark(RegionReader.getIndex(pos), timestamp);
+		}
+	}
+
+	@Nullable
+	private RegionCoverage getRegion(int regionX, int regionZ, boolean create) throws IOException {
+		long key = ChunkPos.toLong(regionX, regionZ);
+		RegionCoverage region = mapped.get(key);
+		if (region != null && (region.writable || !create)) {
+			return region;
+		}
+		if (!create && missing.contains(key)) {
+			return null;
+		}
+
+		File file = new File(indexFolder, "r." + regionX + "." + regionZ + ".cov");
+		File regionFile = new File(regionFolder, "r." + regionX + "." + regionZ + ".mca");
+		boolean exists = file.length() == FILE_SIZE;
+		if (!exists && !create && !regionFile.isFile()) {
+			missing.add(key);
+			return null;
+		}
+
+		region = create ? openRegion(file, exists, regionFile) : viewRegion(file, exists, regionFile);
+		missing.remove(key);
+		mapped.put(key, region);
+		return region;
+	}
+
+	/**
+	 * Maps the given index file so that chunks can be marked in it, creating
+	 * (or rebuilding) it if needed.
+	 */
+	private RegionCoverage openRegion(File file, boolean exists, File regionFile) throws IOException {
+		if (!indexFolder.exists()) {
+			indexFolder.mkdirs();
+		}
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		}
+		RegionCoverage region = new RegionCoverage(buffer, true);
+		if (!exists || !isValid(buffer)) {
+			if (exists) {
+				LOGGER.warn("[WDL] Coverage index " + file + " is invalid; rebuilding it");
+			}
+			for (int i = 0; i < FILE_SIZE; i++) {
+				buffer.put(i, (byte) 0);
+			}
+			if (regionFile.isFile()) {
+				importRegion(region, regionFile);
+			}
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+		}
+		return region;
+	}
+
+	/**
+	 * Maps the given index file read-only, or, if it doesn't exist (or is
+	 * invalid), imports the region into memory without creating it.
+	 */
+	private RegionCoverage viewRegion(File file, boolean exists, File regionFile) throws IOException {
+		if (exists) {
+			MappedByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+			}
+			if (isValid(buffer)) {
+				return new RegionCoverage(buffer, false);
+			}
+			LOGGER.warn("[WDL] Coverage index " + file + " is invalid; it will be rebuilt when the region is saved");
+		}
+		RegionCoverage region = new RegionCoverage(ByteBuffer.allocate(FILE_SIZE), false);
+		if (regionFile.isFile()) {
+			importRegion(region, regionFile);
+		}
+		return region;
+	}
+
+	private static boolean isValid(ByteBuffer buffer) {
+		return buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION;
+	}
+
+	/**
+	 * Fills in the coverage of a region that was saved before the index
+	 * existed, from its region file's header.
+	 */
+	private void importRegion(RegionCoverage region, File regionFile) {
+		try (RegionReader reader = new RegionReader(regionFile)) {
+			for (int i = 0; i < 1024; i++) {
+				// Only the position within the region matters here
+				if (reader.hasChunk(new ChunkPos(i & 31, i >> 5))) {
+					region.mark(i, reader.getTimestamp(i));
+				}
+			}
+		} catch (IOException ex) {
+			LOGGER.warn("[WDL] Failed to import the coverage of " + regionFile, ex);
+		}
+	}
+
+	/**
+	 * Writes all changes to disk.
+	 */
+	public synchronized void flush() {
+		for (RegionCoverage region : mapped.values()) {
+			region.force();
+		}
+	}
+
+	/**
+	 * Gets the number of regions currently loaded, whether mapped or only
+	 * held in memory.
+	 */
+	public synchronized int getNumMapped() {
+		return mapped.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		flush();
+		mapped.clear();
+		missing.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "CoverageIndex [indexFolder=" + indexFolder + ", mapped=" + getNumMapped() + "]";
+	}
+}
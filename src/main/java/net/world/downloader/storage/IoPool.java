@@ -0,0 +1,371 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+
+/**
+ * A shared, bounded pool of the buffers and zlib codecs used for WDL's file
+ * I/O, so that saving doesn't create a new {@link Deflater} (with its native
+ * memory) or a new output array for every chunk and file.
+ *
+ * Each thread keeps one item of each kind for itself, so a thread that takes
+ * and returns one item at a time (as the save workers and the chunk writer
+ * do) never touches the shared queues.  Beyond that, up to {@value #POOL_SIZE}
+ * of each kind are shared between threads; anything more is dropped.
+ *
+ * If debug logging is enabled, each item that is taken remembers where, and
+ * {@link #reportLeaks} logs the ones that were never returned.
+ */
+public final class IoPool {
+	private IoPool() { throw new AssertionError(); }
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int POOL_SIZE = 16;
+	/** Heap buffers bigger than this aren't returned to the pool. */
+	private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+	/** Direct buffers bigger than this aren't returned to the pool. */
+	private static final int MAX_RETAINED_DIRECT = 8 * 1024 * 1024;
+	private static final int MIN_DIRECT = 64 * 1024;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	/**
+	 * The pool of a single kind of item.
+	 */
+	private static final class Kind<T> {
+		final String name;
+		final BlockingQueue<T> shared = new ArrayBlockingQueue<>(POOL_SIZE);
+		final ThreadLocal<T> local = new ThreadLocal<>();
+		final Consumer<T> discard;
+		final AtomicLong created = new AtomicLong();
+		final AtomicLong reused = new AtomicLong();
+
+		Kind(String name, Consumer<T> discard) {
+			this.name = name;
+			this.discard = discard;
+		}
+
+		/**
+		 * Takes a pooled item that fits, if there is one.
+		 */
+		@Nullable
+		T poll(Predicate<T> fits) {
+			T item = local.get();
+			if (item != null && fits.test(item)) {
+				local.set(null);
+			} else {
+				item = shared.poll();
+				if (item != null && !fits.test(item)) {
+					discard.accept(item);
+					item = null;
+				}
+			}
+			if (item != null) {
+				reused.incrementAndGet();
+				track(item);
+			}
+			return item;
+		}
+
+		T created(T item) {
+			created.incrementAndGet();
+			track(item);
+			return item;
+		}
+
+		void release(T item, boolean retain) {
+			untrack(item);
+			if (!retain) {
+				discard.accept(item);
+			} else if (local.get() == null) {
+				local.set(item);
+			} else if (!shared.offer(item)) {
+				discard.accept(item);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + created + " created, " + reused + " reused";
+		}
+	}
+
+	private static final List<Kind<?>> KINDS = new ArrayList<>();
+
+	private static <T> Kind<T> kind(String name, Consumer<T> discard) {
+		Kind<T> kind = new Kind<>(name, discard);
+		KINDS.add(kind);
+		return kind;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static final Kind<Deflater>[] DEFLATERS = new Kind[10];
+	static {
+		for (int level = 0; level < DEFLATERS.length; level++) {
+			DEFLATERS[level] = kind("deflater" + level, Deflater::end);
+		}
+	}
+	private static final Kind<Deflater> GZIP_DEFLATERS = kind("gzipDeflater", Deflater::end);
+	private static final Kind<Inflater> INFLATERS = kind("inflater", Inflater::end);
+	private static final Kind<Buffer> BUFFERS = kind("buffer", buffer -> {});
+	private static final Kind<ByteBuffer> DIRECT_BUFFERS = kind("directBuffer", buffer -> {});
+
+	/** Items taken and not yet returned, while debug logging is enabled. */
+	private static final Map<Object, Throwable> OUTSTANDING = Collections.synchronizedMap(new IdentityHashMap<>());
+
+	private static void track(Object item) {
+		if (LOGGER.isDebugEnabled()) {
+			OUTSTANDING.put(item, new Throwable("Taken from the I/O pool here"));
+		}
+	}
+
+	private static void untrack(Object item) {
+		if (!OUTSTANDING.isEmpty()) {
+			OUTSTANDING.remove(item);
+		}
+	}
+
+	/**
+	 * Takes a deflater with the given level (1-9, or 0 for none).
+	 */
+	public static Deflater takeDeflater(int level) {
+		Deflater deflater = DEFLATERS[level].poll(d -> true);
+		return deflater != null ? deflater : DEFLATERS[level].created(new Deflater(level));
+	}
+
+	/**
+	 * Returns a deflater taken with {@link #takeDeflater}.
+	 */
+	public static void releaseDeflater(int level, Deflater deflater) {
+		deflater.reset();
+		DEFLATERS[level].release(deflater, true);
+	}
+
+	/**
+	 * Takes an inflater for zlib data.
+	 */
+	public static Inflater takeInflater() {
+		Inflater inflater = INFLATERS.poll(i -> true);
+		return inflater != null ? inflater : INFLATERS.created(new Inflater());
+	}
+
+	/**
+	 * Returns an inflater taken with {@link #takeInflater}.
+	 */
+	public static void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		INFLATERS.release(inflater, true);
+	}
+
+	/**
+	 * Takes an empty heap buffer.
+	 */
+	public static Buffer takeBuffer() {
+		Buffer buffer = BUFFERS.poll(b -> true);
+		if (buffer == null) {
+			return BUFFERS.created(new Buffer());
+		}
+		buffer.reset();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer taken with {@link #takeBuffer}.
+	 */
+	public static void releaseBuffer(Buffer buffer) {
+		BUFFERS.release(buffer, buffer.capacity() <= MAX_RETAINED_BUFFER);
+	}
+
+	/**
+	 * Takes a direct buffer with at least the given capacity, cleared and
+	 * with its limit set to that capacity.
+	 */
+	public static ByteBuffer takeDirect(int capacity) {
+		ByteBuffer buffer = DIRECT_BUFFERS.poll(b -> b.capacity() >= capacity);
+		if (buffer == null) {
+			int size = Math.max(MIN_DIRECT, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+			buffer = DIRECT_BUFFERS.created(ByteBuffer.allocateDirect(size));
+		}
+		buffer.clear();
+		buffer.limit(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer taken with {@link #takeDirect}.
+	 */
+	public static void releaseDirect(ByteBuffer buffer) {
+		DIRECT_BUFFERS.release(buffer, buffer.capacity() <= MAX_RETAINED_DIRECT);
+	}
+
+	/**
+	 * Opens a stream over the given zlib compressed data, using a pooled
+	 * inflater that is returned when the stream is closed.
+	 */
+	public static DataInputStream inflate(byte[] data, int offset, int length) {
+		Inflater inflater = takeInflater();
+		return new DataInputStream(new InflaterInputStream(
+				new ByteArrayInputStream(data, offset, length), inflater) {
+			private boolean released;
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				if (!released) {
+					released = true;
+					releaseInflater(inflater);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the given NBT to the given stream in gzip format, as
+	 * {@link NbtIo#writeCompressed} does, but with pooled buffers and
+	 * deflater.  The data is written to the stream with a single call.
+	 */
+	public static void writeCompressed(CompoundTag tag, OutputStream stream) throws IOException {
+		Buffer raw = takeBuffer();
+		Buffer compressed = takeBuffer();
+		Deflater deflater = GZIP_DEFLATERS.poll(d -> true);
+		if (deflater == null) {
+			deflater = GZIP_DEFLATERS.created(new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+		}
+		try {
+			NbtIo.write(tag, new DataOutputStream(raw));
+
+			CRC32 crc = new CRC32();
+			crc.update(raw.array(), 0, raw.size());
+
+			compressed.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+			deflater.setInput(raw.array(), 0, raw.size());
+			deflater.finish();
+			compressed.deflate(deflater);
+			writeIntLE(compressed, (int) crc.getValue());
+			writeIntLE(compressed, raw.size());
+
+			compressed.writeTo(stream);
+		} finally {
+			deflater.reset();
+			GZIP_DEFLATERS.release(deflater, true);
+			releaseBuffer(compressed);
+			releaseBuffer(raw);
+		}
+	}
+
+	private static void writeIntLE(Buffer buffer, int value) {
+		buffer.write(value);
+		buffer.write(value >> 8);
+		buffer.write(value >> 16);
+		buffer.write(value >> 24);
+	}
+
+	/**
+	 * Logs every item that was taken (while debug logging was enabled) and
+	 * never returned, and forgets about them.
+	 */
+	public static void reportLeaks() {
+		List<Throwable> leaks;
+		synchronized (OUTSTANDING) {
+			leaks = new ArrayList<>(OUTSTANDING.values());
+			OUTSTANDING.clear();
+		}
+		for (Throwable leak : leaks) {
+			LOGGER.warn("[WDL] An I/O pool item was never returned", leak);
+		}
+	}
+
+	/**
+	 * Gets the number of items of each kind that were created and reused.
+	 */
+	public static String getStats() {
+		StringBuilder builder = new StringBuilder();
+		for (Kind<?> kind : KINDS) {
+			if (kind.created.get() == 0) {
+				continue;
+			}
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(kind);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * ByteArrayOutputStream that exposes its array, and can deflate directly
+	 * into it.
+	 */
+	public static final class Buffer extends ByteArrayOutputStream {
+		private Buffer() {
+			super(64 * 1024);
+		}
+
+		/**
+		 * Deflates everything remaining in the given (finished) deflater into
+		 * this buffer.
+		 */
+		public void deflate(Deflater deflater) {
+			while (!deflater.finished()) {
+				if (count == buf.length) {
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				}
+				count += deflater.deflate(buf, count, buf.length - count);
+			}
+		}
+
+		/**
+		 * Gets the backing array; only the first {@link #size()} bytes are
+		 * valid.
+		 */
+		public byte[] array() {
+			return buf;
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+}
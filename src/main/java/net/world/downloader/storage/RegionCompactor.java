@@ -0,0 +1,127 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * Rewrites region files with their chunks packed contiguously, dropping the
+ * free sectors left behind when chunks are rewritten with a different size.
+ */
+public final class RegionCompactor {
+	private RegionCompactor() { throw new AssertionError(); }
+
+	private static final int SECTOR_SIZE = 4096;
+	/** Chunks this many sectors or bigger are stored in a separate .mcc file. */
+	private static final int MAX_SECTORS = 256;
+	private static final byte EXTERNAL_FLAG = (byte) 0x80;
+
+	/**
+	 * Compacts the given region file.  The file must not be open for writing
+	 * while this runs.  The compacted file is written next to the original
+	 * and then moved over it, so the original is intact if this fails.
+	 *
+	 * @param directory The region folder
+	 * @param regionX   Region x coordinate
+	 * @param regionZ   Region z coordinate
+	 * @return The number of bytes reclaimed (0 if the file was already compact
+	 *         or doesn't exist).
+	 */
+	public static long compact(File directory, int regionX, int regionZ) throws IOException {
+		File file = new File(directory, "r." + regionX + "." + regionZ + ".mca");
+		if (!file.isFile()) {
+			return 0;
+		}
+		long before = file.length();
+
+		byte[][] chunks = new byte[1024][];
+		int[] timestamps = new int[1024];
+		int sectors = 2;
+		try (RegionReader reader = new RegionReader(file)) {
+			for (int i = 0; i < 1024; i++) {
+				ChunkPos pos = new ChunkPos(regionX * 32 + (i & 31), regionZ * 32 + (i >> 5));
+				byte[] data = reader.read(pos);
+				if (data == null) {
+					continue;
+				}
+				if (sectorsFor(data) >= MAX_SECTORS) {
+					// Leave the .mcc file as is, and only store a reference to it
+					data = new byte[] { 0, 0, 0, 1, (byte) (data[4] | EXTERNAL_FLAG) };
+				}
+				chunks[i] = data;
+				timestamps[i] = reader.getTimestamp(i);
+				sectors += sectorsFor(data);
+			}
+		}
+
+		long after = (long) sectors * SECTOR_SIZE;
+		if (after >= before) {
+			return 0;
+		}
+
+		File temp = new File(directory, file.getName() + ".compact");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE * 2);
+			IntBuffer offsets = header.asIntBuffer();
+			int sector = 2;
+			for (int i = 0; i < 1024; i++) {
+				if (chunks[i] != null) {
+					int count = sectorsFor(chunks[i]);
+					offsets.put(i, sector << 8 | count);
+					offsets.put(1024 + i, timestamps[i]);
+					write(channel, ByteBuffer.wrap(chunks[i]), (long) sector * SECTOR_SIZE);
+					sector += count;
+				}
+			}
+			write(channel, header, 0);
+			if (channel.size() < after) {
+				// Pad the last sector, as vanilla does
+				write(channel, ByteBuffer.allocate(1), after - 1);
+			}
+			channel.force(true);
+		} catch (IOException ex) {
+			temp.delete();
+			throw ex;
+		}
+
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return before - after;
+	}
+
+	private static int sectorsFor(byte[] data) {
+		return (data.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
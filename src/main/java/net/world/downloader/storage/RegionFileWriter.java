@@ -0,0 +1,254 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * Writes chunks to a region (.mca) file, in the same format as vanilla's
+ * RegionFile, but a batch of chunks at a time: all of the chunks in a batch
+ * are placed in a single run of free sectors and written with one write, and
+ * the header is then updated once.
+ *
+ * Not thread-safe; {@link RegionStorage} only lets one thread use a writer at
+ * a time.
+ */
+final class RegionFileWriter implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int SECTOR_SIZE = 4096;
+	/** Chunks this many sectors or bigger are stored in a separate .mcc file. */
+	private static final int MAX_SECTORS = 256;
+	private static final byte EXTERNAL_FLAG = (byte) 0x80;
+
+	private final File file;
+	private final Path directory;
+	private final RegionStorage.WriteGuard guard;
+	private final FileChannel channel;
+	private final ByteBuffer header = ByteBuffer.allocateDirect(SECTOR_SIZE * 2);
+	private final IntBuffer offsets;
+	private final IntBuffer timestamps;
+	private final BitSet usedSectors = new BitSet();
+
+	/**
+	 * Opens (or creates) the given region file.
+	 *
+	 * @param dsync If true, every write is synchronous.
+	 * @param guard Called before an existing external chunk file is changed.
+	 */
+	RegionFileWriter(File file, boolean dsync, RegionStorage.WriteGuard guard) throws IOException {
+		this.file = file;
+		this.directory = file.getParentFile().toPath();
+		this.guard = guard;
+		OpenOption[] options = dsync
+				? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE, StandardOpenOption.DSYNC }
+				: new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE };
+		this.channel = FileChannel.open(file.toPath(), options);
+		this.offsets = header.duplicate().asIntBuffer();
+		header.position(SECTOR_SIZE);
+		this.timestamps = header.slice().asIntBuffer();
+		header.clear();
+
+		try {
+			usedSectors.set(0, 2);
+			long size = channel.size();
+			if (size < SECTOR_SIZE * 2) {
+				// New (or truncated) file; start with an empty header
+				writeFully(header, 0);
+				header.clear();
+				return;
+			}
+			readFully(header, 0);
+			header.clear();
+			int sectorsInFile = (int) ((size + SECTOR_SIZE - 1) / SECTOR_SIZE);
+			for (int i = 0; i < 1024; i++) {
+				int offset = offsets.get(i);
+				if (offset == 0) {
+					continue;
+				}
+				int start = offset >>> 8;
+				int count = offset & 0xFF;
+				if (start < 2 || count == 0 || start + count > sectorsInFile) {
+					LOGGER.warn("[WDL] Region file " + file + " has an invalid entry for chunk "
+							+ i + "; it will be treated as missing");
+					offsets.put(i, 0);
+					continue;
+				}
+				usedSectors.set(start, start + count);
+			}
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Writes the given chunks, in the form returned by
+	 * {@link ChunkCompressor#compress}.  All of the chunks must be in this
+	 * region.
+	 */
+	void write(List<ChunkPos> positions, List<byte[]> datas) throws IOException {
+		int n = positions.size();
+		byte[][] stored = new byte[n][];
+		int[] counts = new int[n];
+		int total = 0;
+		// Only deleted once the header no longer points to them
+		List<Path> staleExternal = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			ChunkPos pos = positions.get(i);
+			byte[] data = datas.get(i);
+			int count = (data.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+			Path external = directory.resolve("c." + pos.x + "." + pos.z + ".mcc");
+			if (count >= MAX_SECTORS) {
+				guard.beforeWrite(external.toFile());
+				writeExternal(external, data);
+				data = new byte[] { 0, 0, 0, 1, (byte) (data[4] | EXTERNAL_FLAG) };
+				count = 1;
+			} else if (Files.exists(external)) {
+				staleExternal.add(external);
+			}
+			stored[i] = data;
+			counts[i] = count;
+			total += count;
+		}
+
+		int start = allocate(total);
+		ByteBuffer buffer = IoPool.takeDirect(total * SECTOR_SIZE);
+		try {
+			for (int i = 0; i < n; i++) {
+				buffer.put(stored[i]);
+				// Pad to the end of the sector; pooled buffers aren't zeroed
+				for (int pad = counts[i] * SECTOR_SIZE - stored[i].length; pad > 0; pad--) {
+					buffer.put((byte) 0);
+				}
+			}
+			buffer.flip();
+			writeFully(buffer, (long) start * SECTOR_SIZE);
+		} finally {
+			IoPool.releaseDirect(buffer);
+		}
+
+		int now = (int) (System.currentTimeMillis() / 1000L);
+		int[] previous = new int[n];
+		int sector = start;
+		for (int i = 0; i < n; i++) {
+			int index = RegionReader.getIndex(positions.get(i));
+			previous[i] = offsets.get(index);
+			offsets.put(index, sector << 8 | counts[i]);
+			timestamps.put(index, now);
+			sector += counts[i];
+		}
+		header.clear();
+		writeFully(header, 0);
+		header.clear();
+
+		for (int i = 0; i < n; i++) {
+			if (previous[i] != 0) {
+				int oldStart = previous[i] >>> 8;
+				usedSectors.clear(oldStart, oldStart + (previous[i] & 0xFF));
+			}
+		}
+
+		for (Path external : staleExternal) {
+			guard.beforeWrite(external.toFile());
+			Files.deleteIfExists(external);
+		}
+	}
+
+	/**
+	 * Finds the first run of free sectors of the given length, and marks it
+	 * as used.
+	 */
+	private int allocate(int count) {
+		int start = usedSectors.nextClearBit(2);
+		while (true) {
+			int end = usedSectors.nextSetBit(start);
+			if (end == -1 || end - start >= count) {
+				break;
+			}
+			start = usedSectors.nextClearBit(end);
+		}
+		usedSectors.set(start, start + count);
+		return start;
+	}
+
+	private void writeExternal(Path external, byte[] data) throws IOException {
+		Path temp = directory.resolve(external.getFileName() + ".tmp");
+		Files.write(temp, Arrays.copyOfRange(data, ChunkCompressor.HEADER_SIZE, data.length));
+		Files.move(temp, external, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Forces everything written so far to disk.
+	 */
+	void force() throws IOException {
+		channel.force(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			// Pad the file to a whole number of sectors, as vanilla does
+			long size = channel.size();
+			if (size % SECTOR_SIZE != 0) {
+				writeFully(ByteBuffer.allocate((int) (SECTOR_SIZE - size % SECTOR_SIZE)), size);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RegionFileWriter [file=" + file + "]";
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return;
+			}
+			position += read;
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,345 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * A read-only, memory-mapped view of a region (.mca) file.  Unlike vanilla's
+ * RegionFile, this never creates or modifies the file, and doesn't need write
+ * access to it.
+ *
+ * The header is read when the file is opened; {@link RegionStorage} reloads
+ * the entry for a chunk whenever it writes that chunk.  Chunks are returned
+ * in the same form as {@link ChunkCompressor#compress}, and only decompressed
+ * if {@link #readNbt} is used.  This class is thread-safe, and any number of
+ * threads can read from it at once; the file is mapped again if it grows.
+ */
+public final class RegionReader implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int SECTOR_SIZE = 4096;
+	/** Flag on the compression type of chunks stored in a separate .mcc file. */
+	private static final int EXTERNAL_FLAG = 0x80;
+
+	private final Path directory;
+	private final FileChannel channel;
+	private final AtomicIntegerArray offsets = new AtomicIntegerArray(1024);
+	private final AtomicIntegerArray timestamps = new AtomicIntegerArray(1024);
+
+	/**
+	 * Held for reading while copying from {@link #map}, and for writing while
+	 * replacing or unmapping it.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/** The mapped file; null once closed.  Guarded by lock. */
+	@Nullable
+	private MappedByteBuffer map;
+
+	/**
+	 * Opens the given region file.
+	 */
+	public RegionReader(File file) throws IOException {
+		this.directory = file.getParentFile().toPath();
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			this.map = mapFile();
+			IntBuffer ints = map.duplicate().asIntBuffer();
+			// A truncated header leaves the remaining entries as 0 (not present)
+			int entries = Math.min(ints.remaining(), 2048);
+			for (int i = 0; i < entries; i++) {
+				if (i < 1024) {
+					offsets.set(i, ints.get(i));
+				} else {
+					timestamps.set(i - 1024, ints.get(i));
+				}
+			}
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private MappedByteBuffer mapFile() throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Region file is too big (" + size + " bytes)");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	/**
+	 * Gets the index of the given chunk in the header.
+	 */
+	public static int getIndex(ChunkPos pos) {
+		return (pos.x & 31) + (pos.z & 31) * 32;
+	}
+
+	/**
+	 * Re-reads the header entry of the given chunk, after it has been written.
+	 */
+	void reloadEntry(ChunkPos pos) throws IOException {
+		int index = getIndex(pos);
+		ByteBuffer entry = ByteBuffer.allocate(4);
+		readFully(entry, index * 4L);
+		int offset = entry.getInt(0);
+		entry.clear();
+		readFully(entry, SECTOR_SIZE + index * 4L);
+		timestamps.set(index, entry.getInt(0));
+		offsets.set(index, offset);
+	}
+
+	/**
+	 * Checks if the given chunk is present in this region.
+	 */
+	public boolean hasChunk(ChunkPos pos) {
+		return offsets.get(getIndex(pos)) != 0;
+	}
+
+	/**
+	 * Gets the time (in seconds since the epoch) that the chunk with the given
+	 * {@link #getIndex index} was last saved, or 0 if it never was.
+	 */
+	public int getTimestamp(int index) {
+		return timestamps.get(index);
+	}
+
+	/**
+	 * Reads the given chunk.
+	 *
+	 * @return The chunk's data, with its length and compression type, or null
+	 *         if the chunk isn't present.
+	 */
+	@Nullable
+	public byte[] read(ChunkPos pos) throws IOException {
+		int offset = offsets.get(getIndex(pos));
+		if (offset == 0) {
+			return null;
+		}
+		long start = (long) (offset >>> 8) * SECTOR_SIZE;
+		int sectors = offset & 0xFF;
+
+		byte[] header = copy(start, ChunkCompressor.HEADER_SIZE);
+		if (header == null) {
+			return null;
+		}
+		ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+		int length = headerBuffer.getInt(0);
+		byte type = headerBuffer.get(4);
+
+		if ((type & EXTERNAL_FLAG) != 0) {
+			return readExternal(pos, (byte) (type & ~EXTERNAL_FLAG));
+		}
+		if (length <= 0 || length + 4L > (long) sectors * SECTOR_SIZE) {
+			throw new IOException("Invalid length " + length + " for chunk " + pos);
+		}
+
+		byte[] data = copy(start, length + 4);
+		if (data == null) {
+			throw new IOException("Chunk " + pos + " is truncated");
+		}
+		return data;
+	}
+
+	/**
+	 * Reads and decompresses the given chunk.
+	 *
+	 * @return The chunk's NBT, or null if the chunk isn't present.
+	 */
+	@Nullable
+	public CompoundTag readNbt(ChunkPos pos) throws IOException {
+		byte[] data = read(pos);
+		if (data == null) {
+			return null;
+		}
+		try (DataInputStream stream = ChunkCompressor.decompress(data)) {
+			return NbtIo.read(stream);
+		}
+	}
+
+	/**
+	 * Reads a chunk that was too big to fit in the region file itself.
+	 */
+	private byte[] readExternal(ChunkPos pos, byte type) throws IOException {
+		Path file = directory.resolve("c." + pos.x + "." + pos.z + ".mcc");
+		byte[] contents = Files.readAllBytes(file);
+		byte[] data = new byte[contents.length + ChunkCompressor.HEADER_SIZE];
+		ByteBuffer.wrap(data).putInt(contents.length + 1).put(type);
+		System.arraycopy(contents, 0, data, ChunkCompressor.HEADER_SIZE, contents.length);
+		return data;
+	}
+
+	/**
+	 * Copies the given range of the file out of the mapping, mapping the file
+	 * again if it has grown since.
+	 *
+	 * @return The bytes, or null if the file ends before the range does.
+	 */
+	@Nullable
+	private byte[] copy(long start, int length) throws IOException {
+		long end = start + length;
+		if (end > Integer.MAX_VALUE) {
+			throw new IOException("Invalid position " + start + " in region file");
+		}
+		while (true) {
+			lock.readLock().lock();
+			try {
+				if (map == null) {
+					throw new ClosedChannelException();
+				}
+				if (end <= map.capacity()) {
+					ByteBuffer view = map.duplicate();
+					view.position((int) start);
+					byte[] data = new byte[length];
+					view.get(data);
+					return data;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (!remap(end)) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Maps the file again, if it is now at least the given size.
+	 *
+	 * @return False if the file is still too small.
+	 */
+	private boolean remap(long end) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (map == null) {
+				throw new ClosedChannelException();
+			}
+			if (end <= map.capacity()) {
+				// Another thread got here first
+				return true;
+			}
+			if (channel.size() < end) {
+				return false;
+			}
+			MappedByteBuffer old = map;
+			map = mapFile();
+			unmap(old);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return;
+			}
+			position += read;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (map != null) {
+				unmap(map);
+				map = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Releases a mapping that will no longer be used.
+	 */
+	@FunctionalInterface
+	private static interface Unmapper {
+		void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+	}
+
+	@Nullable
+	private static final Unmapper UNMAPPER = findUnmapper();
+
+	/**
+	 * Finds a way to release mappings right away, rather than once they are
+	 * garbage collected; otherwise, on Windows the file can't be replaced
+	 * (e.g. by {@link RegionCompactor}) until then.
+	 */
+	@Nullable
+	private static Unmapper findUnmapper() {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			return buffer -> invokeCleaner.invoke(unsafe, buffer);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			// Not available; try the Java 8 way
+		}
+		try {
+			Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return buffer -> clean.invoke(cleaner.invoke(buffer));
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			LOGGER.debug("[WDL] Can't unmap region files; they will be unmapped when collected", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Releases the given mapping right away if possible.  It must not be used
+	 * afterwards, by any thread.
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		if (UNMAPPER == null) {
+			return;
+		}
+		try {
+			UNMAPPER.unmap(buffer);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			LOGGER.debug("[WDL] Failed to unmap a region file", ex);
+		}
+	}
+}
@@ -0,0 +1,601 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * The region files of a single dimension, owned by WDL rather than by
+ * vanilla's RegionBasedStorage.
+ *
+ * Writes go through a {@link RegionFileWriter}, which writes a batch of chunks
+ * to a region at once; reads use a separate {@link RegionReader}, so that
+ * reading old chunks never creates a region file.  Open files are kept in a single LRU
+ * with a limit on the total number of open handles; files that are in use are
+ * never closed, so the limit can be exceeded briefly if every file is in use.
+ * How often written data is forced to disk depends on the {@link Durability}.
+ *
+ * Callers must not read and write the same chunk at the same time.
+ */
+public class RegionStorage implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * When written chunks are forced to disk.
+	 */
+	public static enum Durability {
+		/**
+		 * Every write is synchronous (region files are opened with DSYNC), as
+		 * vanilla does.  Safest, but slow on spinning or network disks.
+		 */
+		SYNC_EACH_WRITE,
+		/**
+		 * Region files that have been written are forced to disk together,
+		 * after a number of chunks or a period of time.  A crash loses at
+		 * most that many chunks.
+		 */
+		GROUP_COMMIT,
+		/**
+		 * Region files are only forced to disk by {@link RegionStorage#sync}
+		 * and {@link RegionStorage#close}, i.e. when saving finishes.
+		 */
+		ON_CLOSE;
+	}
+
+	/**
+	 * Receives events for metrics.  Methods are called on the thread doing
+	 * the work, and should return quickly.
+	 */
+	public static interface Listener {
+		default void regionOpened(int regionX, int regionZ, boolean forWriting) {}
+		default void regionClosed(int regionX, int regionZ, boolean evicted) {}
+		default void chunkRead(ChunkPos pos, int bytes, long nanos) {}
+		default void batchWritten(int regionX, int regionZ, int chunks, int bytes, long nanos) {}
+		default void committed(int regions, long nanos) {}
+	}
+
+	private static final Listener NO_LISTENER = new Listener() {};
+
+	/**
+	 * Called before a file in the region folder is first modified in this
+	 * session, for instance to back it up.  May be called again for the same
+	 * file.
+	 */
+	@FunctionalInterface
+	public static interface WriteGuard {
+		void beforeWrite(File file) throws IOException;
+	}
+
+	private static final WriteGuard NO_GUARD = file -> {};
+
+	/**
+	 * The open handles of a single region.  The handles are guarded by the
+	 * instance's own lock while in use, and by {@link RegionStorage#regions}
+	 * when opened or closed.
+	 */
+	private static final class Region {
+		final int x, z;
+		final File file;
+		@Nullable
+		RegionFileWriter writer;
+		@Nullable
+		RegionReader reader;
+		/** Number of threads using the region; guarded by regions. */
+		int users;
+		/** True if written since the last group commit. */
+		volatile boolean dirty;
+
+		Region(int x, int z, File file) {
+			this.x = x;
+			this.z = z;
+			this.file = file;
+		}
+
+		int getNumHandles() {
+			return (writer != null ? 1 : 0) + (reader != null ? 1 : 0);
+		}
+	}
+
+	private final File directory;
+	private final int maxHandles;
+	private final Durability durability;
+	private final int groupCommitChunks;
+	/** Only used for {@link Durability#GROUP_COMMIT}. */
+	@Nullable
+	private final ScheduledExecutorService committer;
+	private final AtomicInteger chunksSinceCommit = new AtomicInteger();
+
+	private final Long2ObjectLinkedOpenHashMap<Region> regions = new Long2ObjectLinkedOpenHashMap<>();
+	/** Guarded by regions. */
+	private int openHandles;
+	/** Every region written to since this storage was created; guarded by regions. */
+	private final LongSet writtenRegions = new LongOpenHashSet();
+
+	private volatile Listener listener = NO_LISTENER;
+	private volatile WriteGuard writeGuard = NO_GUARD;
+
+	// Metrics
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong chunksRead = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong chunksWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	/** Upper bounds of the buckets of {@link #batchSizes}; the last is unbounded. */
+	private static final int[] BATCH_BUCKETS = { 1, 4, 16, 64, 256, Integer.MAX_VALUE };
+	private final AtomicLongArray batchSizes = new AtomicLongArray(BATCH_BUCKETS.length);
+	private final AtomicInteger maxBatch = new AtomicInteger();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong commitNanos = new AtomicLong();
+
+	/**
+	 * @param directory           The region folder.
+	 * @param maxHandles          The maximum number of files to keep open.
+	 * @param durability          When written data is forced to disk.
+	 * @param groupCommitMillis   For {@link Durability#GROUP_COMMIT}, the
+	 *                            longest time between commits.
+	 * @param groupCommitChunks   For {@link Durability#GROUP_COMMIT}, the
+	 *                            most chunks written between commits.
+	 */
+	public RegionStorage(File directory, int maxHandles, Durability durability,
+			int groupCommitMillis, int groupCommitChunks) {
+		this.directory = directory;
+		this.maxHandles = Math.max(2, maxHandles);
+		this.durability = durability;
+		this.groupCommitChunks = Math.max(1, groupCommitChunks);
+		if (durability == Durability.GROUP_COMMIT) {
+			long interval = Math.max(10, groupCommitMillis);
+			this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "WDL Region Sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.committer.scheduleWithFixedDelay(this::commitQuietly,
+					interval, interval, TimeUnit.MILLISECONDS);
+		} else {
+			this.committer = null;
+		}
+	}
+
+	public void setListener(@Nullable Listener listener) {
+		this.listener = (listener != null ? listener : NO_LISTENER);
+	}
+
+	public void setWriteGuard(@Nullable WriteGuard writeGuard) {
+		this.writeGuard = (writeGuard != null ? writeGuard : NO_GUARD);
+	}
+
+	/**
+	 * Writes a chunk, in the form returned by {@link ChunkCompressor#compress}.
+	 */
+	public void write(ChunkPos pos, byte[] data) throws IOException {
+		writeBatch(pos.getRegionX(), pos.getRegionZ(),
+				Collections.singletonList(pos), Collections.singletonList(data));
+	}
+
+	/**
+	 * Writes several chunks in the same region at once, in the form returned
+	 * by {@link ChunkCompressor#compress}.  The chunks are placed together in
+	 * the region file, and its header is only written once.
+	 */
+	public void writeBatch(int regionX, int regionZ, List<ChunkPos> positions,
+			List<byte[]> data) throws IOException {
+		long start = System.nanoTime();
+		Region region = acquire(regionX, regionZ);
+		try {
+			synchronized (region) {
+				if (region.writer == null) {
+					reserveHandle();
+					if (!directory.exists()) {
+						directory.mkdirs();
+					}
+					try {
+						writeGuard.beforeWrite(region.file);
+						region.writer = new RegionFileWriter(region.file,
+								durability == Durability.SYNC_EACH_WRITE, writeGuard);
+					} catch (IOException ex) {
+						releaseHandle();
+						throw ex;
+					}
+					opened.incrementAndGet();
+					listener.regionOpened(region.x, region.z, true);
+					synchronized (regions) {
+						writtenRegions.add(ChunkPos.toLong(region.x, region.z));
+					}
+				}
+				region.writer.write(positions, data);
+				region.dirty = true;
+				if (region.reader != null) {
+					for (ChunkPos pos : positions) {
+						region.reader.reloadEntry(pos);
+					}
+				}
+			}
+		} finally {
+			release(region);
+		}
+
+		long time = System.nanoTime() - start;
+		int bytes = 0;
+		for (byte[] chunk : data) {
+			bytes += chunk.length;
+		}
+		chunksWritten.addAndGet(positions.size());
+		bytesWritten.addAndGet(bytes);
+		recordBatch(positions.size());
+		listener.batchWritten(regionX, regionZ, positions.size(), bytes, time);
+
+		if (durability == Durability.GROUP_COMMIT
+				&& chunksSinceCommit.addAndGet(positions.size()) >= groupCommitChunks) {
+			commit();
+		}
+	}
+
+	private void recordBatch(int size) {
+		batches.incrementAndGet();
+		int bucket = 0;
+		while (bucket < BATCH_BUCKETS.length - 1 && size > BATCH_BUCKETS[bucket]) {
+			bucket++;
+		}
+		batchSizes.incrementAndGet(bucket);
+		maxBatch.accumulateAndGet(size, Math::max);
+	}
+
+	/**
+	 * Forces every region file written since the last commit to disk, without
+	 * closing it.
+	 */
+	public void commit() throws IOException {
+		long start = System.nanoTime();
+		chunksSinceCommit.set(0);
+		List<Region> dirty = new ArrayList<>();
+		synchronized (regions) {
+			for (Region region : regions.values()) {
+				if (region.dirty) {
+					region.users++;
+					dirty.add(region);
+				}
+			}
+		}
+		if (dirty.isEmpty()) {
+			return;
+		}
+		try {
+			for (Region region : dirty) {
+				synchronized (region) {
+					if (region.dirty && region.writer != null) {
+						region.writer.force();
+					}
+					region.dirty = false;
+				}
+			}
+		} finally {
+			for (Region region : dirty) {
+				release(region);
+			}
+		}
+		long time = System.nanoTime() - start;
+		commits.incrementAndGet();
+		commitNanos.addAndGet(time);
+		listener.committed(dirty.size(), time);
+	}
+
+	private void commitQuietly() {
+		try {
+			commit();
+		} catch (Throwable t) {
+			LOGGER.warn("[WDL] Failed to commit region files", t);
+		}
+	}
+
+	/**
+	 * Reads a chunk, in the form returned by {@link ChunkCompressor#compress}.
+	 *
+	 * @return The data, or null if the chunk (or its region) doesn't exist.
+	 */
+	@Nullable
+	public byte[] read(ChunkPos pos) throws IOException {
+		long start = System.nanoTime();
+		byte[] data;
+		Region region = acquire(pos.getRegionX(), pos.getRegionZ());
+		try {
+			RegionReader reader = getReader(region);
+			data = (reader != null ? reader.read(pos) : null);
+		} finally {
+			release(region);
+		}
+		if (data != null) {
+			chunksRead.incrementAndGet();
+			bytesRead.addAndGet(data.length);
+			listener.chunkRead(pos, data.length, System.nanoTime() - start);
+		}
+		return data;
+	}
+
+	/**
+	 * Gets a reader for the given region, e.g. to check the timestamps of its
+	 * chunks.  The reader is owned by this storage and may be closed at any
+	 * time, although its header remains usable.
+	 *
+	 * @return The reader, or null if the region file doesn't exist.
+	 */
+	@Nullable
+	public RegionReader getReader(int regionX, int regionZ) throws IOException {
+		Region region = acquire(regionX, regionZ);
+		try {
+			return getReader(region);
+		} finally {
+			release(region);
+		}
+	}
+
+	@Nullable
+	private RegionReader getReader(Region region) throws IOException {
+		synchronized (region) {
+			if (region.reader == null) {
+				if (!region.file.exists()) {
+					return null;
+				}
+				reserveHandle();
+				try {
+					region.reader = new RegionReader(region.file);
+				} catch (IOException ex) {
+					releaseHandle();
+					throw ex;
+				}
+				opened.incrementAndGet();
+				listener.regionOpened(region.x, region.z, false);
+			}
+			return region.reader;
+		}
+	}
+
+	/**
+	 * Gets the packed coordinates ({@link ChunkPos#toLong}) of every region
+	 * that has been written to.
+	 */
+	public long[] getWrittenRegions() {
+		synchronized (regions) {
+			return writtenRegions.toLongArray();
+		}
+	}
+
+	/**
+	 * Closes the given region's files if they aren't in use, e.g. so that the
+	 * file can be replaced.
+	 *
+	 * @return False if the region is in use.
+	 */
+	public boolean closeRegionFile(int regionX, int regionZ) {
+		synchronized (regions) {
+			long key = ChunkPos.toLong(regionX, regionZ);
+			Region region = regions.get(key);
+			if (region == null) {
+				return true;
+			}
+			if (region.users != 0) {
+				return false;
+			}
+			closeRegion(region, false);
+			regions.remove(key);
+			return true;
+		}
+	}
+
+	private Region acquire(int regionX, int regionZ) {
+		synchronized (regions) {
+			long key = ChunkPos.toLong(regionX, regionZ);
+			Region region = regions.getAndMoveToFirst(key);
+			if (region == null) {
+				region = new Region(regionX, regionZ,
+						new File(directory, "r." + regionX + "." + regionZ + ".mca"));
+				regions.putAndMoveToFirst(key, region);
+			}
+			region.users++;
+			return region;
+		}
+	}
+
+	private void release(Region region) {
+		synchronized (regions) {
+			region.users--;
+			if (region.users == 0 && region.getNumHandles() == 0) {
+				regions.remove(ChunkPos.toLong(region.x, region.z));
+			}
+		}
+	}
+
+	/**
+	 * Makes room for a new handle, closing the least recently used regions
+	 * that aren't in use.
+	 */
+	private void reserveHandle() {
+		synchronized (regions) {
+			if (openHandles >= maxHandles) {
+				ObjectIterator<Region> itr = regions.values().iterator();
+				List<Region> candidates = new ArrayList<>();
+				while (itr.hasNext()) {
+					candidates.add(itr.next());
+				}
+				// Least recently used first
+				for (int i = candidates.size() - 1; i >= 0 && openHandles >= maxHandles; i--) {
+					Region region = candidates.get(i);
+					if (region.users == 0 && region.getNumHandles() > 0) {
+						closeRegion(region, true);
+						regions.remove(ChunkPos.toLong(region.x, region.z));
+						evicted.incrementAndGet();
+					}
+				}
+			}
+			openHandles++;
+		}
+	}
+
+	private void releaseHandle() {
+		synchronized (regions) {
+			openHandles--;
+		}
+	}
+
+	/**
+	 * Closes the handles of the given region.  Must hold the lock on regions,
+	 * and the region must not be in use.
+	 */
+	private void closeRegion(Region region, boolean evict) {
+		if (region.writer != null) {
+			try {
+				region.writer.close();
+			} catch (IOException ex) {
+				LOGGER.warn("[WDL] Failed to close region file " + region.file, ex);
+			}
+			region.writer = null;
+			region.dirty = false;
+			openHandles--;
+		}
+		if (region.reader != null) {
+			try {
+				region.reader.close();
+			} catch (IOException ex) {
+				LOGGER.warn("[WDL] Failed to close region reader " + region.file, ex);
+			}
+			region.reader = null;
+			openHandles--;
+		}
+		listener.regionClosed(region.x, region.z, evict);
+	}
+
+	/**
+	 * Closes every region file that has been written to, which forces its
+	 * contents to disk.  They are reopened as needed.
+	 */
+	public void sync() {
+		synchronized (regions) {
+			ObjectIterator<Region> itr = regions.values().iterator();
+			while (itr.hasNext()) {
+				Region region = itr.next();
+				if (region.users == 0 && region.writer != null) {
+					closeRegion(region, false);
+					itr.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all open region files.
+	 */
+	@Override
+	public void close() {
+		if (committer != null) {
+			committer.shutdown();
+			try {
+				committer.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (regions) {
+			for (Region region : regions.values()) {
+				if (region.users != 0) {
+					LOGGER.warn("[WDL] Closing region " + region.file + " while it is in use");
+				}
+				closeRegion(region, false);
+			}
+			regions.clear();
+		}
+	}
+
+	/**
+	 * Gets the number of currently open file handles.
+	 */
+	public int getNumOpenHandles() {
+		synchronized (regions) {
+			return openHandles;
+		}
+	}
+
+	/**
+	 * Gets the configured limit on open file handles.
+	 */
+	public int getMaxHandles() {
+		return maxHandles;
+	}
+
+	/**
+	 * Gets the number of batches written, by size: 1, 2-4, 5-16, 17-64,
+	 * 65-256, and more.
+	 */
+	public long[] getBatchSizeCounts() {
+		long[] counts = new long[BATCH_BUCKETS.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = batchSizes.get(i);
+		}
+		return counts;
+	}
+
+	private String getBatchHistogram() {
+		StringBuilder builder = new StringBuilder();
+		long[] counts = getBatchSizeCounts();
+		int lower = 1;
+		for (int i = 0; i < counts.length; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			if (BATCH_BUCKETS[i] == Integer.MAX_VALUE) {
+				builder.append(lower).append("+");
+			} else if (BATCH_BUCKETS[i] == lower) {
+				builder.append(lower);
+			} else {
+				builder.append(lower).append('-').append(BATCH_BUCKETS[i]);
+			}
+			builder.append(": ").append(counts[i]);
+			lower = BATCH_BUCKETS[i] + 1;
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "RegionStorage [directory=" + directory + ", openHandles=" + getNumOpenHandles()
+				+ "/" + maxHandles + ", opened=" + opened + ", evicted=" + evicted
+				+ ", chunksRead=" + chunksRead + " (" + bytesRead + " bytes)"
+				+ ", chunksWritten=" + chunksWritten + " (" + bytesWritten + " bytes)"
+				+ ", batches=" + batches + " (max " + maxBatch + ", sizes " + getBatchHistogram() + ")"
+				+ ", durability=" + durability + ", commits=" + commits
+				+ " (" + TimeUnit.NANOSECONDS.toMillis(commitNanos.get()) + " ms)]";
+	}
+}
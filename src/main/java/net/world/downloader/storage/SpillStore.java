@@ -0,0 +1,296 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+
+/**
+ * A scratch file that NBT compounds can be moved out of memory into, keyed by
+ * a long, and later taken back.  Records are appended, and the space used by
+ * records that have been taken is reclaimed when the file is compacted (or
+ * when nothing is left in it).
+ *
+ * Nothing here survives a restart; the file is deleted when the store is
+ * closed, and emptied when it is opened.
+ */
+public class SpillStore implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/** key, length */
+	private static final int RECORD_HEADER_SIZE = 12;
+	/** The file is compacted once it is this much bigger than what is live... */
+	private static final int COMPACT_RATIO = 4;
+	/** ...and at least this big. */
+	private static final long COMPACT_MIN_SIZE = 16 * 1024 * 1024;
+
+	private final File file;
+
+	// Guarded by this
+	private FileChannel channel;
+	private long size;
+	private long liveBytes;
+	/** Offset and length of each record, alternating, by key. */
+	private final Long2ObjectMap<LongArrayList> index = new Long2ObjectOpenHashMap<>();
+
+	public SpillStore(File file) throws IOException {
+		this.file = file;
+		file.getParentFile().mkdirs();
+		this.channel = open(file);
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Appends a compound under the given key.  A key can have several
+	 * compounds.
+	 *
+	 * @return The number of bytes the compound takes up.
+	 */
+	public int append(long key, CompoundTag tag) throws IOException {
+		IoPool.Buffer buffer = IoPool.takeBuffer();
+		try {
+			for (int i = 0; i < RECORD_HEADER_SIZE; i++) {
+				buffer.write(0);
+			}
+			NbtIo.write(tag, new DataOutputStream(buffer));
+			int length = buffer.size() - RECORD_HEADER_SIZE;
+			ByteBuffer record = ByteBuffer.wrap(buffer.array(), 0, buffer.size());
+			record.putLong(key).putInt(length);
+			record.rewind();
+
+			synchronized (this) {
+				long position = size;
+				writeFully(channel, record, position);
+				size += buffer.size();
+				liveBytes += length;
+				LongArrayList locations = index.get(key);
+				if (locations == null) {
+					locations = new LongArrayList(2);
+					index.put(key, locations);
+				}
+				locations.add(position + RECORD_HEADER_SIZE);
+				locations.add(length);
+			}
+			return length;
+		} finally {
+			IoPool.releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Checks if there is anything stored under the given key.
+	 */
+	public synchronized boolean contains(long key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Removes and returns everything stored under the given key, in the order
+	 * it was appended.  If it can't all be read, nothing is removed.
+	 */
+	public synchronized List<CompoundTag> take(long key) throws IOException {
+		LongArrayList locations = index.get(key);
+		if (locations == null) {
+			return Collections.emptyList();
+		}
+		List<CompoundTag> result = new ArrayList<>(locations.size() / 2);
+		long length = 0;
+		for (int i = 0; i < locations.size(); i += 2) {
+			ByteBuffer data = ByteBuffer.allocate((int) locations.getLong(i + 1));
+			if (!readFully(channel, data, locations.getLong(i))) {
+				throw new IOException("Spilled record for " + key + " is truncated");
+			}
+			try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(data.array()))) {
+				result.add(NbtIo.read(stream));
+			}
+			length += data.capacity();
+		}
+		index.remove(key);
+		liveBytes -= length;
+		reclaim();
+		return result;
+	}
+
+	/**
+	 * Discards everything stored under the given key.
+	 */
+	public synchronized void discard(long key) throws IOException {
+		LongArrayList locations = index.remove(key);
+		if (locations == null) {
+			return;
+		}
+		for (int i = 1; i < locations.size(); i += 2) {
+			liveBytes -= locations.getLong(i);
+		}
+		reclaim();
+	}
+
+	/**
+	 * Discards everything.
+	 */
+	public synchronized void clear() throws IOException {
+		index.clear();
+		liveBytes = 0;
+		reclaim();
+	}
+
+	/**
+	 * Empties the file if nothing in it is live, or compacts it if most of it
+	 * is dead.  Must hold the lock on this.
+	 */
+	private void reclaim() throws IOException {
+		if (index.isEmpty()) {
+			channel.truncate(0);
+			size = 0;
+			liveBytes = 0;
+		} else if (size >= COMPACT_MIN_SIZE && size > liveBytes * COMPACT_RATIO) {
+			try {
+				compact();
+			} catch (IOException ex) {
+				// Everything is still where the index says; the file just
+				// stays bigger than it needs to be
+				LOGGER.warn("[WDL] Failed to compact spill file " + file, ex);
+			}
+		}
+	}
+
+	/**
+	 * Copies the live records to a new file, which then replaces the old one.
+	 * The index is only changed once the new file is in place, so if this
+	 * fails, the old file is still open and still matches it.
+	 */
+	private void compact() throws IOException {
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		FileChannel target = open(temp);
+		Long2ObjectMap<LongArrayList> compacted = new Long2ObjectOpenHashMap<>(index.size());
+		long position = 0;
+		try {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			for (Long2ObjectMap.Entry<LongArrayList> entry : index.long2ObjectEntrySet()) {
+				LongArrayList locations = entry.getValue();
+				LongArrayList newLocations = new LongArrayList(locations.size());
+				compacted.put(entry.getLongKey(), newLocations);
+				for (int i = 0; i < locations.size(); i += 2) {
+					int length = (int) locations.getLong(i + 1);
+					ByteBuffer data = ByteBuffer.allocate(length);
+					if (!readFully(channel, data, locations.getLong(i))) {
+						throw new IOException("Spilled record for " + entry.getLongKey() + " is truncated");
+					}
+					header.clear();
+					header.putLong(entry.getLongKey()).putInt(length).flip();
+					writeFully(target, header, position);
+					data.flip();
+					writeFully(target, data, position + RECORD_HEADER_SIZE);
+					newLocations.add(position + RECORD_HEADER_SIZE);
+					newLocations.add(length);
+					position += RECORD_HEADER_SIZE + length;
+				}
+			}
+		} catch (IOException ex) {
+			target.close();
+			temp.delete();
+			throw ex;
+		}
+		target.close();
+
+		// Closed first, as an open file can't be replaced on Windows
+		channel.close();
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			// The old file is untouched; keep using it
+			temp.delete();
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			throw ex;
+		}
+		LOGGER.debug("[WDL] Compacted spill file {} from {} to {} bytes", file, size, position);
+		index.clear();
+		index.putAll(compacted);
+		size = position;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Gets the number of keys with something stored.
+	 */
+	public synchronized int getNumKeys() {
+		return index.size();
+	}
+
+	/**
+	 * Gets the number of bytes of compounds stored (not counting dead space).
+	 */
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * Closes and deletes the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		index.clear();
+		channel.close();
+		if (file.exists() && !file.delete()) {
+			LOGGER.warn("[WDL] Failed to delete spill file " + file);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SpillStore [file=" + file + ", keys=" + getNumKeys() + ", liveBytes=" + getLiveBytes() + "]";
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
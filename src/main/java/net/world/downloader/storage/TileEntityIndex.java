@@ -0,0 +1,464 @@
+/*
+ * This file is part of World Downloader: A mod to make backups of your multiplayer worlds.
+ * https://www.minecraftforum.net/forums/mapping-and-modding-java-edition/minecraft-mods/2520465-world-downloader-mod-create-backups-of-your-builds
+ *
+ * Copyright (c) 2014 nairol, cubic72
+ * Copyright (c) 2020 Pokechu22, julialy
+ *
+ * This project is licensed under the MMPLv2.  The full text of the MMPL can be
+ * found in LICENSE.md, or online at https://github.com/iopleke/MMPLv2/blob/master/LICENSE.md
+ * For information about this the MMPLv2, see https://stopmodreposts.org/
+ *
+ * Do not redistribute (in modified or unmodified form) without prior permission.
+ */
+package net.world.downloader.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * A persistent index of the tile entities that WDL has written into each
+ * chunk, kept in one sidecar file per region.  This allows importing old tile
+ * entities without reading and inflating the whole previous chunk, and
+ * skipping the read entirely for chunks without tile entities.
+ *
+ * The index is only trusted if the region file hasn't changed since WDL last
+ * closed it (as recorded in the sidecar's header); otherwise (e.g. the world
+ * was played in singleplayer, or the game crashed) it is discarded and rebuilt
+ * as chunks are read and written.
+ *
+ * File format (all big-endian):
+ * <pre>
+ * int magic, int version, long regionLength, long regionModified
+ * 1024 * (int offset, int length)    -- offset 0 means unknown
+ * records: int count, count * (long packedBlockPos, int nbtLength, byte[] nbt)
+ * </pre>
+ * Records are only ever appended; stale ones are dropped when the file is
+ * next opened if they take up too much space.
+ *
+ * Sidecar files are reference counted while in use, as in {@link RegionStorage},
+ * so that one is never closed (or its mapping released) under another thread.
+ */
+public class TileEntityIndex {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int MAGIC = 0x57445449; // WDTI
+	private static final int VERSION = 1;
+	private static final int STAMP_SIZE = 4 + 4 + 8 + 8;
+	private static final int HEADER_SIZE = STAMP_SIZE + 1024 * 8;
+	/** Maximum number of sidecar files kept open at once. */
+	private static final int MAX_OPEN = 64;
+
+	private final File indexFolder;
+	private final File regionFolder;
+
+	/** Open sidecar files, most recently used first; guarded by this. */
+	private final Long2ObjectLinkedOpenHashMap<RegionIndex> open = new Long2ObjectLinkedOpenHashMap<>();
+	/**
+	 * Regions whose index has been validated or created in this session, and
+	 * which therefore need to be stamped on close.
+	 */
+	private final LongSet trusted = new LongOpenHashSet();
+
+	/**
+	 * @param indexFolder  Folder to keep the sidecar files in.
+	 * @param regionFolder Folder containing the region files being indexed.
+	 */
+	public TileEntityIndex(File indexFolder, File regionFolder) {
+		this.indexFolder = indexFolder;
+		this.regionFolder = regionFolder;
+	}
+
+	/**
+	 * Gets the tile entities recorded for the given chunk.
+	 *
+	 * @return The tile entities by position, or null if the index doesn't
+	 *         know about that chunk (in which case the chunk must be read).
+	 */
+	@Nullable
+	public Map<BlockPos, CompoundTag> get(ChunkPos pos) throws IOException {
+		RegionIndex region = acquire(pos, false);
+		if (region == null) {
+			return null;
+		}
+		try {
+			return region.read(pos);
+		} finally {
+			release(region);
+		}
+	}
+
+	/**
+	 * Records the tile entities now stored in the given chunk.
+	 */
+	public void put(ChunkPos pos, ListTag tileEntities) throws IOException {
+		put(pos, tileEntities, false);
+	}
+
+	/**
+	 * Records the tile entities read from the given chunk, unless something
+	 * has been recorded for it already.  What was recorded can only be newer
+	 * than what was read, as chunks are recorded once they have been
+	 * written.
+	 *
+	 * @return True if the tile entities were recorded.
+	 */
+	public boolean putIfAbsent(ChunkPos pos, ListTag tileEntities) throws IOException {
+		return put(pos, tileEntities, true);
+	}
+
+	private boolean put(ChunkPos pos, ListTag tileEntities, boolean onlyIfAbsent) throws IOException {
+		RegionIndex region = acquire(pos, true);
+		try {
+			return region.write(pos, tileEntities, onlyIfAbsent);
+		} catch (IOException ex) {
+			// The index no longer matches the region; make sure it isn't used
+			discard(region);
+			throw ex;
+		} finally {
+			release(region);
+		}
+	}
+
+	/**
+	 * Closes and deletes the given sidecar file, unless it has already been
+	 * replaced.  Any other thread using it will find it closed.
+	 */
+	private synchronized void discard(RegionIndex region) {
+		if (open.get(region.key) != region) {
+			return;
+		}
+		open.remove(region.key);
+		trusted.remove(region.key);
+		// Still holding the lock, so that the file isn't opened again before
+		// it is deleted
+		region.close();
+		region.indexFile.delete();
+	}
+
+	/**
+	 * Records that the region files are now consistent with the index, and
+	 * closes all sidecar files.  Must be called after the region files have
+	 * been fully written.
+	 */
+	public synchronized void close() {
+		for (RegionIndex region : open.values()) {
+			if (region.users != 0) {
+				LOGGER.warn("[WDL] Closing tile entity index for region " + ChunkPos.getPackedX(region.key)
+						+ ", " + ChunkPos.getPackedZ(region.key) + " while it is still in use");
+			}
+			region.close();
+		}
+		open.clear();
+
+		for (long key : trusted) {
+			int regionX = ChunkPos.getPackedX(key), regionZ = ChunkPos.getPackedZ(key);
+			try (RandomAccessFile file = new RandomAccessFile(getIndexFile(regionX, regionZ), "rw")) {
+				File regionFile = getRegionFile(regionX, regionZ);
+				file.seek(8);
+				file.writeLong(regionFile.length());
+				file.writeLong(regionFile.lastModified());
+			} catch (IOException ex) {
+				LOGGER.warn("[WDL] Failed to stamp tile entity index for region " + regionX + ", " + regionZ, ex);
+			}
+		}
+		trusted.clear();
+	}
+
+	/**
+	 * Gets the sidecar file of the given chunk's region, opening it if needed,
+	 * and marks it as in use.  It must be {@link #release released} afterwards.
+	 *
+	 * @param create Whether to create the file if it doesn't exist.
+	 * @return The region's sidecar file, or null if it doesn't exist.
+	 */
+	@Nullable
+	private synchronized RegionIndex acquire(ChunkPos pos, boolean create) throws IOException {
+		long key = ChunkPos.toLong(pos.getRegionX(), pos.getRegionZ());
+		RegionIndex region = open.getAndMoveToFirst(key);
+		if (region == null) {
+			File file = getIndexFile(pos.getRegionX(), pos.getRegionZ());
+			if (!create && !file.exists()) {
+				return null;
+			}
+			indexFolder.mkdirs();
+			region = new RegionIndex(key, file, getRegionFile(pos.getRegionX(), pos.getRegionZ()),
+					trusted.contains(key));
+			trusted.add(key);
+			open.putAndMoveToFirst(key, region);
+			closeUnused();
+		}
+		region.users++;
+		return region;
+	}
+
+	private synchronized void release(RegionIndex region) {
+		region.users--;
+	}
+
+	/**
+	 * Closes the least recently used sidecar files that aren't in use, while
+	 * more than {@link #MAX_OPEN} are open.  Must hold the lock on this.
+	 */
+	private void closeUnused() {
+		if (open.size() <= MAX_OPEN) {
+			return;
+		}
+		List<RegionIndex> candidates = new ArrayList<>(open.values());
+		// Least recently used first
+		for (int i = candidates.size() - 1; i >= 0 && open.size() > MAX_OPEN; i--) {
+			RegionIndex region = candidates.get(i);
+			if (region.users == 0) {
+				open.remove(region.key);
+				region.close();
+			}
+		}
+	}
+
+	private File getIndexFile(int regionX, int regionZ) {
+		return new File(indexFolder, "r." + regionX + "." + regionZ + ".wdlte");
+	}
+
+	private File getRegionFile(int regionX, int regionZ) {
+		return new File(regionFolder, "r." + regionX + "." + regionZ + ".mca");
+	}
+
+	/**
+	 * The sidecar file for a single region.
+	 */
+	private static class RegionIndex {
+		final long key;
+		final File indexFile;
+		/** Number of threads using the file; guarded by the TileEntityIndex. */
+		int users;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int[] offsets = new int[1024];
+		private final int[] lengths = new int[1024];
+		private long end;
+		/** Maps the start of the file; only replaced when a read goes past it. */
+		@Nullable
+		private MappedByteBuffer mapped;
+		private boolean closed;
+
+		RegionIndex(long key, File indexFile, File regionFile, boolean alreadyTrusted) throws IOException {
+			this.key = key;
+			this.indexFile = indexFile;
+			this.file = new RandomAccessFile(indexFile, "rw");
+			this.channel = file.getChannel();
+
+			boolean valid = false;
+			if (file.length() >= HEADER_SIZE) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				channel.read(header, 0);
+				header.flip();
+				int magic = header.getInt();
+				int version = header.getInt();
+				long regionLength = header.getLong();
+				long regionModified = header.getLong();
+				valid = magic == MAGIC && version == VERSION && (alreadyTrusted
+						|| (regionLength == regionFile.length() && regionModified == regionFile.lastModified()));
+				for (int i = 0; i < 1024; i++) {
+					offsets[i] = header.getInt();
+					lengths[i] = header.getInt();
+				}
+			}
+
+			if (!valid) {
+				reset();
+			} else {
+				end = file.length();
+				compactIfNeeded();
+			}
+		}
+
+		/**
+		 * Discards everything in the file.
+		 */
+		private void reset() throws IOException {
+			// Can't truncate a file that is still mapped on some systems
+			unmap();
+			channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(-1).putLong(-1);
+			header.flip();
+			channel.write(header, 0);
+			Arrays.fill(offsets, 0);
+			Arrays.fill(lengths, 0);
+			end = HEADER_SIZE;
+		}
+
+		/**
+		 * Rewrites the file without stale records if they take up more than
+		 * half of it.
+		 */
+		private void compactIfNeeded() throws IOException {
+			long live = 0;
+			for (int length : lengths) {
+				live += length;
+			}
+			if (end - HEADER_SIZE <= 2 * live + 64 * 1024) {
+				return;
+			}
+
+			byte[][] records = new byte[1024][];
+			for (int i = 0; i < 1024; i++) {
+				if (offsets[i] != 0) {
+					ByteBuffer record = ByteBuffer.allocate(lengths[i]);
+					channel.read(record, offsets[i]);
+					records[i] = record.array();
+				}
+			}
+			reset();
+			for (int i = 0; i < 1024; i++) {
+				if (records[i] != null) {
+					append(i, records[i]);
+				}
+			}
+		}
+
+		synchronized boolean write(ChunkPos pos, ListTag tileEntities, boolean onlyIfAbsent) throws IOException {
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+			if (onlyIfAbsent && offsets[index(pos)] != 0) {
+				return false;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(tileEntities.size());
+			ByteArrayOutputStream tagBytes = new ByteArrayOutputStream();
+			for (int i = 0; i < tileEntities.size(); i++) {
+				CompoundTag tag = tileEntities.getCompound(i);
+				tagBytes.reset();
+				NbtIo.write(tag, new DataOutputStream(tagBytes));
+				out.writeLong(BlockPos.asLong(tag.getInt("x"), tag.getInt("y"), tag.getInt("z")));
+				out.writeInt(tagBytes.size());
+				tagBytes.writeTo(out);
+			}
+			append(index(pos), bytes.toByteArray());
+			return true;
+		}
+
+		private void append(int index, byte[] record) throws IOException {
+			channel.write(ByteBuffer.wrap(record), end);
+			ByteBuffer entry = ByteBuffer.allocate(8);
+			entry.putInt((int) end).putInt(record.length);
+			entry.flip();
+			channel.write(entry, STAMP_SIZE + index * 8);
+			offsets[index] = (int) end;
+			lengths[index] = record.length;
+			end += record.length;
+		}
+
+		@Nullable
+		synchronized Map<BlockPos, CompoundTag> read(ChunkPos pos) throws IOException {
+			if (closed) {
+				return null;
+			}
+			int index = index(pos);
+			if (offsets[index] == 0) {
+				return null;
+			}
+			if (mapped == null || mapped.capacity() < offsets[index] + lengths[index]) {
+				// Only records appended since the file was last mapped need a
+				// new mapping; only this thread can be using the old one
+				unmap();
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+			}
+			ByteBuffer record = mapped.duplicate();
+			record.position(offsets[index]);
+			record.limit(offsets[index] + lengths[index]);
+
+			int count = record.getInt();
+			Map<BlockPos, CompoundTag> result = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				BlockPos blockPos = BlockPos.fromLong(record.getLong());
+				int length = record.getInt();
+				ByteBuffer tag = record.slice();
+				tag.limit(length);
+				record.position(record.position() + length);
+				result.put(blockPos, NbtIo.read(new DataInputStream(new ByteBufferInputStream(tag))));
+			}
+			return result;
+		}
+
+		synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			unmap();
+			try {
+				file.close();
+			} catch (IOException ex) {
+				LOGGER.warn("[WDL] Failed to close tile entity index", ex);
+			}
+		}
+
+		private void unmap() {
+			if (mapped != null) {
+				RegionReader.unmap(mapped);
+				mapped = null;
+			}
+		}
+
+		private static int index(ChunkPos pos) {
+			return (pos.x & 31) + (pos.z & 31) * 32;
+		}
+	}
+
+	/**
+	 * Reads from a ByteBuffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+}